@@ -0,0 +1,66 @@
+package com.mediaserver.wmc.bench;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.mediaserver.wmc.CategoryTreeNode;
+import com.mediaserver.wmc.PagedUPNPObject;
+import com.mediaserver.wmc.WindowsMediaCenterInfo;
+
+/**
+ * A UPnP node that only counts what it's given, so benchmarks measure the library code and not a
+ * renderer's object tree.
+ */
+public class BenchUPNPObject implements PagedUPNPObject<Object> {
+	private CategoryTreeNode node;
+	private List<WindowsMediaCenterInfo> potentials;
+	private int childCount;
+	private int totalChildCount;
+
+	@Override
+	public List<Object> getChildren() {
+		return null;
+	}
+
+	@Override
+	public void setNode(CategoryTreeNode node, List<WindowsMediaCenterInfo> potentials) {
+		this.node = node;
+		this.potentials = potentials;
+	}
+
+	@Override
+	public void addVideoItem(WindowsMediaCenterInfo info) {
+		childCount++;
+	}
+
+	@Override
+	public void addContainer(String thumbnailName, CategoryTreeNode node, Collection<WindowsMediaCenterInfo> potentials) {
+		childCount++;
+	}
+
+	@Override
+	public void clearChildren() {
+		childCount = 0;
+	}
+
+	@Override
+	public void startChildPage(int startingIndex, int totalChildCount) {
+		this.totalChildCount = totalChildCount;
+	}
+
+	public CategoryTreeNode getNode() {
+		return node;
+	}
+
+	public List<WindowsMediaCenterInfo> getPotentials() {
+		return potentials;
+	}
+
+	public int getChildCount() {
+		return childCount;
+	}
+
+	public int getTotalChildCount() {
+		return totalChildCount;
+	}
+}
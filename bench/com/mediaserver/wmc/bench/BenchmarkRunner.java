@@ -0,0 +1,120 @@
+package com.mediaserver.wmc.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A small stand in for JMH: each benchmark is warmed up, then run for a number of timed iterations, and
+ * the time per operation is reported with its spread. Results go through a sink the JIT can't see past,
+ * so benchmarked work isn't optimized away.
+ */
+public class BenchmarkRunner {
+	private volatile int sink;
+	private int warmupIterations = 3;
+	private int measurementIterations = 5;
+	private long iterationMillis = 1000;
+	private final List<String> results = new ArrayList<String>();
+
+	/**
+	 * One benchmark. setUp runs once before warmup, run is one invocation and returns something derived
+	 * from its work.
+	 */
+	public static abstract class Benchmark {
+		private final String name;
+		private final int operationsPerInvocation;
+
+		protected Benchmark(String name, int operationsPerInvocation) {
+			this.name = name;
+			this.operationsPerInvocation = operationsPerInvocation;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		protected void setUp() throws Exception {
+		}
+
+		protected abstract Object run() throws Exception;
+
+		protected void tearDown() throws Exception {
+		}
+	}
+
+	public void setWarmupIterations(int warmupIterations) {
+		this.warmupIterations = warmupIterations;
+	}
+
+	public void setMeasurementIterations(int measurementIterations) {
+		this.measurementIterations = measurementIterations;
+	}
+
+	public void setIterationMillis(long iterationMillis) {
+		this.iterationMillis = iterationMillis;
+	}
+
+	public List<String> getResults() {
+		return results;
+	}
+
+	public void run(String parameters, Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			for (int t = 0; t < warmupIterations; t++) {
+				iteration(benchmark);
+			}
+
+			double[] nanosPerOperation = new double[measurementIterations];
+			for (int t = 0; t < measurementIterations; t++) {
+				nanosPerOperation[t] = iteration(benchmark);
+			}
+			report(parameters, benchmark, nanosPerOperation);
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	/**
+	 * Runs whole invocations until the iteration time is up, always at least one.
+	 */
+	private double iteration(Benchmark benchmark) throws Exception {
+		long deadline = System.nanoTime() + iterationMillis * 1000000L;
+		long operations = 0;
+		long start = System.nanoTime();
+		long end;
+		do {
+			consume(benchmark.run());
+			operations += benchmark.operationsPerInvocation;
+			end = System.nanoTime();
+		} while (end < deadline);
+		return (end - start) / (double)operations;
+	}
+
+	private void consume(Object result) {
+		sink += result == null ? 0 : System.identityHashCode(result);
+	}
+
+	private void report(String parameters, Benchmark benchmark, double[] nanosPerOperation) {
+		double mean = 0;
+		for (double value : nanosPerOperation) {
+			mean += value;
+		}
+		mean /= nanosPerOperation.length;
+
+		double variance = 0;
+		for (double value : nanosPerOperation) {
+			variance += (value - mean) * (value - mean);
+		}
+		double deviation = nanosPerOperation.length > 1 ? Math.sqrt(variance / (nanosPerOperation.length - 1)) : 0;
+
+		String result = String.format(Locale.US, "%-32s %-14s %16s ns/op  +- %12s  (%s ops/s)", benchmark.getName(), parameters,
+				format(mean), format(deviation), format(1000000000.0 / mean));
+		results.add(result);
+		System.out.println(result);
+	}
+
+	private static String format(double value) {
+		return value >= 100 ? String.format(Locale.US, "%,.0f", value) : String.format(Locale.US, "%.3f", value);
+	}
+}
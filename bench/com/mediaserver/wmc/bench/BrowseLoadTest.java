@@ -0,0 +1,432 @@
+package com.mediaserver.wmc.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.mediaserver.wmc.CategoryTreeNode;
+import com.mediaserver.wmc.ContainerCache;
+import com.mediaserver.wmc.LibraryScanner;
+import com.mediaserver.wmc.WindowsMediaCenterFilter;
+import com.mediaserver.wmc.WindowsMediaCenterManager;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Load tests browsing with a fleet of simulated renderers against a generated library, no network
+ * involved. Every renderer runs the same script over and over: browse the root and open a genre, browse
+ * the genre and open a letter range, browse the range's first page of titles, then a page further in,
+ * picking at random and browsing further pages when what it picked isn't on the first. Browses go
+ * through WindowsMediaCenterFilter.buildChildren into RendererUPNPObjects, the same way a media server
+ * fills its nodes, over the library a WindowsMediaCenterManager scanned.
+ * <pre>
+ * java com.mediaserver.wmc.bench.BrowseLoadTest [-size 10000] [-clients 1,5,20] [-warmup 5] [-time 20] [-page 25] [-think 0]
+ * </pre>
+ * Warmup and measured runs are in seconds, think time in milliseconds between a renderer's sessions.
+ * Each run reports throughput, p50/p99/p999 latency per step and overall, bytes allocated per browse
+ * and the garbage collections during the run, so runs on two branches can be compared line by line.
+ */
+public class BrowseLoadTest {
+	private static final long SEED = 20120301L;
+	private static final String[] STEPS = {"root", "genre", "letterRange", "page"};
+	private static final int ROOT = 0;
+	private static final int GENRE = 1;
+	private static final int LETTER_RANGE = 2;
+	private static final int PAGE = 3;
+	private static final int LETTERS_UNDER_HEADING = 25;
+
+	private final SyntheticLibrary library;
+	private int pageSize = 25;
+	private long thinkMillis;
+	private RendererUPNPObject root;
+
+	public BrowseLoadTest(SyntheticLibrary library) {
+		this.library = library;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public void setThinkMillis(long thinkMillis) {
+		this.thinkMillis = thinkMillis;
+	}
+
+	/**
+	 * Scans the library with a manager whose categories are genres, each split into ranges of titles.
+	 */
+	public void start() throws Exception {
+		library.install();
+		root = new RendererUPNPObject();
+		WindowsMediaCenterManager<Object> manager = new WindowsMediaCenterManager<Object>(root);
+		manager.setLibraryScanner(new LibraryScanner());
+		manager.setLibraryImage(null);
+		manager.setConfiguredFolders(Collections.singletonList(library.getMovieFolder().getPath()));
+		CategoryTreeNode categories = manager.getRootNode();
+		CategoryTreeNode genre = new CategoryTreeNode(categories, "genre", false);
+		genre.setChildren(Collections.singletonList(new CategoryTreeNode(genre, "title", LETTERS_UNDER_HEADING)));
+		categories.setChildren(Collections.singletonList(genre));
+		manager.refreshCache(MediaCenterBenchmarks.QUIET);
+	}
+
+	/**
+	 * Runs the fleet for the given time and returns what each renderer recorded.
+	 */
+	public Renderer[] run(int clients, long millis) throws InterruptedException {
+		final Renderer[] renderers = new Renderer[clients];
+		final CountDownLatch ready = new CountDownLatch(clients);
+		final CountDownLatch go = new CountDownLatch(1);
+		final long[] deadline = new long[1];
+		Thread[] threads = new Thread[clients];
+		for (int t = 0; t < clients; t++) {
+			renderers[t] = new Renderer(new Random(SEED + t));
+			final Renderer renderer = renderers[t];
+			threads[t] = new Thread("renderer-" + t) {
+				@Override
+				public void run() {
+					ready.countDown();
+					try {
+						go.await();
+						renderer.run(deadline[0]);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		ready.await();
+		//Published to the renderers by the latch
+		deadline[0] = System.nanoTime() + millis * 1000000L;
+		go.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return renderers;
+	}
+
+	/**
+	 * One renderer: its sessions, and the latency of every browse it made by step.
+	 */
+	public class Renderer {
+		private final Random random;
+		private final Samples[] latencies = new Samples[STEPS.length];
+		private long sessions;
+		private long allocatedBytes = -1;
+
+		private Renderer(Random random) {
+			this.random = random;
+			for (int step = 0; step < STEPS.length; step++) {
+				latencies[step] = new Samples();
+			}
+		}
+
+		private void run(long deadline) throws InterruptedException {
+			long allocatedStart = allocatedBytes();
+			while (System.nanoTime() < deadline) {
+				session();
+				sessions++;
+				if (thinkMillis > 0)
+					Thread.sleep(thinkMillis);
+			}
+			long allocatedEnd = allocatedBytes();
+			if (allocatedStart >= 0 && allocatedEnd >= 0)
+				allocatedBytes = allocatedEnd - allocatedStart;
+		}
+
+		private void session() {
+			RendererUPNPObject node = new RendererUPNPObject(null, root.getNode(), root.getPotentials());
+			node = open(node, ROOT);
+			if (node != null)
+				node = open(node, GENRE);
+			if (node == null)
+				return;
+
+			browse(node, LETTER_RANGE, 0);
+			int pages = (node.getTotalChildCount() + pageSize - 1) / pageSize;
+			if (pages > 0)
+				browse(node, PAGE, random.nextInt(pages) * pageSize);
+		}
+
+		/**
+		 * Browses the node and picks one of its children, browsing the page it's on if that's not the
+		 * first. Returns null when there's nothing to pick or what was picked isn't a container.
+		 */
+		private RendererUPNPObject open(RendererUPNPObject node, int step) {
+			browse(node, step, 0);
+			if (node.getTotalChildCount() == 0)
+				return null;
+
+			int index = random.nextInt(node.getTotalChildCount());
+			if (index >= node.getChildren().size())
+				browse(node, step, index / pageSize * pageSize);
+			int position = index - node.getStartingIndex();
+			if (position < 0 || position >= node.getChildren().size())
+				return null;
+
+			Object child = node.getChildren().get(position);
+			return child instanceof RendererUPNPObject ? (RendererUPNPObject)child : null;
+		}
+
+		private void browse(RendererUPNPObject node, int step, int startingIndex) {
+			long start = System.nanoTime();
+			new WindowsMediaCenterFilter<Object>(node, node.getThumbnailName(), node.getNode(), node.getPotentials()).buildChildren(startingIndex, pageSize);
+			latencies[step].add(System.nanoTime() - start);
+		}
+
+		public long getSessions() {
+			return sessions;
+		}
+
+		public long getBrowses() {
+			long browses = 0;
+			for (Samples samples : latencies) {
+				browses += samples.size;
+			}
+			return browses;
+		}
+
+		/**
+		 * Returns the bytes this renderer's thread allocated during the run, -1 if the JVM can't tell.
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+	}
+
+	/**
+	 * Latencies in nanoseconds, kept whole so percentiles are exact.
+	 */
+	private static class Samples {
+		private long[] values = new long[1024];
+		private int size;
+
+		private void add(long value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		private void addAll(Samples samples) {
+			for (int t = 0; t < samples.size; t++) {
+				add(samples.values[t]);
+			}
+		}
+
+		/**
+		 * Sorts the samples; percentile reads the sorted values.
+		 */
+		private void sort() {
+			Arrays.sort(values, 0, size);
+		}
+
+		private long percentile(double fraction) {
+			if (size == 0)
+				return 0;
+
+			int rank = (int)Math.ceil(fraction * size);
+			return values[Math.min(Math.max(rank, 1), size) - 1];
+		}
+	}
+
+	/**
+	 * Returns the bytes the current thread has allocated so far, -1 if the JVM doesn't count them.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+		if (!allocations.isThreadAllocatedMemorySupported())
+			return -1;
+
+		if (!allocations.isThreadAllocatedMemoryEnabled())
+			allocations.setThreadAllocatedMemoryEnabled(true);
+		return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * The collections of every collector over a run. Counts and times come from the collectors' MXBeans,
+	 * the longest pause from their notifications where the JVM sends them.
+	 */
+	private static class GcRecorder implements NotificationListener {
+		private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		private final long[] startCounts = new long[collectors.size()];
+		private final long[] startTimes = new long[collectors.size()];
+		private final Map<String, AtomicLong> longestPauses = new LinkedHashMap<String, AtomicLong>();
+
+		private GcRecorder() {
+			for (GarbageCollectorMXBean collector : collectors) {
+				longestPauses.put(collector.getName(), new AtomicLong(-1));
+			}
+		}
+
+		private void start() {
+			for (int t = 0; t < collectors.size(); t++) {
+				startCounts[t] = collectors.get(t).getCollectionCount();
+				startTimes[t] = collectors.get(t).getCollectionTime();
+				if (collectors.get(t) instanceof NotificationEmitter)
+					((NotificationEmitter)collectors.get(t)).addNotificationListener(this, null, null);
+			}
+		}
+
+		private List<String> stop() {
+			List<String> lines = new ArrayList<String>();
+			for (int t = 0; t < collectors.size(); t++) {
+				GarbageCollectorMXBean collector = collectors.get(t);
+				if (collector instanceof NotificationEmitter) {
+					try {
+						((NotificationEmitter)collector).removeNotificationListener(this);
+					} catch (Exception e) {
+						//Never added
+					}
+				}
+
+				long longest = longestPauses.get(collector.getName()).get();
+				lines.add(String.format(Locale.US, "  %-24s %8d collections %10d ms%s", collector.getName(),
+						collector.getCollectionCount() - startCounts[t], collector.getCollectionTime() - startTimes[t],
+						longest < 0 ? "" : String.format(Locale.US, "  (longest %d ms)", longest)));
+			}
+			return lines;
+		}
+
+		@Override
+		public void handleNotification(Notification notification, Object handback) {
+			if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+				return;
+
+			GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+			AtomicLong longest = longestPauses.get(info.getGcName());
+			if (longest == null)
+				return;
+
+			long duration = info.getGcInfo().getDuration();
+			long current = longest.get();
+			while (duration > current && !longest.compareAndSet(current, duration)) {
+				current = longest.get();
+			}
+		}
+	}
+
+	/**
+	 * Warms up, then measures a run and prints its report.
+	 */
+	public List<String> measure(int clients, long warmupMillis, long millis) throws InterruptedException {
+		if (warmupMillis > 0)
+			run(clients, warmupMillis);
+
+		ContainerCache cache = ContainerCache.getInstance();
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+		GcRecorder gc = new GcRecorder();
+		gc.start();
+		long start = System.nanoTime();
+		Renderer[] renderers = run(clients, millis);
+		double seconds = (System.nanoTime() - start) / 1000000000.0;
+		List<String> gcLines = gc.stop();
+		hits = cache.getHits() - hits;
+		misses = cache.getMisses() - misses;
+
+		long sessions = 0;
+		long browses = 0;
+		long allocated = 0;
+		Samples all = new Samples();
+		Samples[] steps = new Samples[STEPS.length];
+		for (int step = 0; step < STEPS.length; step++) {
+			steps[step] = new Samples();
+		}
+		for (Renderer renderer : renderers) {
+			sessions += renderer.getSessions();
+			browses += renderer.getBrowses();
+			allocated = allocated < 0 || renderer.getAllocatedBytes() < 0 ? -1 : allocated + renderer.getAllocatedBytes();
+			for (int step = 0; step < STEPS.length; step++) {
+				steps[step].addAll(renderer.latencies[step]);
+				all.addAll(renderer.latencies[step]);
+			}
+		}
+
+		List<String> lines = new ArrayList<String>();
+		lines.add(String.format(Locale.US, "titles=%d clients=%d page=%d think=%dms: %,d sessions, %,d browses in %.1f s, %,.0f browses/s, %,.0f sessions/s",
+				library.getTitleCount(), clients, pageSize, thinkMillis, sessions, browses, seconds, browses / seconds, sessions / seconds));
+		lines.add(latencyLine("all", all));
+		for (int step = 0; step < STEPS.length; step++) {
+			lines.add(latencyLine(STEPS[step], steps[step]));
+		}
+		lines.add(allocated < 0 ? "  allocated                n/a" : String.format(Locale.US, "  allocated      %,14.0f bytes/browse", browses == 0 ? 0 : allocated / (double)browses));
+		lines.add(String.format(Locale.US, "  container cache %,d hits, %,d misses", hits, misses));
+		lines.addAll(gcLines);
+		for (String line : lines) {
+			System.out.println(line);
+		}
+		return lines;
+	}
+
+	private static String latencyLine(String name, Samples samples) {
+		samples.sort();
+		return String.format(Locale.US, "  %-12s %10d browses  p50 %10s us  p99 %10s us  p999 %10s us  max %10s us", name, samples.size,
+				micros(samples.percentile(0.5)), micros(samples.percentile(0.99)), micros(samples.percentile(0.999)), micros(samples.percentile(1)));
+	}
+
+	private static String micros(long nanos) {
+		return String.format(Locale.US, "%,.1f", nanos / 1000.0);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int size = 10000;
+		List<Integer> clients = Arrays.asList(1, 5, 20);
+		long warmupMillis = 5000;
+		long millis = 20000;
+		int pageSize = 25;
+		long thinkMillis = 0;
+		for (int t = 0; t < args.length; t++) {
+			if (args[t].equals("-size")) {
+				size = Integer.parseInt(args[++t]);
+			} else if (args[t].equals("-clients")) {
+				clients = new ArrayList<Integer>();
+				for (String count : args[++t].split(",")) {
+					clients.add(Integer.valueOf(count.trim()));
+				}
+			} else if (args[t].equals("-warmup")) {
+				warmupMillis = (long)(Double.parseDouble(args[++t]) * 1000);
+			} else if (args[t].equals("-time")) {
+				millis = (long)(Double.parseDouble(args[++t]) * 1000);
+			} else if (args[t].equals("-page")) {
+				pageSize = Integer.parseInt(args[++t]);
+			} else if (args[t].equals("-think")) {
+				thinkMillis = Long.parseLong(args[++t]);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + args[t]);
+			}
+		}
+
+		BrowseLoadTest test = new BrowseLoadTest(SyntheticLibrary.inTempDirectory(size, SEED));
+		test.setPageSize(pageSize);
+		test.setThinkMillis(thinkMillis);
+		test.start();
+		List<String> results = new ArrayList<String>();
+		for (int count : clients) {
+			results.addAll(test.measure(count, warmupMillis, millis));
+		}
+
+		System.out.println();
+		for (String result : results) {
+			System.out.println(result);
+		}
+	}
+}
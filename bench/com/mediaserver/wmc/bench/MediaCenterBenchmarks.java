@@ -0,0 +1,288 @@
+package com.mediaserver.wmc.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.cfs.io.FileTreeEnumeration;
+import com.cfs.progress.ProgressableObjectMonitor;
+import com.mediaserver.wmc.CategoryTreeNode;
+import com.mediaserver.wmc.FacetIndex;
+import com.mediaserver.wmc.LibraryImage;
+import com.mediaserver.wmc.LibraryScanner;
+import com.mediaserver.wmc.LibrarySnapshot;
+import com.mediaserver.wmc.ScanIndex;
+import com.mediaserver.wmc.TitleSet;
+import com.mediaserver.wmc.WindowsMediaCenterFilter;
+import com.mediaserver.wmc.WindowsMediaCenterInfo;
+import com.mediaserver.wmc.WindowsMediaCenterManager;
+
+/**
+ * Benchmarks the library against generated libraries of 1k, 10k and 100k titles.
+ * <pre>
+ * java com.mediaserver.wmc.bench.MediaCenterBenchmarks [-sizes 1000,10000] [-wi 3] [-i 5] [-time 1000] [benchmark ...]
+ * </pre>
+ * Benchmark names are matched as prefixes; with none given everything runs.
+ */
+public class MediaCenterBenchmarks {
+	private static final long SEED = 20120301L;
+	private static final int PARSE_BATCH = 1000;
+
+	private final SyntheticLibrary library;
+	private final List<String> selected;
+	private final BenchmarkRunner runner;
+	private List<File> diskFiles;
+	private List<WindowsMediaCenterInfo> potentials;
+
+	public MediaCenterBenchmarks(SyntheticLibrary library, BenchmarkRunner runner, List<String> selected) {
+		this.library = library;
+		this.runner = runner;
+		this.selected = selected;
+	}
+
+	public void run() throws Exception {
+		library.install();
+		String parameters = "titles=" + library.getTitleCount();
+		String basePath = library.getMovieFolder().getPath();
+
+		diskFiles = new ArrayList<File>();
+		FileTreeEnumeration fileEnumeration = WindowsMediaCenterManager.buildFileTreeEnumeration(basePath);
+		while (fileEnumeration.hasMoreElements()) {
+			diskFiles.add(fileEnumeration.nextElement());
+		}
+		potentials = newManager().getPotentials();
+
+		run(parameters, parse(basePath));
+		run(parameters, refreshCache(false));
+		run(parameters, refreshCache(true));
+		run(parameters, openImage());
+		run(parameters, buildChildren("buildChildrenFlat", flatCategories(), false));
+		run(parameters, buildChildren("buildChildrenRanges", rangeCategories(), false));
+		run(parameters, buildChildren("addNodeCategoriesColdFlat", flatCategories(), true));
+		run(parameters, buildChildren("addNodeCategoriesColdRanges", rangeCategories(), true));
+		run(parameters, sortTitles());
+	}
+
+	private void run(String parameters, BenchmarkRunner.Benchmark benchmark) throws Exception {
+		if (selected.isEmpty()) {
+			runner.run(parameters, benchmark);
+			return;
+		}
+
+		for (String name : selected) {
+			if (benchmark.getName().startsWith(name)) {
+				runner.run(parameters, benchmark);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Parsing dvdid files and their metadata into titles, one batch of files per invocation.
+	 */
+	private BenchmarkRunner.Benchmark parse(final String basePath) {
+		final int batch = Math.min(PARSE_BATCH, diskFiles.size());
+		return new BenchmarkRunner.Benchmark("parse", batch) {
+			private int next;
+
+			@Override
+			protected Object run() {
+				WindowsMediaCenterInfo info = null;
+				for (int t = 0; t < batch; t++) {
+					info = new WindowsMediaCenterInfo(diskFiles.get(next), basePath);
+					next = (next + 1) % diskFiles.size();
+				}
+				return info;
+			}
+		};
+	}
+
+	/**
+	 * A full refresh, either parsing everything or with a scan index from the previous refresh, timed
+	 * until the new library is published.
+	 */
+	private BenchmarkRunner.Benchmark refreshCache(final boolean indexed) {
+		return new BenchmarkRunner.Benchmark(indexed ? "refreshCacheIndexed" : "refreshCache", 1) {
+			private WindowsMediaCenterManager<Object> manager;
+
+			@Override
+			protected void setUp() throws Exception {
+				manager = new WindowsMediaCenterManager<Object>(new BenchUPNPObject());
+				LibraryScanner scanner = new LibraryScanner();
+				if (indexed) {
+					File indexFile = new File(library.getDirectory(), "bench-scan-index.ser");
+					ScanIndex scanIndex = new ScanIndex(indexFile);
+					scanIndex.clear();
+					scanner.setScanIndex(scanIndex);
+				}
+				manager.setLibraryScanner(scanner);
+				manager.setLibraryImage(null);
+				manager.setConfiguredFolders(Collections.singletonList(library.getMovieFolder().getPath()));
+			}
+
+			@Override
+			protected Object run() throws Exception {
+				return manager.refresh(QUIET).get();
+			}
+		};
+	}
+
+	/**
+	 * Opening the library image a refresh leaves behind and reading the first page of titles, which is
+	 * all serving the library costs at startup before the rescan.
+	 */
+	private BenchmarkRunner.Benchmark openImage() {
+		return new BenchmarkRunner.Benchmark("openImage", 1) {
+			private LibraryImage image;
+			private long generation;
+
+			@Override
+			protected void setUp() throws Exception {
+				image = new LibraryImage(new File(library.getDirectory(), "bench-library.img"));
+				FacetIndex index = ((TitleSet)potentials).getIndex();
+				image.write(new LibrarySnapshot(index, Collections.singletonList(library.getMovieFolder().getPath())), flatCategories());
+			}
+
+			@Override
+			protected Object run() throws Exception {
+				List<WindowsMediaCenterInfo> titles = image.read(++generation).getTitles();
+				List<String> page = new ArrayList<String>();
+				for (int t = 0; t < Math.min(20, titles.size()); t++) {
+					page.add(titles.get(t).getTitle());
+				}
+				return page;
+			}
+
+			@Override
+			protected void tearDown() throws Exception {
+				image.delete();
+			}
+		};
+	}
+
+	/**
+	 * Browsing a container of category children. Warm runs reuse the library's facets the way repeat
+	 * browses do; cold runs index the titles again every time, like the first browse after a refresh.
+	 */
+	private BenchmarkRunner.Benchmark buildChildren(String name, final CategoryTreeNode categories, final boolean cold) {
+		return new BenchmarkRunner.Benchmark(name, 1) {
+			private final BenchUPNPObject node = new BenchUPNPObject();
+			private long generation;
+
+			@Override
+			protected Object run() {
+				List<WindowsMediaCenterInfo> titles = potentials;
+				if (cold)
+					titles = new FacetIndex(((TitleSet)potentials).getIndex().getStore(), ++generation).getAllTitles();
+
+				new WindowsMediaCenterFilter<Object>(node, null, categories, titles).buildChildren();
+				return node.getChildCount();
+			}
+		};
+	}
+
+	/**
+	 * Sorting the library from a shuffled order with WindowsMediaCenterInfo.compareTo.
+	 */
+	private BenchmarkRunner.Benchmark sortTitles() {
+		final List<WindowsMediaCenterInfo> shuffled = new ArrayList<WindowsMediaCenterInfo>(potentials);
+		Collections.shuffle(shuffled, new Random(SEED));
+		return new BenchmarkRunner.Benchmark("compareToSort", 1) {
+			@Override
+			protected Object run() {
+				List<WindowsMediaCenterInfo> titles = new ArrayList<WindowsMediaCenterInfo>(shuffled);
+				Collections.sort(titles);
+				return titles.get(0);
+			}
+		};
+	}
+
+	private static CategoryTreeNode flatCategories() {
+		CategoryTreeNode root = new CategoryTreeNode(null, null, false);
+		root.setChildren(Arrays.asList(new CategoryTreeNode[]{
+				new CategoryTreeNode(root, "genre", false),
+				new CategoryTreeNode(root, "studio", false),
+				new CategoryTreeNode(root, "director", false),
+				new CategoryTreeNode(root, "firstFolder", false)}));
+		return root;
+	}
+
+	private static CategoryTreeNode rangeCategories() {
+		CategoryTreeNode root = new CategoryTreeNode(null, null, false);
+		root.setChildren(Arrays.asList(new CategoryTreeNode[]{
+				new CategoryTreeNode(root, "title", 25),
+				new CategoryTreeNode(root, "leadPerformer", 25),
+				new CategoryTreeNode(root, "releaseYear", 10)}));
+		return root;
+	}
+
+	private BenchUPNPObject newManager() {
+		BenchUPNPObject root = new BenchUPNPObject();
+		WindowsMediaCenterManager<Object> manager = new WindowsMediaCenterManager<Object>(root);
+		manager.setLibraryScanner(new LibraryScanner());
+		manager.setLibraryImage(null);
+		manager.setConfiguredFolders(Collections.singletonList(library.getMovieFolder().getPath()));
+		manager.refreshCache(QUIET);
+		return root;
+	}
+
+	static final ProgressableObjectMonitor QUIET = new ProgressableObjectMonitor() {
+		@Override
+		public void startMonitor() {
+		}
+
+		@Override
+		public void endMonitor() {
+		}
+
+		@Override
+		public void setMinimum(int minimum) {
+		}
+
+		@Override
+		public void setMaximum(int maximum) {
+		}
+
+		@Override
+		public void setProgress(int progress) {
+		}
+
+		@Override
+		public void setNote(String note) {
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		List<Integer> sizes = Arrays.asList(1000, 10000, 100000);
+		List<String> selected = new ArrayList<String>();
+		for (int t = 0; t < args.length; t++) {
+			if (args[t].equals("-sizes")) {
+				sizes = new ArrayList<Integer>();
+				for (String size : args[++t].split(",")) {
+					sizes.add(Integer.valueOf(size.trim()));
+				}
+			} else if (args[t].equals("-wi")) {
+				runner.setWarmupIterations(Integer.parseInt(args[++t]));
+			} else if (args[t].equals("-i")) {
+				runner.setMeasurementIterations(Integer.parseInt(args[++t]));
+			} else if (args[t].equals("-time")) {
+				runner.setIterationMillis(Long.parseLong(args[++t]));
+			} else {
+				selected.add(args[t]);
+			}
+		}
+
+		for (int size : sizes) {
+			new MediaCenterBenchmarks(SyntheticLibrary.inTempDirectory(size, SEED), runner, selected).run();
+		}
+
+		System.out.println();
+		for (String result : runner.getResults()) {
+			System.out.println(result);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.mediaserver.wmc.bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.mediaserver.wmc.CategoryTreeNode;
+import com.mediaserver.wmc.PagedUPNPObject;
+import com.mediaserver.wmc.WindowsMediaCenterInfo;
+
+/**
+ * A UPnP node kept in memory the way a media server keeps one for a renderer: containers it's given
+ * become child nodes that can be browsed in turn, video items are kept as they are. One renderer's
+ * session owns its nodes, so they aren't shared between threads.
+ */
+public class RendererUPNPObject implements PagedUPNPObject<Object> {
+	private final String thumbnailName;
+	private CategoryTreeNode node;
+	private Collection<WindowsMediaCenterInfo> potentials;
+	private final List<Object> children = new ArrayList<Object>();
+	private int startingIndex;
+	private int totalChildCount;
+
+	public RendererUPNPObject() {
+		this(null, null, null);
+	}
+
+	public RendererUPNPObject(String thumbnailName, CategoryTreeNode node, Collection<WindowsMediaCenterInfo> potentials) {
+		this.thumbnailName = thumbnailName;
+		this.node = node;
+		this.potentials = potentials;
+	}
+
+	/**
+	 * Children are RendererUPNPObjects for containers and WindowsMediaCenterInfos for video items.
+	 */
+	@Override
+	public List<Object> getChildren() {
+		return children;
+	}
+
+	@Override
+	public void setNode(CategoryTreeNode node, List<WindowsMediaCenterInfo> potentials) {
+		this.node = node;
+		this.potentials = potentials;
+	}
+
+	@Override
+	public void addVideoItem(WindowsMediaCenterInfo info) {
+		children.add(info);
+	}
+
+	@Override
+	public void addContainer(String thumbnailName, CategoryTreeNode node, Collection<WindowsMediaCenterInfo> potentials) {
+		children.add(new RendererUPNPObject(thumbnailName, node, potentials));
+	}
+
+	@Override
+	public void clearChildren() {
+		children.clear();
+	}
+
+	@Override
+	public void startChildPage(int startingIndex, int totalChildCount) {
+		this.startingIndex = startingIndex;
+		this.totalChildCount = totalChildCount;
+	}
+
+	public String getThumbnailName() {
+		return thumbnailName;
+	}
+
+	public CategoryTreeNode getNode() {
+		return node;
+	}
+
+	public Collection<WindowsMediaCenterInfo> getPotentials() {
+		return potentials;
+	}
+
+	public int getStartingIndex() {
+		return startingIndex;
+	}
+
+	public int getTotalChildCount() {
+		return totalChildCount;
+	}
+}
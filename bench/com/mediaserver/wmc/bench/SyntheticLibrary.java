@@ -0,0 +1,286 @@
+package com.mediaserver.wmc.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mediaserver.wmc.WindowsMediaCenterManager;
+
+/**
+ * Writes a Media Center library that looks like a real one: movie folders grouped into categories and
+ * sub categories, a .dvdid.xml beside a VIDEO_TS folder for every disc, DvdInfoCache METADATA with genre,
+ * director and performer lists, titles and chapters, and DvdCoverCache images. A few discs have no
+ * metadata at all, like discs Media Center never found. The same size and seed always writes the same
+ * library, and a library that has already been written is reused.
+ */
+public class SyntheticLibrary {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SyntheticLibrary.class);
+	private static final String ENCODING = "ISO-8859-1";
+	private static final String COMPLETE_MARKER = "library.complete";
+	private static final String[] GENRES = {"Action", "Adventure", "Animation", "Biography", "Comedy", "Crime", "Documentary",
+		"Drama", "Family", "Fantasy", "Film-Noir", "History", "Horror", "Music", "Musical", "Mystery", "Romance",
+		"Science Fiction", "Short", "Sport", "Suspense", "Thriller", "War", "Western"};
+	private static final String[] RATINGS = {"G", "PG", "PG-13", "R", "NC-17", "NR", ""};
+	private static final String[] LANGUAGES = {"English", "French", "German", "Spanish", "Japanese", "Italian"};
+	private static final String[] CATEGORIES = {"Movies", "Kids", "Classics", "TV Series", "Concerts", "Foreign", "Documentaries", "Imports"};
+	private static final String[] WORDS = {"Last", "Night", "Return", "City", "Blue", "Dark", "Empire", "Secret", "Summer", "River",
+		"Silent", "Iron", "Lost", "Golden", "Storm", "King", "Shadow", "Winter", "Heart", "Road", "Stranger", "Fire", "Island",
+		"Garden", "Midnight", "Crown", "Ghost", "Wild", "Glass", "Hunter", "Broken", "Star", "Ocean", "Falcon", "Thunder"};
+	private static final String[] FIRST_NAMES = {"James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda",
+		"William", "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Charles", "Karen",
+		"Ren\u00e9", "Zo\u00eb", "Bj\u00f6rn", "In\u00e9s"};
+	private static final String[] LAST_NAMES = {"Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis",
+		"Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson",
+		"Martin", "Lee", "Perez", "Thompson", "White", "Harris", "Sanchez", "Clark", "Ramirez", "Lewis", "Robinson", "M\u00fcller"};
+
+	private final File directory;
+	private final int titleCount;
+	private final long seed;
+	private final List<String> people = new ArrayList<String>();
+	private final List<String> studios = new ArrayList<String>();
+
+	public SyntheticLibrary(File directory, int titleCount, long seed) {
+		this.directory = directory;
+		this.titleCount = titleCount;
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the library for this size and seed under the system temp directory.
+	 */
+	public static SyntheticLibrary inTempDirectory(int titleCount, long seed) {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "wmc-bench-" + titleCount + "-" + seed);
+		return new SyntheticLibrary(directory, titleCount, seed);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getTitleCount() {
+		return titleCount;
+	}
+
+	/**
+	 * The folder to hand to WindowsMediaCenterManager.setMediaCenterBase.
+	 */
+	public File getMediaCenterBase() {
+		return new File(directory, "eHome");
+	}
+
+	public File getMovieFolder() {
+		return new File(directory, "Movies");
+	}
+
+	public File getInfoCache() {
+		return new File(getMediaCenterBase(), "DvdInfoCache");
+	}
+
+	public File getCoverCache() {
+		return new File(getMediaCenterBase(), "DvdCoverCache");
+	}
+
+	/**
+	 * Writes the library unless it's already there, then points Media Center at it.
+	 */
+	public SyntheticLibrary install() throws IOException {
+		if (!new File(directory, COMPLETE_MARKER).exists())
+			generate();
+
+		WindowsMediaCenterManager.setMediaCenterBase(getMediaCenterBase().getPath());
+		return this;
+	}
+
+	public void generate() throws IOException {
+		long start = System.currentTimeMillis();
+		LOGGER.info("Writing a " + titleCount + " title library to " + directory);
+		mkdirs(getMovieFolder());
+		mkdirs(getInfoCache());
+		mkdirs(getCoverCache());
+
+		Random random = new Random(seed);
+		//Enough names that the busiest people are on a few dozen discs and most are on one or two
+		for (int t = 0; t < Math.max(50, titleCount / 3); t++) {
+			String name = FIRST_NAMES[t % FIRST_NAMES.length] + " " + LAST_NAMES[(t / FIRST_NAMES.length) % LAST_NAMES.length];
+			people.add(t < FIRST_NAMES.length * LAST_NAMES.length ? name : name + " " + (t / (FIRST_NAMES.length * LAST_NAMES.length) + 1));
+		}
+		for (int t = 0; t < Math.max(10, titleCount / 100); t++) {
+			studios.add(pick(random, WORDS) + " " + pick(random, new String[]{"Pictures", "Films", "Studios", "Entertainment", "Home Video"}));
+		}
+
+		int folderCount = Math.max(1, titleCount / 40);
+		for (int t = 0; t < titleCount; t++) {
+			int folder = random.nextInt(folderCount);
+			String category = CATEGORIES[folder % CATEGORIES.length];
+			//Every third folder is nested one deeper, so flat folders differ from first folders
+			File parent = folder % 3 == 0 ? new File(new File(getMovieFolder(), category), "Shelf " + folder) : new File(getMovieFolder(), category);
+			writeTitle(random, parent, t);
+		}
+
+		new File(directory, COMPLETE_MARKER).createNewFile();
+		LOGGER.info("Wrote " + titleCount + " titles in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private void writeTitle(Random random, File parent, int number) throws IOException {
+		String title = pick(random, WORDS) + " " + pick(random, WORDS) + (random.nextInt(4) == 0 ? " " + (random.nextInt(4) + 2) : "");
+		//Names repeat, the number keeps the folders apart the way a real library's disambiguation would
+		File movieFolder = new File(parent, title + " (" + number + ")");
+		mkdirs(new File(movieFolder, "VIDEO_TS"));
+
+		String id = String.format("%08X|%08X", random.nextInt(), number);
+		StringBuilder disc = new StringBuilder();
+		disc.append("<?xml version=\"1.0\"?>\n<Disc>\n  <Name>").append(escape(title.toUpperCase().replace(' ', '_'))).append("</Name>\n");
+		disc.append("  <ID>").append(id).append("</ID>\n</Disc>\n");
+		write(new File(movieFolder, title + ".dvdid.xml"), disc.toString());
+
+		//Discs Media Center never found metadata for
+		if (random.nextInt(20) == 0)
+			return;
+
+		String coverName = id.replace('|', '-');
+		write(new File(getCoverCache(), "large-" + coverName + ".jpg"), random, 8 * 1024 + random.nextInt(16 * 1024));
+		write(new File(getCoverCache(), "small-" + coverName + ".jpg"), random, 1024 + random.nextInt(2 * 1024));
+
+		StringBuilder metaData = new StringBuilder();
+		metaData.append("<?xml version=\"1.0\" encoding=\"").append(ENCODING).append("\"?>\n<METADATA>\n  <MDR-DVD>\n");
+		element(metaData, 4, "MetadataExpires", "2012-0" + (random.nextInt(9) + 1) + "-1" + random.nextInt(10) + "T10:00:00-05:00");
+		element(metaData, 4, "largeCoverParams", "large/" + coverName + ".jpg");
+		element(metaData, 4, "smallCoverParams", "small/" + coverName + ".jpg");
+		element(metaData, 4, "dvdTitle", title);
+		element(metaData, 4, "leadPerformer", join(pickPeople(random, 1 + random.nextInt(4)), ";"));
+		element(metaData, 4, "director", join(pickPeople(random, random.nextInt(8) == 0 ? 2 : 1), ";"));
+		element(metaData, 4, "MPAARating", pick(random, RATINGS));
+		element(metaData, 4, "genre", join(pickGenres(random), ", "));
+		element(metaData, 4, "studio", studios.get(skewed(random, studios.size())));
+		element(metaData, 4, "releaseDate", (1930 + random.nextInt(83)) + " " + (random.nextInt(12) + 1) + " " + (random.nextInt(28) + 1));
+		element(metaData, 4, "language", pick(random, LANGUAGES));
+		element(metaData, 4, "duration", Integer.toString(80 + random.nextInt(100)));
+		element(metaData, 4, "dataProvider", "AMG");
+		element(metaData, 4, "version", "5.0");
+		element(metaData, 4, "rating", Integer.toString(random.nextInt(11)));
+		int titles = 1 + random.nextInt(4);
+		for (int t = 1; t <= titles; t++) {
+			metaData.append("    <title>\n");
+			element(metaData, 6, "titleNum", Integer.toString(t));
+			element(metaData, 6, "titleTitle", t == 1 ? title : title + " - Extra " + t);
+			element(metaData, 6, "synopsis", synopsis(random));
+			int chapters = 8 + random.nextInt(23);
+			for (int c = 1; c <= chapters; c++) {
+				metaData.append("      <chapter>\n");
+				element(metaData, 8, "chapterNum", Integer.toString(c));
+				element(metaData, 8, "chapterTitle", "Chapter " + c + ": " + pick(random, WORDS) + " " + pick(random, WORDS));
+				metaData.append("      </chapter>\n");
+			}
+			metaData.append("    </title>\n");
+		}
+		metaData.append("  </MDR-DVD>\n");
+		element(metaData, 2, "DvdId", id);
+		element(metaData, 2, "NeedsAttribution", "false");
+		metaData.append("</METADATA>\n");
+		write(new File(getInfoCache(), coverName + ".xml"), metaData.toString());
+	}
+
+	private List<String> pickPeople(Random random, int count) {
+		List<String> picked = new ArrayList<String>(count);
+		for (int t = 0; t < count; t++) {
+			picked.add(people.get(skewed(random, people.size())));
+		}
+		return picked;
+	}
+
+	private static List<String> pickGenres(Random random) {
+		List<String> picked = new ArrayList<String>();
+		int count = 1 + random.nextInt(3);
+		for (int t = 0; t < count; t++) {
+			String genre = GENRES[skewed(random, GENRES.length)];
+			if (!picked.contains(genre))
+				picked.add(genre);
+		}
+		return picked;
+	}
+
+	/**
+	 * Picks low indexes far more often than high ones, the way a few studios and actors dominate a collection.
+	 */
+	private static int skewed(Random random, int size) {
+		double value = random.nextDouble();
+		return (int)(value * value * value * size);
+	}
+
+	private static String synopsis(Random random) {
+		StringBuilder synopsis = new StringBuilder();
+		int words = 30 + random.nextInt(90);
+		for (int t = 0; t < words; t++) {
+			synopsis.append(t == 0 ? "" : " ").append(pick(random, WORDS).toLowerCase());
+		}
+		return synopsis.append('.').toString();
+	}
+
+	private static String pick(Random random, String[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private static String join(List<String> values, String separator) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values) {
+			if (joined.length() > 0)
+				joined.append(separator);
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	private static void element(StringBuilder xml, int indent, String name, String value) {
+		for (int t = 0; t < indent; t++) {
+			xml.append(' ');
+		}
+		xml.append('<').append(name).append('>').append(escape(value)).append("</").append(name).append(">\n");
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static void mkdirs(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Couldn't create " + directory);
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING));
+		try {
+			writer.write(contents);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void write(File file, Random random, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		//Enough of a JPEG header that anything sniffing the type is satisfied
+		bytes[0] = (byte)0xFF;
+		bytes[1] = (byte)0xD8;
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			stream.write(bytes);
+		} finally {
+			stream.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int titleCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		File directory = args.length > 1 ? new File(args[1]) : inTempDirectory(titleCount, 1).getDirectory();
+		new SyntheticLibrary(directory, titleCount, 1).generate();
+	}
+}
@@ -0,0 +1,44 @@
+package com.mediaserver.wmc;
+
+import java.util.Collection;
+
+/**
+ * A container a WindowsMediaCenterFilter will hand to its native node: the category it represents and a
+ * view of the titles beneath it.
+ */
+public class BrowseChild {
+	private final String thumbnailName;
+	private final CategoryTreeNode node;
+	private final Collection<WindowsMediaCenterInfo> members;
+
+	public BrowseChild(String thumbnailName, CategoryTreeNode node, Collection<WindowsMediaCenterInfo> members) {
+		this.thumbnailName = thumbnailName;
+		this.node = node;
+		this.members = members;
+	}
+
+	public String getThumbnailName() {
+		return thumbnailName;
+	}
+
+	public CategoryTreeNode getNode() {
+		return node;
+	}
+
+	public Collection<WindowsMediaCenterInfo> getMembers() {
+		return members;
+	}
+
+	public int getMemberCount() {
+		return members.size();
+	}
+
+	void addTo(UPNPObject<?> nativeNode) {
+		nativeNode.addContainer(thumbnailName, node, members);
+	}
+
+	@Override
+	public String toString() {
+		return node.getNodeName() + " (" + members.size() + ")";
+	}
+}
@@ -0,0 +1,81 @@
+package com.mediaserver.wmc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a container's children as WindowsMediaCenterFilter.browse worked them out: where the page
+ * starts, how many children there are in all and the page itself, containers or video items. A result
+ * never changes once built, so any number of threads can read it, and it's handed to a native node in one
+ * go.
+ */
+public class BrowseResult {
+	private final int startingIndex;
+	private final int totalChildCount;
+	private final List<BrowseChild> containers;
+	private final List<WindowsMediaCenterInfo> items;
+
+	private BrowseResult(int startingIndex, int totalChildCount, List<BrowseChild> containers, List<WindowsMediaCenterInfo> items) {
+		this.startingIndex = startingIndex;
+		this.totalChildCount = totalChildCount;
+		this.containers = containers;
+		this.items = items;
+	}
+
+	static BrowseResult ofContainers(int startingIndex, int totalChildCount, Collection<BrowseChild> containers) {
+		return new BrowseResult(startingIndex, totalChildCount, Collections.unmodifiableList(new ArrayList<BrowseChild>(containers)),
+				Collections.<WindowsMediaCenterInfo>emptyList());
+	}
+
+	static BrowseResult ofItems(int startingIndex, int totalChildCount, Collection<WindowsMediaCenterInfo> items) {
+		return new BrowseResult(startingIndex, totalChildCount, Collections.<BrowseChild>emptyList(),
+				Collections.unmodifiableList(new ArrayList<WindowsMediaCenterInfo>(items)));
+	}
+
+	public int getStartingIndex() {
+		return startingIndex;
+	}
+
+	public int getTotalChildCount() {
+		return totalChildCount;
+	}
+
+	public List<BrowseChild> getContainers() {
+		return containers;
+	}
+
+	public List<WindowsMediaCenterInfo> getItems() {
+		return items;
+	}
+
+	/**
+	 * Returns how many children are on the page.
+	 */
+	public int size() {
+		return containers.size() + items.size();
+	}
+
+	/**
+	 * Replaces the native node's children with the page. The node is locked while it's refilled, so two
+	 * results applied to the same node at once never mix.
+	 */
+	public void applyTo(PagedUPNPObject<?> nativeNode) {
+		synchronized (nativeNode) {
+			nativeNode.clearChildren();
+			nativeNode.startChildPage(startingIndex, totalChildCount);
+			for (WindowsMediaCenterInfo item : items) {
+				nativeNode.addVideoItem(item);
+			}
+			for (BrowseChild container : containers) {
+				container.addTo(nativeNode);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return size() + " of " + totalChildCount + " children from " + startingIndex;
+	}
+}
@@ -0,0 +1,385 @@
+package com.mediaserver.wmc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * How many titles sit under every path through a category tree, counted in one pass over the library. A
+ * node stands for the titles a path of property values picks from the root, and holds, for each property
+ * the categories below it group by, the values those titles have, in order, with a node for each. A
+ * container can so say how many children it has, and each of them how many it has, without building any.
+ * <p>
+ * Counts are built for one FacetIndex the first time they're wanted and carried to the next generation
+ * by counting just the titles a LibraryDelta changed.
+ */
+public class CategoryCounts {
+	private final CategoryTreeNode categories;
+	private final Plan plan;
+	private final Node root;
+
+	/**
+	 * The properties grouped under a node and, for each, the plan of the nodes beneath its values.
+	 */
+	private static class Plan {
+		private final String[] properties;
+		private final List<Comparator<String>> valueOrders;
+		private final Plan[] next;
+
+		private Plan(List<CategoryTreeNode> definitions) {
+			//Sibling categories of the same property group the same titles the same way, so they share
+			Map<String, List<CategoryTreeNode>> children = new LinkedHashMap<String, List<CategoryTreeNode>>();
+			for (CategoryTreeNode definition : definitions) {
+				if (definition.getProperty() == null || !PropertyAccessor.isBrowsable(definition.getProperty()))
+					continue;
+
+				List<CategoryTreeNode> propertyChildren = children.get(definition.getProperty());
+				if (propertyChildren == null) {
+					propertyChildren = new ArrayList<CategoryTreeNode>();
+					children.put(definition.getProperty(), propertyChildren);
+				}
+				for (CategoryTreeNode child : definition) {
+					propertyChildren.add(child);
+				}
+			}
+
+			properties = children.keySet().toArray(new String[children.size()]);
+			valueOrders = new ArrayList<Comparator<String>>(properties.length);
+			next = new Plan[properties.length];
+			for (int t = 0; t < properties.length; t++) {
+				valueOrders.add(PropertyAccessor.forProperty(properties[t]).getValueOrder());
+				next[t] = new Plan(children.get(properties[t]));
+			}
+		}
+
+		private void collectProperties(Set<String> collected) {
+			collected.addAll(Arrays.asList(properties));
+			for (Plan child : next) {
+				child.collectProperties(collected);
+			}
+		}
+	}
+
+	/**
+	 * The titles picked by one path of values: how many there are and, per property grouped beneath
+	 * them, their values in value order with the node of each.
+	 */
+	public static class Node {
+		private final int titleCount;
+		private final String[] properties;
+		private final List<Comparator<String>> valueOrders;
+		private final String[][] values;
+		private final Node[][] children;
+
+		private Node(int titleCount, Plan plan, String[][] values, Node[][] children) {
+			this.titleCount = titleCount;
+			this.properties = plan.properties;
+			this.valueOrders = plan.valueOrders;
+			this.values = values;
+			this.children = children;
+		}
+
+		public int getTitleCount() {
+			return titleCount;
+		}
+
+		/**
+		 * Returns the values these titles have for the property, null if the categories don't group by it
+		 * here.
+		 */
+		public List<String> getValues(String property) {
+			int group = indexOf(property);
+			return group < 0 ? null : Collections.unmodifiableList(Arrays.asList(values[group]));
+		}
+
+		/**
+		 * Returns how many values these titles have for the property, -1 if the categories don't group by
+		 * it here.
+		 */
+		public int getValueCount(String property) {
+			int group = indexOf(property);
+			return group < 0 ? -1 : values[group].length;
+		}
+
+		/**
+		 * Returns the node of the titles that also have the value, null if none do.
+		 */
+		public Node getChild(String property, String value) {
+			int group = indexOf(property);
+			if (group < 0)
+				return null;
+
+			int position = Arrays.binarySearch(values[group], value, valueOrders.get(group));
+			return position < 0 ? null : children[group][position];
+		}
+
+		private int indexOf(String property) {
+			for (int t = 0; t < properties.length; t++) {
+				if (properties[t].equals(property))
+					return t;
+			}
+			return -1;
+		}
+
+		private long estimateBytes() {
+			long bytes = 40 + 16 + 4L * properties.length;
+			for (int group = 0; group < properties.length; group++) {
+				bytes += 32 + 8L * values[group].length;
+				for (Node child : children[group]) {
+					bytes += child.estimateBytes();
+				}
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * A node while counting. Values are hashed rather than sorted until the counts are done.
+	 */
+	private static class Counter {
+		private int count;
+		private final List<Map<String, Counter>> groups;
+
+		private Counter(Plan plan) {
+			groups = new ArrayList<Map<String, Counter>>(plan.properties.length);
+			for (int t = 0; t < plan.properties.length; t++) {
+				groups.add(new HashMap<String, Counter>());
+			}
+		}
+
+		private Counter(Plan plan, Node node) {
+			this(plan);
+			count = node.titleCount;
+			for (int group = 0; group < plan.properties.length; group++) {
+				for (int t = 0; t < node.values[group].length; t++) {
+					groups.get(group).put(node.values[group][t], new Counter(plan.next[group], node.children[group][t]));
+				}
+			}
+		}
+
+		private Counter child(Plan plan, int group, String value) {
+			Counter child = groups.get(group).get(value);
+			if (child == null) {
+				child = new Counter(plan.next[group]);
+				groups.get(group).put(value, child);
+			}
+			return child;
+		}
+
+		private Node toNode(Plan plan) {
+			String[][] values = new String[plan.properties.length][];
+			Node[][] children = new Node[plan.properties.length][];
+			for (int group = 0; group < plan.properties.length; group++) {
+				Map<String, Counter> counters = groups.get(group);
+				//Sorted the way the facet of the property is, so these come out in browsing order
+				values[group] = counters.keySet().toArray(new String[counters.size()]);
+				Arrays.sort(values[group], plan.valueOrders.get(group));
+				children[group] = new Node[values[group].length];
+				for (int t = 0; t < values[group].length; t++) {
+					children[group][t] = counters.get(values[group][t]).toNode(plan.next[group]);
+				}
+			}
+			return new Node(count, plan, values, children);
+		}
+	}
+
+	/**
+	 * Every title's values for one property, as positions among the facet's sorted values.
+	 */
+	private static class RowValues {
+		private final String[] values;
+		private final int[] starts;
+		private final int[] positions;
+
+		private RowValues(SortedMap<String, OrdinalSet> facet, int size) {
+			values = facet.keySet().toArray(new String[facet.size()]);
+			starts = new int[size + 1];
+			for (OrdinalSet titles : facet.values()) {
+				OrdinalSet.OrdinalIterator iterator = titles.iterator();
+				while (iterator.hasNext()) {
+					starts[iterator.next() + 1]++;
+				}
+			}
+			for (int row = 0; row < size; row++) {
+				starts[row + 1] += starts[row];
+			}
+
+			positions = new int[starts[size]];
+			int[] filled = Arrays.copyOf(starts, size);
+			int position = 0;
+			for (OrdinalSet titles : facet.values()) {
+				OrdinalSet.OrdinalIterator iterator = titles.iterator();
+				while (iterator.hasNext()) {
+					positions[filled[iterator.next()]++] = position;
+				}
+				position++;
+			}
+		}
+	}
+
+	private CategoryCounts(CategoryTreeNode categories, Plan plan, Node root) {
+		this.categories = categories;
+		this.plan = plan;
+		this.root = root;
+	}
+
+	/**
+	 * Counts every path through the categories over every title of the index.
+	 */
+	public static CategoryCounts build(FacetIndex index, CategoryTreeNode categories) {
+		long start = System.nanoTime();
+		Plan plan = new Plan(topDefinitions(categories));
+		Set<String> properties = new LinkedHashSet<String>();
+		plan.collectProperties(properties);
+		Map<String, RowValues> rowValues = new HashMap<String, RowValues>();
+		for (String property : properties) {
+			rowValues.put(property, new RowValues(index.getFacet(property), index.size()));
+		}
+
+		Counter root = new Counter(plan);
+		for (int row = 0; row < index.size(); row++) {
+			count(plan, root, rowValues, row);
+		}
+		CategoryCounts counts = new CategoryCounts(categories, plan, root.toNode(plan));
+		MediaCenterMetrics.latency("browse.categoryCounts").recordSince(start);
+		return counts;
+	}
+
+	/**
+	 * The root lists the values of its own property when it has one, otherwise its children do.
+	 */
+	private static List<CategoryTreeNode> topDefinitions(CategoryTreeNode categories) {
+		if (categories.getProperty() != null)
+			return Collections.singletonList(categories);
+
+		List<CategoryTreeNode> definitions = new ArrayList<CategoryTreeNode>();
+		for (CategoryTreeNode child : categories) {
+			definitions.add(child);
+		}
+		return definitions;
+	}
+
+	private static void count(Plan plan, Counter counter, Map<String, RowValues> rowValues, int row) {
+		counter.count++;
+		for (int group = 0; group < plan.properties.length; group++) {
+			RowValues values = rowValues.get(plan.properties[group]);
+			for (int t = values.starts[row]; t < values.starts[row + 1]; t++) {
+				count(plan.next[group], counter.child(plan, group, values.values[values.positions[t]]), rowValues, row);
+			}
+		}
+	}
+
+	/**
+	 * Returns the counts of the next library, this one's with the titles the delta removed taken off and
+	 * the ones it added put on, or null if they don't add up to the next library and have to be built.
+	 */
+	public CategoryCounts update(FacetIndex next, LibraryDelta delta) {
+		Counter counter = new Counter(plan, root);
+		apply(counter, delta.getRemoved(), -1);
+		apply(counter, delta.getUpdatedFrom(), -1);
+		apply(counter, delta.getAdded(), 1);
+		apply(counter, delta.getUpdatedTo(), 1);
+		if (counter.count != next.size())
+			return null;
+
+		return new CategoryCounts(categories, plan, counter.toNode(plan));
+	}
+
+	private void apply(Counter counter, List<WindowsMediaCenterInfo> titles, int change) {
+		for (WindowsMediaCenterInfo title : titles) {
+			apply(plan, counter, title, change);
+		}
+	}
+
+	private static void apply(Plan plan, Counter counter, WindowsMediaCenterInfo title, int change) {
+		counter.count += change;
+		Set<String> values = new LinkedHashSet<String>();
+		for (int group = 0; group < plan.properties.length; group++) {
+			values.clear();
+			PropertyAccessor.forProperty(plan.properties[group]).appendValues(title, values);
+			for (String value : values) {
+				Counter child = counter.child(plan, group, value);
+				apply(plan.next[group], child, title, change);
+				if (child.count <= 0)
+					counter.groups.get(group).remove(value);
+			}
+		}
+	}
+
+	public CategoryTreeNode getCategories() {
+		return categories;
+	}
+
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * Finds the node of a TitleSet selection, null if it picked values that aren't single category values,
+	 * like a heading spanning several.
+	 */
+	public Node find(String selection) {
+		if (selection == null)
+			return null;
+
+		Node node = root;
+		Iterator<String> choices = Arrays.asList(selection.split("\n")).iterator();
+		while (node != null && choices.hasNext()) {
+			String choice = choices.next();
+			if (choice.length() == 0)
+				continue;
+
+			int split = choice.indexOf('=');
+			if (split < 0)
+				return null;
+
+			node = node.getChild(choice.substring(0, split), choice.substring(split + 1));
+		}
+		return node;
+	}
+
+	/**
+	 * Returns how many children a container of filterNode over the titles of node has, the way
+	 * WindowsMediaCenterFilter builds them, or -1 if the counts can't tell.
+	 */
+	public static int getChildCount(CategoryTreeNode filterNode, Node node) {
+		if (filterNode.isUseHeading())
+			return 1;
+
+		if (filterNode.getProperty() != null && filterNode.getNodeName() == null)
+			return getChildCount(node, filterNode);
+
+		int count = 0;
+		for (CategoryTreeNode child : filterNode) {
+			int childCount = child.isUseHeading() ? 1 : getChildCount(node, child);
+			if (childCount < 0)
+				return -1;
+
+			count += childCount;
+		}
+		return count;
+	}
+
+	private static int getChildCount(Node node, CategoryTreeNode definition) {
+		int values = node.getValueCount(definition.getProperty());
+		if (values < 0)
+			return -1;
+
+		//Headings of so many entries each, the last taking what's left
+		int entries = definition.getEntriesUnderHeading();
+		return entries > 0 ? (values + entries - 1) / entries : values;
+	}
+
+	public long estimateBytes() {
+		return root.estimateBytes();
+	}
+}
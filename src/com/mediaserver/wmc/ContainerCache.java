@@ -0,0 +1,390 @@
+package com.mediaserver.wmc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Containers that were browsed recently, kept as the children WindowsMediaCenterFilter built for them.
+ * Entries are keyed by the category path and the values picked on the way down it, and stamped with the
+ * library generation they were built from, so an entry is never handed out for another library. A rescan
+ * drops every entry. An edit only drops the containers whose titles it touched: the others are carried to
+ * the new library, their children's titles moved to the rows they have there.
+ * <p>
+ * Looking a container up takes no lock, so any number of renderers read cached children at once. Entries
+ * note roughly when they were last used, and once there are too many the least recently used are evicted
+ * by whoever adds one, never on a lookup. Renderers opening the same container at the same time share
+ * one build: the first builds it and the others wait for its children instead of building their own.
+ */
+public class ContainerCache {
+	public static final String MAXIMUM_ENTRIES_PROPERTY = "com.mediaserver.wmc.containerCacheEntries";
+	public static final int DEFAULT_MAXIMUM_ENTRIES = 512;
+	private static final ContainerCache INSTANCE = new ContainerCache(Integer.getInteger(MAXIMUM_ENTRIES_PROPERTY, DEFAULT_MAXIMUM_ENTRIES));
+
+	//Lookups only touch an entry once a millisecond at most, so a popular one isn't written by every reader
+	private static final long TOUCH_NANOS = 1000000L;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>(64, 0.75f, 16);
+	private final ConcurrentHashMap<BuildKey, FutureTask<List<BrowseChild>>> building = new ConcurrentHashMap<BuildKey, FutureTask<List<BrowseChild>>>();
+	private final StripedCounter sharedBuilds = MediaCenterMetrics.counter("browse.sharedBuilds");
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final StripedCounter carried = MediaCenterMetrics.counter("browse.containerCache.carried");
+	private final Object evictLock = new Object();
+	private volatile int maximumEntries;
+
+	private static class Entry {
+		private final FacetIndex index;
+		private final long generation;
+		private final List<BrowseChild> children;
+		//The values picked to reach the container, null if its children can't be carried to another library
+		private final String selection;
+		private volatile long lastUsed = System.nanoTime();
+
+		private Entry(FacetIndex index, List<BrowseChild> children, String selection) {
+			this.index = index;
+			this.generation = index.getGeneration();
+			this.children = children;
+			this.selection = selection;
+		}
+
+		private void touch() {
+			long now = System.nanoTime();
+			if (now - lastUsed > TOUCH_NANOS)
+				lastUsed = now;
+		}
+	}
+
+
+	//A build under way: the key and the very library it's built from
+	private static class BuildKey {
+		private final String key;
+		private final FacetIndex index;
+
+		private BuildKey(String key, FacetIndex index) {
+			this.key = key;
+			this.index = index;
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() * 31 + System.identityHashCode(index);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof BuildKey && ((BuildKey)obj).index == index && ((BuildKey)obj).key.equals(key);
+		}
+	}
+
+	public ContainerCache(int maximumEntries) {
+		this.maximumEntries = maximumEntries;
+	}
+
+	public static ContainerCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Builds the key for the children of filterNode over titles, or returns null when titles don't say how
+	 * they were picked and so can't be recognised again.
+	 */
+	static String keyOf(String thumbnailIcon, CategoryTreeNode filterNode, TitleSet titles) {
+		if (titles.getSelection() == null)
+			return null;
+
+		StringBuilder key = new StringBuilder();
+		key.append(thumbnailIcon);
+		//The path up to the root names the container, its children decide what it holds
+		for (CategoryTreeNode node = filterNode; node != null; node = (CategoryTreeNode)node.getParent()) {
+			key.append('\n');
+			appendNode(key, node);
+		}
+		key.append("\n>");
+		for (CategoryTreeNode child : filterNode) {
+			key.append('\n');
+			appendNode(key, child);
+		}
+		key.append("\n>").append(titles.getSelection());
+		return key.toString();
+	}
+
+	private static void appendNode(StringBuilder key, CategoryTreeNode node) {
+		key.append(node.getProperty()).append('|').append(node.getNodeName()).append('|')
+				.append(node.isUseHeading()).append('|').append(node.getEntriesUnderHeading());
+	}
+
+	/**
+	 * Returns the children cached under key if they were built from index, otherwise null.
+	 */
+	public List<BrowseChild> get(String key, FacetIndex index) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.index == index && entry.generation == index.getGeneration()) {
+			entry.touch();
+			hits.increment();
+			return entry.children;
+		}
+
+		if (entry != null && entry.generation < index.getGeneration()) {
+			//Built from a library that has since been replaced
+			entries.remove(key, entry);
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Returns the children of filterNode over titles cached under key if they were built from the same
+	 * index, otherwise builds them with builder and caches them. A caller asking while someone else builds
+	 * the same children waits for those.
+	 */
+	public List<BrowseChild> get(String key, TitleSet titles, CategoryTreeNode filterNode, Callable<List<BrowseChild>> builder) {
+		return get(key, titles.getIndex(), isCarried(filterNode) ? titles.getSelection() : null, builder);
+	}
+
+	/**
+	 * Returns the children cached under key if they were built from index, otherwise builds them with
+	 * builder and caches them. Children cached this way are never carried to another library.
+	 */
+	public List<BrowseChild> get(String key, FacetIndex index, Callable<List<BrowseChild>> builder) {
+		return get(key, index, null, builder);
+	}
+
+	private List<BrowseChild> get(final String key, final FacetIndex index, final String selection, final Callable<List<BrowseChild>> builder) {
+		List<BrowseChild> children = get(key, index);
+		if (children != null)
+			return children;
+
+		BuildKey buildKey = new BuildKey(key, index);
+		FutureTask<List<BrowseChild>> task = new FutureTask<List<BrowseChild>>(new Callable<List<BrowseChild>>() {
+			@Override
+			public List<BrowseChild> call() throws Exception {
+				return put(key, index, builder.call(), selection);
+			}
+		});
+		FutureTask<List<BrowseChild>> running = building.putIfAbsent(buildKey, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				//Cached before it's taken off, so nobody in between builds it again
+				building.remove(buildKey, task);
+			}
+		} else {
+			sharedBuilds.increment();
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return build(builder);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static List<BrowseChild> build(Callable<List<BrowseChild>> builder) {
+		try {
+			return Collections.unmodifiableList(builder.call());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Headings pick a span of values, which a delta can't be matched against, so containers at or below
+	 * one are never carried to another library.
+	 */
+	private static boolean isCarried(CategoryTreeNode filterNode) {
+		if (filterNode.getNodeName() != null && filterNode.getEntriesUnderHeading() > 0)
+			return false;
+
+		for (CategoryTreeNode node = (CategoryTreeNode)filterNode.getParent(); node != null; node = (CategoryTreeNode)node.getParent()) {
+			if (node.getEntriesUnderHeading() > 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Caches children built from index and returns the list that was cached, which can't be changed.
+	 * Children built from an older library than the ones cached under the key aren't cached.
+	 */
+	public List<BrowseChild> put(String key, FacetIndex index, List<BrowseChild> children) {
+		return put(key, index, children, null);
+	}
+
+	private List<BrowseChild> put(String key, FacetIndex index, List<BrowseChild> children, String selection) {
+		List<BrowseChild> cached = Collections.unmodifiableList(children);
+		if (maximumEntries <= 0)
+			return cached;
+
+		Entry entry = new Entry(index, cached, selection);
+		while (true) {
+			Entry current = entries.putIfAbsent(key, entry);
+			if (current == null || (current.generation <= entry.generation && entries.replace(key, current, entry)))
+				break;
+			if (current.generation > entry.generation)
+				return cached;
+		}
+		if (entries.size() > maximumEntries)
+			evict();
+		return cached;
+	}
+
+	/**
+	 * Drops everything built from index, for when a library replaces it.
+	 */
+	public void retire(FacetIndex index) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().index == index)
+				iterator.remove();
+		}
+	}
+
+	/**
+	 * Moves what was built from previous over to next, the library an edit replaced it with, except the
+	 * containers the delta touched, which are dropped like everything retire drops.
+	 */
+	public void carryOver(FacetIndex previous, FacetIndex next, LibraryDelta delta) {
+		long start = System.nanoTime();
+		int[] rows = null;
+		for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+			Entry entry = cached.getValue();
+			if (entry.index != previous)
+				continue;
+
+			List<BrowseChild> children = null;
+			if (entry.selection != null && !delta.isAffected(entry.selection)) {
+				if (rows == null)
+					rows = mapRows(previous, next);
+				children = rebind(entry.children, previous, next, rows);
+			}
+			if (children == null) {
+				entries.remove(cached.getKey(), entry);
+			} else if (entries.replace(cached.getKey(), entry, new Entry(next, children, entry.selection))) {
+				carried.increment();
+			}
+		}
+		MediaCenterMetrics.latency("browse.containerCache.carryOver").recordSince(start);
+	}
+
+	/**
+	 * Returns the row of next each row of previous became, found by its disc, -1 for those that are gone.
+	 */
+	private static int[] mapRows(FacetIndex previous, FacetIndex next) {
+		LibraryStore nextStore = next.getStore();
+		Map<String, Integer> nextRows = new HashMap<String, Integer>(nextStore.size() * 2);
+		for (int row = 0; row < nextStore.size(); row++) {
+			nextRows.put(nextStore.getString(LibraryStore.DISK_PATH, row), row);
+		}
+
+		LibraryStore previousStore = previous.getStore();
+		int[] rows = new int[previousStore.size()];
+		for (int row = 0; row < rows.length; row++) {
+			Integer nextRow = nextRows.get(previousStore.getString(LibraryStore.DISK_PATH, row));
+			rows[row] = nextRow == null ? -1 : nextRow;
+		}
+		return rows;
+	}
+
+	private static List<BrowseChild> rebind(List<BrowseChild> children, FacetIndex previous, FacetIndex next, int[] rows) {
+		List<BrowseChild> rebound = new ArrayList<BrowseChild>(children.size());
+		for (BrowseChild child : children) {
+			if (!(child.getMembers() instanceof TitleSet) || ((TitleSet)child.getMembers()).getIndex() != previous)
+				return null;
+
+			TitleSet members = ((TitleSet)child.getMembers()).rebind(next, rows);
+			if (members == null)
+				return null;
+			rebound.add(new BrowseChild(child.getThumbnailName(), child.getNode(), members));
+		}
+		return Collections.unmodifiableList(rebound);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getMaximumEntries() {
+		return maximumEntries;
+	}
+
+	public void setMaximumEntries(int maximumEntries) {
+		this.maximumEntries = maximumEntries;
+		evict();
+	}
+
+	public long getHits() {
+		return hits.getCount();
+	}
+
+	public long getMisses() {
+		return misses.getCount();
+	}
+
+	/**
+	 * Returns the fraction of lookups that were answered from the cache, 0 before the first lookup.
+	 */
+	public double getHitRate() {
+		long hitCount = hits.getCount();
+		long lookups = hitCount + misses.getCount();
+		return lookups == 0 ? 0 : hitCount / (double)lookups;
+	}
+
+	/**
+	 * Evicts the least recently used entries down to seven eighths of the maximum, so adding one to a
+	 * full cache doesn't sort it every time.
+	 */
+	private void evict() {
+		synchronized (evictLock) {
+			int maximum = Math.max(maximumEntries, 0);
+			if (entries.size() <= maximum)
+				return;
+
+			//Lookups go on touching entries, so sort what they said when we looked
+			List<String> keys = new ArrayList<String>(entries.size());
+			List<Entry> cached = new ArrayList<Entry>(entries.size());
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				keys.add(entry.getKey());
+				cached.add(entry.getValue());
+			}
+			long[] used = new long[cached.size()];
+			for (int t = 0; t < used.length; t++) {
+				used[t] = cached.get(t).lastUsed;
+			}
+			long[] sorted = used.clone();
+			Arrays.sort(sorted);
+
+			int evictions = used.length - (maximum - maximum / 8);
+			if (evictions <= 0)
+				return;
+			long newestEvicted = sorted[evictions - 1];
+			for (int t = 0; t < used.length && evictions > 0; t++) {
+				if (used[t] <= newestEvicted && entries.remove(keys.get(t), cached.get(t)))
+					evictions--;
+			}
+		}
+	}
+}
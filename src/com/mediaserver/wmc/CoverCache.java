@@ -0,0 +1,113 @@
+package com.mediaserver.wmc;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recently drawn cover images, held as bytes up to a fixed total size. Covers are handed out
+ * as read only ByteBuffers over the cached bytes, so scrolling back over a poster wall doesn't touch the
+ * disk or copy anything.
+ */
+public class CoverCache {
+	public static final String CAPACITY_PROPERTY = "com.mediaserver.wmc.coverCacheBytes";
+	public static final long DEFAULT_CAPACITY = 32L * 1024 * 1024;
+	private static final Log2Histogram READS = MediaCenterMetrics.latency("cover.read");
+
+	private final LinkedHashMap<CoverIndex.Cover, byte[]> covers = new LinkedHashMap<CoverIndex.Cover, byte[]>(64, 0.75f, true);
+	private long capacity = Long.getLong(CAPACITY_PROPERTY, DEFAULT_CAPACITY);
+	private long size;
+	private long hits;
+	private long misses;
+
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public ByteBuffer get(CoverIndex.Cover cover) throws IOException {
+		byte[] bytes;
+		synchronized (this) {
+			bytes = covers.get(cover);
+			if (bytes != null)
+				hits++;
+			else
+				misses++;
+		}
+
+		if (bytes == null) {
+			//Read outside the lock so one slow share doesn't hold up covers that are already cached
+			long start = System.nanoTime();
+			bytes = read(cover);
+			READS.recordSince(start);
+			synchronized (this) {
+				//An image that would push out a good part of the cache on its own isn't worth keeping
+				if (bytes.length <= capacity / 8 && !covers.containsKey(cover)) {
+					covers.put(cover, bytes);
+					size += bytes.length;
+					evict();
+				}
+			}
+		}
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	public synchronized void remove(CoverIndex.Cover cover) {
+		byte[] bytes = covers.remove(cover);
+		if (bytes != null)
+			size -= bytes.length;
+	}
+
+	public synchronized void clear() {
+		covers.clear();
+		size = 0;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<CoverIndex.Cover, byte[]>> entries = covers.entrySet().iterator();
+		while (size > capacity && entries.hasNext()) {
+			size -= entries.next().getValue().length;
+			entries.remove();
+		}
+	}
+
+	private static byte[] read(CoverIndex.Cover cover) throws IOException {
+		FileInputStream stream = new FileInputStream(cover.getFile());
+		try {
+			long length = stream.getChannel().size();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException(cover.getFile() + " is too big to be a cover");
+
+			byte[] bytes = new byte[(int)length];
+			int offset = 0;
+			while (offset < bytes.length) {
+				int read = stream.read(bytes, offset, bytes.length - offset);
+				if (read < 0)
+					throw new IOException(cover.getFile() + " got shorter while it was read");
+				offset += read;
+			}
+			return bytes;
+		} finally {
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package com.mediaserver.wmc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Every image in DvdCoverCache, listed once and keyed by cover parameters the way Media Center names the
+ * files, so resolving a thumbnail is a map lookup instead of a few stat calls. Covers that show up later
+ * come in through LibraryWatcher, or by relisting the directory when a lookup misses and the directory
+ * has changed since it was last listed.
+ */
+public class CoverIndex {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CoverIndex.class);
+	private static final long MISS_RECHECK_MILLIS = 5000;
+	private static final StripedCounter LOOKUPS = MediaCenterMetrics.counter("cover.lookups");
+	private static final StripedCounter MISSES = MediaCenterMetrics.counter("cover.misses");
+	private static volatile CoverIndex instance;
+
+	private final String directoryName;
+	private final File directory;
+	private final Map<String, Cover> covers = new ConcurrentHashMap<String, Cover>();
+	private final CoverCache cache = new CoverCache();
+	private volatile boolean listed = false;
+	private volatile long listedModified;
+	private volatile long lastMissCheck;
+
+	/**
+	 * One cover image as it was when it was listed.
+	 */
+	public static class Cover {
+		private final File file;
+		private final long length;
+		private final long lastModified;
+
+		private Cover(File file, long length, long lastModified) {
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
+
+	public CoverIndex(String directoryName) {
+		this.directoryName = directoryName;
+		this.directory = new File(directoryName);
+	}
+
+	/**
+	 * Returns the index of the current MEDIA_CENTER_COVER_CACHE.
+	 */
+	public static CoverIndex getInstance() {
+		String directoryName = WindowsMediaCenterManager.MEDIA_CENTER_COVER_CACHE;
+		CoverIndex index = instance;
+		if (index != null && index.directoryName.equals(directoryName))
+			return index;
+
+		synchronized (CoverIndex.class) {
+			if (instance == null || !instance.directoryName.equals(directoryName))
+				instance = new CoverIndex(directoryName);
+			return instance;
+		}
+	}
+
+	/**
+	 * Turns cover parameters into the key of the file they name. Media Center replaces slashes with
+	 * dashes, and Windows doesn't care about case.
+	 */
+	public static String toKey(String coverParameters) {
+		if (coverParameters == null || coverParameters.length() == 0)
+			return null;
+
+		return coverParameters.replace('/', '-').toLowerCase(Locale.ENGLISH);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public CoverCache getCache() {
+		return cache;
+	}
+
+	public int size() {
+		ensureListed();
+		return covers.size();
+	}
+
+	public Cover find(String key) {
+		if (key == null)
+			return null;
+
+		ensureListed();
+		LOOKUPS.increment();
+		Cover cover = covers.get(key);
+		if (cover == null && recheckAfterMiss())
+			cover = covers.get(key);
+		if (cover == null)
+			MISSES.increment();
+		return cover;
+	}
+
+	/**
+	 * Returns the large cover if there is one, otherwise the small one.
+	 */
+	public Cover findFirstAvailable(String largeKey, String smallKey) {
+		Cover cover = find(largeKey);
+		return cover != null ? cover : find(smallKey);
+	}
+
+	/**
+	 * Returns the cover's bytes from the cache, reading them if they aren't there. The buffer is read only
+	 * and shared, so callers should duplicate it before handing it to more than one reader.
+	 */
+	public ByteBuffer read(Cover cover) {
+		if (cover == null)
+			return null;
+
+		try {
+			return cache.get(cover);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't read cover " + cover.getFile(), e);
+			//It's most likely gone, let the next lookup find out
+			fileChanged(cover.getFile());
+			return null;
+		}
+	}
+
+	/**
+	 * Updates one file, for watchers that saw it change.
+	 */
+	public void fileChanged(File file) {
+		if (!listed)
+			return;
+
+		String key = file.getName().toLowerCase(Locale.ENGLISH);
+		Cover cover = file.isFile() ? new Cover(file, file.length(), file.lastModified()) : null;
+		Cover previous = cover != null ? covers.put(key, cover) : covers.remove(key);
+		if (previous != null)
+			cache.remove(previous);
+	}
+
+	/**
+	 * Relists the directory now, keeping the covers that haven't changed.
+	 */
+	public synchronized void refresh() {
+		long modified = directory.lastModified();
+		Set<String> seen = new HashSet<String>();
+		if (directory.isDirectory()) {
+			DirectoryStream<Path> stream = null;
+			try {
+				stream = Files.newDirectoryStream(directory.toPath());
+				for (Path path : stream) {
+					//On Windows the attributes come along with the listing, so this isn't another round trip
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					if (!attributes.isRegularFile())
+						continue;
+
+					String key = path.getFileName().toString().toLowerCase(Locale.ENGLISH);
+					long lastModified = attributes.lastModifiedTime().toMillis();
+					seen.add(key);
+					Cover cover = covers.get(key);
+					if (cover == null || cover.length != attributes.size() || cover.lastModified != lastModified) {
+						covers.put(key, new Cover(path.toFile(), attributes.size(), lastModified));
+						if (cover != null)
+							cache.remove(cover);
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.error("Couldn't list Media Center covers in " + directory, e);
+			} finally {
+				if (stream != null)
+					try {stream.close();} catch (IOException e) {}
+			}
+		}
+
+		for (Map.Entry<String, Cover> entry : covers.entrySet()) {
+			if (!seen.contains(entry.getKey())) {
+				covers.remove(entry.getKey());
+				cache.remove(entry.getValue());
+			}
+		}
+		listedModified = modified;
+		listed = true;
+	}
+
+	private void ensureListed() {
+		if (listed)
+			return;
+
+		synchronized (this) {
+			if (!listed)
+				refresh();
+		}
+	}
+
+	/**
+	 * Relists the directory if it changed since the last listing, checking at most every few seconds
+	 * however many lookups miss. Returns true if it was relisted.
+	 */
+	private boolean recheckAfterMiss() {
+		long now = System.currentTimeMillis();
+		if (now - lastMissCheck < MISS_RECHECK_MILLIS)
+			return false;
+
+		lastMissCheck = now;
+		if (directory.lastModified() == listedModified)
+			return false;
+
+		refresh();
+		return true;
+	}
+}
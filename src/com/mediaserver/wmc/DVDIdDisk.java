@@ -1,10 +1,13 @@
 package com.mediaserver.wmc;
 
+import java.io.Serializable;
+
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
 @XmlRootElement(name="Disc")
-public class DVDIdDisk {
+public class DVDIdDisk implements Serializable {
+	private static final long serialVersionUID = -2417083358473913417L;
 	private String name;
 	private String id;
 	
@@ -0,0 +1,10 @@
+package com.mediaserver.wmc;
+
+/**
+ * A UPNPObject that can show what is on a disc: its titles, and the chapters of each title. Nodes that
+ * implement it are filled by WindowsMediaCenterDiscFilter when a renderer opens a disc.
+ */
+public interface DiscUPNPObject<T> extends PagedUPNPObject<T> {
+	public void addTitleItem(WindowsMediaCenterInfo disc, WindowsMediaCenterMetaData.Title title);
+	public void addChapterItem(WindowsMediaCenterInfo disc, WindowsMediaCenterMetaData.Title title, WindowsMediaCenterMetaData.Chapter chapter);
+}
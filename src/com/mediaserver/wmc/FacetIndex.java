@@ -0,0 +1,312 @@
+package com.mediaserver.wmc;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An inverted index from every value of a browse property to the ordinals of the titles that have it.
+ * Ordinals are positions in the sorted title order, so walking a set of ordinals yields titles sorted.
+ * A facet is built the first time its property is browsed and then kept for the life of this library
+ * generation. Ordinals are the rows of the LibraryStore behind the index, so the stored browse
+ * properties are grouped straight from their code columns, and the folder properties of the whole library
+ * straight from the store's FolderTrie. Numeric properties are ordered by number, and release decades
+ * and duration ranges bucketed off a RangeIndex.
+ */
+public class FacetIndex {
+	private final long generation;
+	private final LibraryStore store;
+	private final TitleSet allTitles;
+	private final Map<String, SortedMap<String, OrdinalSet>> facets = new ConcurrentHashMap<String, SortedMap<String, OrdinalSet>>();
+	private final Map<String, RangeIndex> rangeIndexes = new ConcurrentHashMap<String, RangeIndex>();
+	private volatile CategoryCounts categoryCounts;
+
+	public FacetIndex(Collection<WindowsMediaCenterInfo> potentials, long generation) {
+		this(LibraryStore.copyOf(potentials), generation);
+	}
+
+	public FacetIndex(LibraryStore store, long generation) {
+		this.generation = generation;
+		this.store = store;
+		this.allTitles = TitleSet.all(this);
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	public int size() {
+		return store.size();
+	}
+
+	public WindowsMediaCenterInfo get(int ordinal) {
+		return store.getTitle(ordinal);
+	}
+
+	public LibraryStore getStore() {
+		return store;
+	}
+
+	public TitleSet getAllTitles() {
+		return allTitles;
+	}
+
+	/**
+	 * Returns every value of the property mapped to the titles that have it, in value order.
+	 */
+	public SortedMap<String, OrdinalSet> getFacet(String property) {
+		SortedMap<String, OrdinalSet> facet = facets.get(property);
+		if (facet != null)
+			return facet;
+
+		synchronized (facets) {
+			facet = facets.get(property);
+			if (facet == null) {
+				facet = Collections.unmodifiableSortedMap(group(PropertyAccessor.forProperty(property), allTitles.getOrdinals()));
+				facets.put(property, facet);
+			}
+			return facet;
+		}
+	}
+
+	/**
+	 * Returns the titles sorted by a numeric property, sorting them the first time they're asked for.
+	 */
+	public RangeIndex getRangeIndex(String property) {
+		if (!RangeIndex.isNumeric(property))
+			throw new IllegalArgumentException("No numeric property named: " + property);
+
+		RangeIndex rangeIndex = rangeIndexes.get(property);
+		if (rangeIndex != null)
+			return rangeIndex;
+
+		synchronized (rangeIndexes) {
+			rangeIndex = rangeIndexes.get(property);
+			if (rangeIndex == null) {
+				rangeIndex = RangeIndex.build(store, property);
+				rangeIndexes.put(property, rangeIndex);
+			}
+			return rangeIndex;
+		}
+	}
+
+	/**
+	 * Returns the counts of every path through the categories, counting them the first time they're asked
+	 * for. Only the counts of the last category tree asked for are kept.
+	 */
+	public CategoryCounts getCategoryCounts(CategoryTreeNode categories) {
+		CategoryCounts counts = categoryCounts;
+		if (counts != null && counts.getCategories() == categories)
+			return counts;
+
+		synchronized (this) {
+			counts = categoryCounts;
+			if (counts == null || counts.getCategories() != categories) {
+				counts = CategoryCounts.build(this, categories);
+				categoryCounts = counts;
+			}
+			return counts;
+		}
+	}
+
+	/**
+	 * Returns the category counts if they've been counted, without counting them.
+	 */
+	CategoryCounts peekCategoryCounts() {
+		return categoryCounts;
+	}
+
+	/**
+	 * Takes counts worked out elsewhere, from the library before this one say, unless some were counted
+	 * already.
+	 */
+	synchronized void setCategoryCounts(CategoryCounts counts) {
+		if (categoryCounts == null)
+			categoryCounts = counts;
+	}
+
+	SortedMap<String, OrdinalSet> group(PropertyAccessor accessor, OrdinalSet ordinals) {
+		SortedMap<String, OrdinalSet> facet = groupValues(accessor, ordinals);
+		Comparator<String> valueOrder = accessor.getValueOrder();
+		if (valueOrder == null || facet.comparator() == valueOrder)
+			return facet;
+
+		SortedMap<String, OrdinalSet> ordered = new TreeMap<String, OrdinalSet>(valueOrder);
+		ordered.putAll(facet);
+		return ordered;
+	}
+
+	private SortedMap<String, OrdinalSet> groupValues(PropertyAccessor accessor, OrdinalSet ordinals) {
+		if (RangeIndex.isBucketed(accessor.getProperty()) && ordinals.size() == store.size())
+			return getRangeIndex(RangeIndex.sourceOf(accessor.getProperty())).buckets(accessor.getProperty(), store.size());
+
+		int column = LibraryStore.columnFor(accessor.getProperty());
+		if ((column == LibraryStore.FLAT_FOLDERS || column == LibraryStore.FIRST_FOLDER) && ordinals.size() == store.size())
+			return groupFolders(column);
+		if (column != LibraryStore.NONE)
+			return groupColumn(column, ordinals);
+
+		Map<String, OrdinalBuilder> builders = new TreeMap<String, OrdinalBuilder>();
+		List<String> values = new ArrayList<String>();
+		OrdinalSet.OrdinalIterator iterator = ordinals.iterator();
+		while (iterator.hasNext()) {
+			int ordinal = iterator.next();
+			values.clear();
+			accessor.appendValues(store.getTitle(ordinal), values);
+			for (int t = 0; t < values.size(); t++) {
+				OrdinalBuilder builder = builders.get(values.get(t));
+				if (builder == null) {
+					builder = new OrdinalBuilder();
+					builders.put(values.get(t), builder);
+				}
+				builder.add(ordinal);
+			}
+		}
+
+		SortedMap<String, OrdinalSet> facet = new TreeMap<String, OrdinalSet>();
+		for (Map.Entry<String, OrdinalBuilder> entry : builders.entrySet()) {
+			facet.put(entry.getKey(), entry.getValue().build());
+		}
+		return facet;
+	}
+
+	/**
+	 * Groups by a stored column without decoding a single value: every (code, ordinal) pair is packed into
+	 * a long and sorted, which leaves them grouped by code with ordinals ascending. Dictionaries are sorted,
+	 * so groups come out in value order too.
+	 */
+	private SortedMap<String, OrdinalSet> groupColumn(int column, OrdinalSet ordinals) {
+		String[] dictionary = store.getDictionary(column);
+		IntBuffer codes = store.getCodes(column);
+		boolean list = LibraryStore.isListColumn(column);
+		long[] pairs = new long[list ? Math.max(ordinals.size(), 16) : ordinals.size()];
+		int count = 0;
+		OrdinalSet.OrdinalIterator iterator = ordinals.iterator();
+		while (iterator.hasNext()) {
+			int ordinal = iterator.next();
+			if (!list) {
+				pairs[count++] = pack(dictionary, codes.get(ordinal), ordinal);
+			} else if (store.isNullList(column, ordinal)) {
+				pairs = ensureCapacity(pairs, count + 1);
+				pairs[count++] = pack(dictionary, LibraryStore.NONE, ordinal);
+			} else {
+				int end = store.getListEnd(column, ordinal);
+				for (int position = store.getListStart(column, ordinal); position < end; position++) {
+					pairs = ensureCapacity(pairs, count + 1);
+					pairs[count++] = pack(dictionary, codes.get(position), ordinal);
+				}
+			}
+		}
+		Arrays.sort(pairs, 0, count);
+
+		SortedMap<String, OrdinalSet> facet = new TreeMap<String, OrdinalSet>();
+		OrdinalBuilder builder = new OrdinalBuilder();
+		for (int t = 0; t < count; t++) {
+			builder.add((int)pairs[t]);
+			if (t + 1 == count || (pairs[t + 1] >>> 32) != (pairs[t] >>> 32)) {
+				int code = (int)(pairs[t] >>> 32) - 1;
+				String value = code == LibraryStore.NONE ? PropertyAccessor.UNKNOWN_VALUE : dictionary[code];
+				OrdinalSet group = builder.build();
+				//A title literally valued (Unknown) lands with the missing ones
+				OrdinalSet existing = facet.get(value);
+				facet.put(value, existing == null ? group : existing.or(group));
+				builder = new OrdinalBuilder();
+			}
+		}
+		return facet;
+	}
+
+	/**
+	 * Groups every title by a folder property off the folder tree, whose nodes already hold their titles:
+	 * flatFolders groups are the titles of each folder value, firstFolder groups the titles beneath each
+	 * node second from the root, which is the segment firstFolder takes.
+	 */
+	private SortedMap<String, OrdinalSet> groupFolders(int column) {
+		FolderTrie trie = store.getFolderTrie();
+		SortedMap<String, OrdinalSet> facet = new TreeMap<String, OrdinalSet>();
+		OrdinalSet unknown = trie.getUnknownTitles();
+		if (column == LibraryStore.FLAT_FOLDERS) {
+			String[] dictionary = store.getDictionary(column);
+			for (int code = 0; code < dictionary.length; code++) {
+				OrdinalSet titles = trie.getValueTitles(code);
+				if (dictionary[code].length() == 0)
+					unknown = unknown.or(titles);
+				else if (!titles.isEmpty())
+					addGroup(facet, dictionary[code], titles);
+			}
+		} else {
+			for (int top : trie.getChildren(FolderTrie.ROOT)) {
+				for (int node : trie.getChildren(top)) {
+					if (trie.getName(node).length() != 0)
+						addGroup(facet, trie.getName(node), trie.getItems(node));
+				}
+			}
+			unknown = trie.getNoFirstFolderTitles();
+		}
+		if (!unknown.isEmpty())
+			addGroup(facet, PropertyAccessor.UNKNOWN_VALUE, unknown);
+		return facet;
+	}
+
+	private static void addGroup(SortedMap<String, OrdinalSet> facet, String value, OrdinalSet group) {
+		//A title literally valued (Unknown) lands with the missing ones
+		OrdinalSet existing = facet.get(value);
+		facet.put(value, existing == null ? group : existing.or(group));
+	}
+
+	private static long pack(String[] dictionary, int code, int ordinal) {
+		//Missing and empty values both group as (Unknown)
+		if (code != LibraryStore.NONE && dictionary[code].length() == 0)
+			code = LibraryStore.NONE;
+		return ((long)(code + 1) << 32) | ordinal;
+	}
+
+	private static long[] ensureCapacity(long[] pairs, int capacity) {
+		return capacity <= pairs.length ? pairs : Arrays.copyOf(pairs, Math.max(capacity, pairs.length * 2));
+	}
+
+	public long estimateBytes() {
+		long bytes = store.estimateBytes();
+		if (store.hasFolderTrie())
+			bytes += store.getFolderTrie().estimateBytes();
+		CategoryCounts counts = categoryCounts;
+		if (counts != null)
+			bytes += counts.estimateBytes();
+		for (RangeIndex rangeIndex : rangeIndexes.values()) {
+			bytes += rangeIndex.estimateBytes();
+		}
+		for (SortedMap<String, OrdinalSet> facet : facets.values()) {
+			for (Map.Entry<String, OrdinalSet> entry : facet.entrySet()) {
+				bytes += 40 + entry.getValue().estimateBytes();
+			}
+		}
+		return bytes;
+	}
+
+	private static class OrdinalBuilder {
+		private int[] ordinals = new int[4];
+		private int size;
+
+		public void add(int ordinal) {
+			//A title can list the same genre twice, it still only belongs once
+			if (size > 0 && ordinals[size - 1] == ordinal)
+				return;
+
+			if (size == ordinals.length)
+				ordinals = Arrays.copyOf(ordinals, size * 2);
+			ordinals[size++] = ordinal;
+		}
+
+		public OrdinalSet build() {
+			return OrdinalSet.ofSorted(ordinals, size);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.mediaserver.wmc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The folders titles were found in, below their movie folders, as a tree. Every distinct folder path is a
+ * node with an int ID, split the way firstFolder splits it, and every title refers to the node of its
+ * flatFolders value. Each node knows the titles anywhere beneath it, so folder facets and their counts
+ * come straight off the tree. A store builds its tree the first time a folder facet is wanted.
+ */
+public class FolderTrie {
+	public static final int ROOT = 0;
+	public static final int NONE = -1;
+
+	private final int[] parents;
+	private final int[] depths;
+	private final String[] names;
+	private final int[][] children;
+	//Per flatFolders code: its node and the titles with exactly that value
+	private final int[] valueNodes;
+	private final OrdinalSet[] valueTitles;
+	private final OrdinalSet[] items;
+	private final OrdinalSet unknownTitles;
+	private final OrdinalSet noFirstFolderTitles;
+	private final int[] rowNodes;
+
+	private FolderTrie(int[] parents, int[] depths, String[] names, int[][] children, int[] valueNodes, OrdinalSet[] valueTitles, OrdinalSet[] items, OrdinalSet unknownTitles, OrdinalSet noFirstFolderTitles, int[] rowNodes) {
+		this.parents = parents;
+		this.depths = depths;
+		this.names = names;
+		this.children = children;
+		this.valueNodes = valueNodes;
+		this.valueTitles = valueTitles;
+		this.items = items;
+		this.unknownTitles = unknownTitles;
+		this.noFirstFolderTitles = noFirstFolderTitles;
+		this.rowNodes = rowNodes;
+	}
+
+	static FolderTrie build(LibraryStore store) {
+		String[] dictionary = store.getDictionary(LibraryStore.FLAT_FOLDERS);
+		List<String> names = new ArrayList<String>();
+		List<Integer> parents = new ArrayList<Integer>();
+		Map<String, Integer> nodes = new HashMap<String, Integer>();
+		names.add("");
+		parents.add(NONE);
+
+		int[] valueNodes = new int[dictionary.length];
+		for (int code = 0; code < dictionary.length; code++) {
+			int node = ROOT;
+			for (String segment : dictionary[code].split(LibraryStore.FILE_SEPARATOR_REGEX)) {
+				String key = node + File.separator + segment;
+				Integer child = nodes.get(key);
+				if (child == null) {
+					child = names.size();
+					names.add(segment);
+					parents.add(node);
+					nodes.put(key, child);
+				}
+				node = child;
+			}
+			valueNodes[code] = node;
+		}
+
+		int nodeCount = names.size();
+		int[] parentIds = new int[nodeCount];
+		int[] depths = new int[nodeCount];
+		int[] childCounts = new int[nodeCount];
+		parentIds[ROOT] = NONE;
+		for (int node = 1; node < nodeCount; node++) {
+			parentIds[node] = parents.get(node);
+			//Parents always get their IDs before their children
+			depths[node] = depths[parentIds[node]] + 1;
+			childCounts[parentIds[node]]++;
+		}
+		final String[] nodeNames = names.toArray(new String[nodeCount]);
+		int[][] children = new int[nodeCount][];
+		for (int node = 0; node < nodeCount; node++) {
+			children[node] = new int[childCounts[node]];
+			childCounts[node] = 0;
+		}
+		for (int node = 1; node < nodeCount; node++) {
+			children[parentIds[node]][childCounts[parentIds[node]]++] = node;
+		}
+		Comparator<Integer> byName = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return nodeNames[o1].compareTo(nodeNames[o2]);
+			}
+		};
+		for (int node = 0; node < nodeCount; node++) {
+			Integer[] sorted = new Integer[children[node].length];
+			for (int t = 0; t < sorted.length; t++) {
+				sorted[t] = children[node][t];
+			}
+			Arrays.sort(sorted, byName);
+			for (int t = 0; t < sorted.length; t++) {
+				children[node][t] = sorted[t];
+			}
+		}
+
+		//Rows are visited in order, so every node's titles are collected already sorted
+		OrdinalCollector[] valueCollectors = new OrdinalCollector[dictionary.length];
+		OrdinalCollector[] itemCollectors = new OrdinalCollector[nodeCount];
+		OrdinalCollector unknownCollector = new OrdinalCollector();
+		OrdinalCollector noFirstFolderCollector = new OrdinalCollector();
+		int[] rowNodes = new int[store.size()];
+		for (int row = 0; row < store.size(); row++) {
+			int code = store.getCodes(LibraryStore.FLAT_FOLDERS).get(row);
+			if (code == LibraryStore.NONE) {
+				rowNodes[row] = NONE;
+				unknownCollector.add(row);
+				noFirstFolderCollector.add(row);
+				continue;
+			}
+
+			if (valueCollectors[code] == null)
+				valueCollectors[code] = new OrdinalCollector();
+			valueCollectors[code].add(row);
+			rowNodes[row] = valueNodes[code];
+			boolean firstFolder = false;
+			for (int node = valueNodes[code]; node != NONE; node = parentIds[node]) {
+				if (itemCollectors[node] == null)
+					itemCollectors[node] = new OrdinalCollector();
+				itemCollectors[node].add(row);
+				if (depths[node] == 2 && nodeNames[node].length() != 0)
+					firstFolder = true;
+			}
+			if (!firstFolder)
+				noFirstFolderCollector.add(row);
+		}
+
+		OrdinalSet[] valueTitles = new OrdinalSet[dictionary.length];
+		for (int code = 0; code < dictionary.length; code++) {
+			valueTitles[code] = valueCollectors[code] == null ? OrdinalSet.EMPTY : valueCollectors[code].build();
+		}
+		OrdinalSet[] items = new OrdinalSet[nodeCount];
+		for (int node = 0; node < nodeCount; node++) {
+			items[node] = itemCollectors[node] == null ? OrdinalSet.EMPTY : itemCollectors[node].build();
+		}
+		return new FolderTrie(parentIds, depths, nodeNames, children, valueNodes, valueTitles, items, unknownCollector.build(), noFirstFolderCollector.build(), rowNodes);
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Returns the node of a title's folder, NONE if its folder isn't known.
+	 */
+	public int getNode(int row) {
+		return rowNodes[row];
+	}
+
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	public int getDepth(int node) {
+		return depths[node];
+	}
+
+	public String getName(int node) {
+		return names[node];
+	}
+
+	/**
+	 * Returns the path of the node from the root, joined the way flatFolders values are.
+	 */
+	public String getPath(int node) {
+		if (node == ROOT)
+			return "";
+
+		String parentPath = getPath(parents[node]);
+		return parents[node] == ROOT ? names[node] : parentPath + File.separator + names[node];
+	}
+
+	/**
+	 * Returns the node's children in name order.
+	 */
+	public int[] getChildren(int node) {
+		return children[node].clone();
+	}
+
+	/**
+	 * Returns the titles in the node's folder and every folder beneath it.
+	 */
+	public OrdinalSet getItems(int node) {
+		return items[node];
+	}
+
+	public int getItemCount(int node) {
+		return items[node].size();
+	}
+
+	int getValueNode(int code) {
+		return valueNodes[code];
+	}
+
+	/**
+	 * Returns the titles whose flatFolders value has the code.
+	 */
+	OrdinalSet getValueTitles(int code) {
+		return valueTitles[code];
+	}
+
+	/**
+	 * Returns the titles with no flatFolders value at all.
+	 */
+	OrdinalSet getUnknownTitles() {
+		return unknownTitles;
+	}
+
+	/**
+	 * Returns the titles without a firstFolder: those with no folder, in a top folder itself or below an
+	 * empty second segment.
+	 */
+	OrdinalSet getNoFirstFolderTitles() {
+		return noFirstFolderTitles;
+	}
+
+	public long estimateBytes() {
+		long bytes = unknownTitles.estimateBytes() + noFirstFolderTitles.estimateBytes() + 16 + 12L * names.length + 16 + 4L * rowNodes.length + 16 + 4L * valueNodes.length;
+		for (int node = 0; node < names.length; node++) {
+			bytes += 40 + 2L * names[node].length() + 16 + 4L * children[node].length + items[node].estimateBytes();
+		}
+		for (OrdinalSet titles : valueTitles) {
+			bytes += titles.estimateBytes();
+		}
+		return bytes;
+	}
+
+	private static class OrdinalCollector {
+		private int[] ordinals = new int[4];
+		private int size;
+
+		private void add(int ordinal) {
+			if (size == ordinals.length)
+				ordinals = Arrays.copyOf(ordinals, size * 2);
+			ordinals[size++] = ordinal;
+		}
+
+		private OrdinalSet build() {
+			return OrdinalSet.ofSorted(ordinals, size);
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package com.mediaserver.wmc;
+
+import java.util.List;
+
+/**
+ * Implemented by UPNPObject roots that can patch the containers a LibraryDelta touches instead of
+ * having the whole tree rebuilt through setNode.
+ */
+public interface LibraryChangeListener {
+	public void libraryChanged(LibraryDelta delta, List<WindowsMediaCenterInfo> potentials);
+}
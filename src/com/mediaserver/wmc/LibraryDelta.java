@@ -0,0 +1,126 @@
+package com.mediaserver.wmc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The titles added, updated and removed by one batch of filesystem changes.
+ */
+public class LibraryDelta {
+	private List<WindowsMediaCenterInfo> added = new ArrayList<WindowsMediaCenterInfo>();
+	private List<WindowsMediaCenterInfo> removed = new ArrayList<WindowsMediaCenterInfo>();
+	private List<WindowsMediaCenterInfo> updatedFrom = new ArrayList<WindowsMediaCenterInfo>();
+	private List<WindowsMediaCenterInfo> updatedTo = new ArrayList<WindowsMediaCenterInfo>();
+
+	void add(WindowsMediaCenterInfo info) {
+		added.add(info);
+	}
+
+	void remove(WindowsMediaCenterInfo info) {
+		removed.add(info);
+	}
+
+	void update(WindowsMediaCenterInfo oldInfo, WindowsMediaCenterInfo newInfo) {
+		updatedFrom.add(oldInfo);
+		updatedTo.add(newInfo);
+	}
+
+	public List<WindowsMediaCenterInfo> getAdded() {
+		return Collections.unmodifiableList(added);
+	}
+
+	public List<WindowsMediaCenterInfo> getRemoved() {
+		return Collections.unmodifiableList(removed);
+	}
+
+	public List<WindowsMediaCenterInfo> getUpdatedFrom() {
+		return Collections.unmodifiableList(updatedFrom);
+	}
+
+	public List<WindowsMediaCenterInfo> getUpdatedTo() {
+		return Collections.unmodifiableList(updatedTo);
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && updatedTo.isEmpty();
+	}
+
+	public int size() {
+		return added.size() + removed.size() + updatedTo.size();
+	}
+
+	/**
+	 * Decides whether a container built from the given node could have different children after this delta.
+	 * Containers that list every value of a property, or that group values into headings, are always affected.
+	 */
+	public boolean isAffected(CategoryTreeNode node) {
+		if (isEmpty())
+			return false;
+
+		if (node.getProperty() == null || node.getNodeName() == null || node.getEntriesUnderHeading() > 0)
+			return true;
+
+		PropertyAccessor accessor = PropertyAccessor.forProperty(node.getProperty());
+		List<String> values = new ArrayList<String>();
+		return hasValue(added, accessor, node, values) || hasValue(removed, accessor, node, values) ||
+				hasValue(updatedFrom, accessor, node, values) || hasValue(updatedTo, accessor, node, values);
+	}
+
+	/**
+	 * Decides whether the titles a TitleSet selection picks could be different after this delta: whether
+	 * it adds, removes or changes a title that has, before or after, every value the selection picked.
+	 * Selections that picked anything but single values of browsable properties are always affected.
+	 */
+	public boolean isAffected(String selection) {
+		if (isEmpty())
+			return false;
+
+		List<String> properties = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		for (String choice : selection.split("\n")) {
+			if (choice.length() == 0)
+				continue;
+
+			int split = choice.indexOf('=');
+			if (split < 0 || !PropertyAccessor.isBrowsable(choice.substring(0, split)))
+				return true;
+
+			properties.add(choice.substring(0, split));
+			values.add(choice.substring(split + 1));
+		}
+		return hasValues(added, properties, values) || hasValues(removed, properties, values) ||
+				hasValues(updatedFrom, properties, values) || hasValues(updatedTo, properties, values);
+	}
+
+	private static boolean hasValues(List<WindowsMediaCenterInfo> infos, List<String> properties, List<String> values) {
+		List<String> infoValues = new ArrayList<String>();
+		for (WindowsMediaCenterInfo info : infos) {
+			boolean picked = true;
+			for (int t = 0; t < properties.size() && picked; t++) {
+				infoValues.clear();
+				PropertyAccessor.forProperty(properties.get(t)).appendValues(info, infoValues);
+				picked = infoValues.contains(values.get(t));
+			}
+			if (picked)
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean hasValue(List<WindowsMediaCenterInfo> infos, PropertyAccessor accessor, CategoryTreeNode node, List<String> values) {
+		for (WindowsMediaCenterInfo info : infos) {
+			values.clear();
+			accessor.appendValues(info, values);
+			if (values.contains(node.getNodeName()))
+				return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "added=" + added.size() + " updated=" + updatedTo.size() + " removed=" + removed.size();
+	}
+}
@@ -0,0 +1,419 @@
+package com.mediaserver.wmc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The library written out as one versioned binary file at the end of every refresh, so the next start can
+ * serve it straight away instead of scanning first. The image holds the folders, the TitleOrder the titles
+ * were sorted by, the category tree and every LibraryStore column with its dictionary, laid out so a
+ * store reads its columns in place from a memory mapping. Opening an image costs about the same whatever
+ * the size of the library; values are decoded as they're browsed.
+ * <p>
+ * Every image is written to a file of its own, the image file's name with a generation after it, and the
+ * newest complete one is opened. Windows won't replace or delete a file that is still mapped, which the
+ * image a run started from is, so a new image never has to: older ones are deleted once nothing maps
+ * them, by a later write if not by this one. The same magic number ends the file as starts it, so a
+ * truncated image is never opened; the one before it is opened instead.
+ */
+public class LibraryImage {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LibraryImage.class);
+	public static final String DEFAULT_IMAGE_FILE = "MediaCenterLibrary.img";
+	//"WMCL"
+	private static final int MAGIC = 0x574d434c;
+	private static final int IMAGE_VERSION = 1;
+
+	private final File imageFile;
+
+	public LibraryImage(File imageFile) {
+		this.imageFile = imageFile;
+	}
+
+	/**
+	 * Returns the file the images are named after; each generation is this name with its number after it.
+	 */
+	public File getFile() {
+		return imageFile;
+	}
+
+	/**
+	 * Returns the images there are, newest first: every generation, then an image written before images
+	 * had generations.
+	 */
+	List<File> getImageFiles() {
+		File directory = imageFile.getAbsoluteFile().getParentFile();
+		String prefix = imageFile.getName() + ".";
+		List<Long> generations = new ArrayList<Long>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.length() > prefix.length() && name.startsWith(prefix) && isDigits(name.substring(prefix.length())))
+					generations.add(Long.valueOf(name.substring(prefix.length())));
+			}
+		}
+		Collections.sort(generations, Collections.reverseOrder());
+
+		List<File> images = new ArrayList<File>(generations.size() + 1);
+		for (long generation : generations) {
+			images.add(new File(directory, prefix + generation));
+		}
+		if (imageFile.isFile())
+			images.add(imageFile);
+		return images;
+	}
+
+	private static boolean isDigits(String value) {
+		for (int t = 0; t < value.length(); t++) {
+			if (!Character.isDigit(value.charAt(t)))
+				return false;
+		}
+		return value.length() < 19;
+	}
+
+	private long generationOf(File image) {
+		return image.equals(imageFile) ? 0 : Long.parseLong(image.getName().substring(imageFile.getName().length() + 1));
+	}
+
+	/**
+	 * Deletes every image, as far as nothing maps them.
+	 */
+	public void delete() {
+		for (File image : getImageFiles()) {
+			if (!image.delete())
+				LOGGER.info("Couldn't delete Media Center library image " + image + ", it's probably still open");
+		}
+	}
+
+	/**
+	 * Writes the library and category tree as the next generation of the image, all or nothing, then
+	 * deletes the older ones it can.
+	 */
+	public void write(LibrarySnapshot snapshot, CategoryTreeNode categories) throws IOException {
+		long start = System.nanoTime();
+		LibraryStore store = snapshot.getIndex().getStore();
+		TitleOrder order = TitleOrder.getInstance();
+		List<File> older = getImageFiles();
+		File nextFile = new File(imageFile.getAbsoluteFile().getParentFile(), imageFile.getName() + "." + (older.isEmpty() ? 1 : generationOf(older.get(0)) + 1));
+		File tempFile = new File(nextFile.getPath() + ".tmp");
+		FileOutputStream fileStream = new FileOutputStream(tempFile);
+		try {
+			DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+			stream.writeInt(MAGIC);
+			stream.writeInt(IMAGE_VERSION);
+			stream.writeLong(snapshot.getCreatedMillis());
+			stream.writeInt(store.size());
+			stream.writeInt(LibraryStore.COLUMN_COUNT);
+			writeString(stream, order.getLocale().toString());
+			writeStrings(stream, order.getArticles());
+			writeStrings(stream, snapshot.getFolders());
+			writeBytes(stream, serialize(categories));
+
+			for (int column = 0; column < LibraryStore.COLUMN_COUNT; column++) {
+				writeDictionary(stream, store.getStringDictionary(column));
+				writeInts(stream, store.getCodes(column));
+				if (LibraryStore.isListColumn(column)) {
+					writeInts(stream, store.getListOffsets(column));
+					writeLongs(stream, store.getNullLists(column));
+				}
+			}
+			writeLongs(stream, store.getReleaseDates());
+			writeInts(stream, store.getDurations());
+			stream.writeInt(MAGIC);
+			stream.flush();
+
+			//The new image has to be on disk before it takes over from the old one
+			fileStream.getFD().sync();
+			fileStream.close();
+			try {
+				Files.move(tempFile.toPath(), nextFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), nextFile.toPath());
+			}
+		} finally {
+			try {fileStream.close();} catch (IOException e) {}
+			if (tempFile.exists() && !tempFile.delete())
+				LOGGER.error("Couldn't delete " + tempFile);
+		}
+
+		//An image still mapped can't be deleted on Windows, the next write tries again
+		for (File image : older) {
+			if (!image.delete())
+				LOGGER.debug("Couldn't delete Media Center library image " + image + " yet, it's probably still mapped");
+		}
+		MediaCenterMetrics.latency("image.write").recordSince(start);
+	}
+
+	/**
+	 * Maps the newest complete image and returns the library in it, or null if there's no image or it
+	 * can't be used: it's from another version, or sorted by another TitleOrder than the current one. A
+	 * damaged image is passed over for the one before it.
+	 */
+	public LibrarySnapshot read(long generation) throws IOException {
+		IOException damaged = null;
+		for (File file : getImageFiles()) {
+			try {
+				ByteBuffer image = map(file);
+				if (image != null)
+					return read(file, image, generation);
+			} catch (IOException e) {
+				LOGGER.warn(e.getMessage() + ", trying an older image");
+				damaged = e;
+			}
+		}
+		if (damaged != null)
+			throw damaged;
+		return null;
+	}
+
+	private LibrarySnapshot read(File file, ByteBuffer image, long generation) throws IOException {
+		long start = System.nanoTime();
+		try {
+			long createdMillis = image.getLong();
+			int size = image.getInt();
+			if (image.getInt() != LibraryStore.COLUMN_COUNT) {
+				LOGGER.info("Media Center library image " + file + " has other columns, ignoring it");
+				return null;
+			}
+
+			TitleOrder order = TitleOrder.getInstance();
+			String locale = readString(image);
+			List<String> articles = readStrings(image);
+			if (!locale.equals(order.getLocale().toString()) || !articles.equals(order.getArticles())) {
+				LOGGER.info("Media Center library image " + file + " is sorted for another title order, ignoring it");
+				return null;
+			}
+			List<String> folders = readStrings(image);
+			skip(image, image.getInt());
+
+			StringDictionary[] dictionaries = new StringDictionary[LibraryStore.COLUMN_COUNT];
+			IntBuffer[] codes = new IntBuffer[LibraryStore.COLUMN_COUNT];
+			IntBuffer[] offsets = new IntBuffer[LibraryStore.COLUMN_COUNT];
+			LongBuffer[] nullLists = new LongBuffer[LibraryStore.COLUMN_COUNT];
+			for (int column = 0; column < LibraryStore.COLUMN_COUNT; column++) {
+				dictionaries[column] = readDictionary(image, LibraryStore.isColdColumn(column));
+				codes[column] = readInts(image);
+				if (LibraryStore.isListColumn(column)) {
+					offsets[column] = readInts(image);
+					nullLists[column] = readLongs(image);
+				}
+			}
+			LongBuffer releaseDates = readLongs(image);
+			IntBuffer durations = readInts(image);
+			if (releaseDates.limit() != size || durations.limit() != size)
+				throw new IOException("Media Center library image " + file + " is damaged");
+
+			LibraryStore store = new LibraryStore(size, dictionaries, codes, offsets, nullLists, releaseDates, durations);
+			LibrarySnapshot snapshot = new LibrarySnapshot(new FacetIndex(store, generation), folders, createdMillis);
+			MediaCenterMetrics.latency("image.open").recordSince(start);
+			return snapshot;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Media Center library image " + file + " is damaged", e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Media Center library image " + file + " is damaged", e);
+		}
+	}
+
+	/**
+	 * Returns the category tree saved with the image, null if there's no usable image.
+	 */
+	public CategoryTreeNode readCategories() {
+		ObjectInputStream stream = null;
+		try {
+			ByteBuffer image = null;
+			for (File file : getImageFiles()) {
+				if ((image = map(file)) != null)
+					break;
+			}
+			if (image == null)
+				return null;
+
+			skip(image, 8 + 4 + 4);
+			readString(image);
+			readStrings(image);
+			readStrings(image);
+			byte[] categories = new byte[image.getInt()];
+			image.get(categories);
+			stream = new ObjectInputStream(new ByteArrayInputStream(categories));
+			return (CategoryTreeNode)stream.readObject();
+		} catch (Exception e) {
+			LOGGER.error("Couldn't load Media Center Categories from " + imageFile, e);
+			return null;
+		} finally {
+			if (stream != null)
+				try {stream.close();} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Maps a whole image and returns it positioned after the version, or null if it's missing,
+	 * incomplete or from another version.
+	 */
+	private static ByteBuffer map(File file) throws IOException {
+		if (!file.isFile())
+			return null;
+
+		MappedByteBuffer image;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			//The mapping stays valid once the channel is closed
+			image = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+
+		if (image.limit() < 12 || image.getInt(0) != MAGIC || image.getInt(image.limit() - 4) != MAGIC) {
+			LOGGER.warn("Media Center library image " + file + " is incomplete, ignoring it");
+			return null;
+		}
+		image.position(4);
+		if (image.getInt() != IMAGE_VERSION) {
+			LOGGER.info("Media Center library image " + file + " is from another version, ignoring it");
+			return null;
+		}
+		return image;
+	}
+
+	private static byte[] serialize(CategoryTreeNode categories) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream stream = new ObjectOutputStream(bytes);
+		try {
+			stream.writeObject(categories);
+		} finally {
+			stream.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream stream, String value) throws IOException {
+		writeBytes(stream, value.getBytes(StringDictionary.UTF_8));
+	}
+
+	private static void writeStrings(DataOutputStream stream, List<String> values) throws IOException {
+		stream.writeInt(values.size());
+		for (String value : values) {
+			writeString(stream, value);
+		}
+	}
+
+	private static void writeBytes(DataOutputStream stream, byte[] bytes) throws IOException {
+		stream.writeInt(bytes.length);
+		stream.write(bytes);
+	}
+
+	/**
+	 * Writes a dictionary as the byte offset of every value, then the values back to back in UTF-8.
+	 */
+	private static void writeDictionary(DataOutputStream stream, StringDictionary dictionary) throws IOException {
+		String[] values = dictionary.toArray();
+		byte[][] encoded = new byte[values.length][];
+		int[] offsets = new int[values.length + 1];
+		for (int code = 0; code < values.length; code++) {
+			encoded[code] = values[code].getBytes(StringDictionary.UTF_8);
+			offsets[code + 1] = offsets[code] + encoded[code].length;
+		}
+
+		writeInts(stream, IntBuffer.wrap(offsets));
+		stream.writeInt(offsets[values.length]);
+		for (byte[] value : encoded) {
+			stream.write(value);
+		}
+		align(stream);
+	}
+
+	private static void writeInts(DataOutputStream stream, IntBuffer values) throws IOException {
+		stream.writeInt(values.remaining());
+		while (values.hasRemaining()) {
+			stream.writeInt(values.get());
+		}
+		align(stream);
+	}
+
+	private static void writeLongs(DataOutputStream stream, LongBuffer values) throws IOException {
+		stream.writeInt(values.remaining());
+		align(stream);
+		while (values.hasRemaining()) {
+			stream.writeLong(values.get());
+		}
+	}
+
+	//Keeps every array on an 8 byte boundary of the file, and so of the mapping
+	private static void align(DataOutputStream stream) throws IOException {
+		while (stream.size() % 8 != 0) {
+			stream.writeByte(0);
+		}
+	}
+
+	private static String readString(ByteBuffer image) {
+		byte[] bytes = new byte[image.getInt()];
+		image.get(bytes);
+		return new String(bytes, StringDictionary.UTF_8);
+	}
+
+	private static List<String> readStrings(ByteBuffer image) {
+		int count = image.getInt();
+		List<String> values = new ArrayList<String>(count);
+		for (int t = 0; t < count; t++) {
+			values.add(readString(image));
+		}
+		return values;
+	}
+
+	private static StringDictionary readDictionary(ByteBuffer image, boolean cold) {
+		IntBuffer offsets = readInts(image);
+		ByteBuffer data = slice(image, image.getInt());
+		align(image);
+		return StringDictionary.mapped(data, offsets, cold);
+	}
+
+	private static IntBuffer readInts(ByteBuffer image) {
+		int count = image.getInt();
+		IntBuffer values = slice(image, 4 * count).asIntBuffer();
+		align(image);
+		return values;
+	}
+
+	private static LongBuffer readLongs(ByteBuffer image) {
+		int count = image.getInt();
+		align(image);
+		return slice(image, 8 * count).asLongBuffer();
+	}
+
+	private static ByteBuffer slice(ByteBuffer image, int length) {
+		ByteBuffer slice = image.slice();
+		slice.limit(length);
+		skip(image, length);
+		return slice;
+	}
+
+	private static void skip(ByteBuffer image, int length) {
+		image.position(image.position() + length);
+	}
+
+	private static void align(ByteBuffer image) {
+		image.position((image.position() + 7) & ~7);
+	}
+}
@@ -0,0 +1,15 @@
+package com.mediaserver.wmc;
+
+import java.util.List;
+
+/**
+ * Where the movie folders of the library come from: Media Center's registry settings on Windows, a
+ * properties file or system property anywhere else.
+ */
+public interface LibraryRootSource {
+	/**
+	 * Returns the movie folders in the order Media Center lists them, read again on every call so a
+	 * rescan picks up folders added since.
+	 */
+	public List<String> getRoots();
+}
@@ -0,0 +1,425 @@
+package com.mediaserver.wmc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cfs.io.FileTreeEnumeration;
+import com.cfs.progress.HistoricalTimedProgressMonitor;
+import com.cfs.progress.ProgressableObjectMonitor;
+
+/**
+ * Scans the configured movie folders as a pipeline of stages: directory walk, dvdid read,
+ * XML parse and collect. Every stage hands off through a bounded queue so a fast walker
+ * blocks instead of buffering the whole library in memory. Folders are grouped by the device
+ * they're on; devices are walked and read side by side, with at most readerThreads reads in
+ * flight on any one of them.
+ */
+public class LibraryScanner {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LibraryScanner.class);
+	private static final StripedCounter UNCHANGED = MediaCenterMetrics.counter("scan.unchanged");
+	private static final StripedCounter PARSED = MediaCenterMetrics.counter("scan.parsed");
+	private static final ScanItem END_OF_STAGE = new ScanItem(null, null, -1);
+
+	private int walkerThreads;
+	private int readerThreads;
+	private int parserThreads;
+	private int queueDepth;
+	private ScanIndex scanIndex;
+
+	private static class ScanItem {
+		private final File diskFile;
+		private final RootProgress root;
+		private final int sequence;
+		private long diskLength;
+		private long diskModified;
+		private ScanIndex.Entry unchanged;
+		private byte[] diskContents;
+
+		public ScanItem(File diskFile, RootProgress root, int sequence) {
+			this.diskFile = diskFile;
+			this.root = root;
+			this.sequence = sequence;
+		}
+	}
+
+	private static class ScanResult {
+		private final TitleRecord record;
+		private final int rootIndex;
+		private final int sequence;
+
+		public ScanResult(TitleRecord record, int rootIndex, int sequence) {
+			this.record = record;
+			this.rootIndex = rootIndex;
+			this.sequence = sequence;
+		}
+	}
+
+	private static class RootProgress {
+		private final String fileName;
+		private final int rootIndex;
+		private final ProgressableObjectMonitor monitor;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicBoolean ended = new AtomicBoolean();
+		private volatile boolean walked;
+		private volatile long startNanos;
+
+		public RootProgress(String fileName, int rootIndex, ProgressableObjectMonitor monitor) {
+			this.fileName = fileName;
+			this.rootIndex = rootIndex;
+			this.monitor = monitor;
+		}
+
+		public void itemCompleted() {
+			if (outstanding.decrementAndGet() == 0 && walked)
+				endMonitor();
+		}
+
+		public void walkCompleted() {
+			walked = true;
+			if (outstanding.get() == 0)
+				endMonitor();
+		}
+
+		private void endMonitor() {
+			if (!ended.compareAndSet(false, true))
+				return;
+
+			monitor.endMonitor();
+			monitor.setNote("Complete for: " + fileName);
+			MediaCenterMetrics.latency("refresh.folder." + fileName).recordSince(startNanos);
+		}
+	}
+
+	private class DeviceGroup {
+		private final String name;
+		private final List<RootProgress> roots = new ArrayList<RootProgress>();
+		private final BlockingQueue<ScanItem> readQueue;
+		private final AtomicInteger readersRemaining = new AtomicInteger(readerThreads);
+
+		public DeviceGroup(String name) {
+			this.name = name;
+			this.readQueue = new ArrayBlockingQueue<ScanItem>(queueDepth);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	public LibraryScanner() {
+		this(2, 4, Runtime.getRuntime().availableProcessors(), 256);
+	}
+
+	public LibraryScanner(int walkerThreads, int readerThreads, int parserThreads, int queueDepth) {
+		if (walkerThreads < 1 || readerThreads < 1 || parserThreads < 1 || queueDepth < 1)
+			throw new IllegalArgumentException("Scanner stages need at least one thread and a queue depth of one");
+
+		this.walkerThreads = walkerThreads;
+		this.readerThreads = readerThreads;
+		this.parserThreads = parserThreads;
+		this.queueDepth = queueDepth;
+	}
+
+	public ScanIndex getScanIndex() {
+		return scanIndex;
+	}
+
+	public void setScanIndex(ScanIndex scanIndex) {
+		this.scanIndex = scanIndex;
+	}
+
+	public List<WindowsMediaCenterInfo> scan(List<String> configuredFolders, ProgressableObjectMonitor passedMonitor) throws InterruptedException {
+		return scanLibrary(configuredFolders, passedMonitor).getTitles();
+	}
+
+	public LibraryStore scanLibrary(List<String> configuredFolders, ProgressableObjectMonitor passedMonitor) throws InterruptedException {
+		List<RootProgress> roots = new ArrayList<RootProgress>();
+		for (int t = 0; t < configuredFolders.size(); t++) {
+			String fileName = configuredFolders.get(t);
+			roots.add(new RootProgress(fileName, t, new HistoricalTimedProgressMonitor(fileName, passedMonitor)));
+		}
+		List<DeviceGroup> deviceGroups = groupByDevice(roots);
+		final BlockingQueue<DeviceGroup> devices = new ArrayBlockingQueue<DeviceGroup>(Math.max(1, deviceGroups.size()));
+		devices.addAll(deviceGroups);
+
+		final BlockingQueue<ScanItem> parseQueue = new ArrayBlockingQueue<ScanItem>(queueDepth);
+		final ConcurrentLinkedQueue<ScanResult> results = new ConcurrentLinkedQueue<ScanResult>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		final int walkers = Math.max(1, Math.min(walkerThreads, deviceGroups.size()));
+		final AtomicInteger devicesRemaining = new AtomicInteger(deviceGroups.size());
+		final AtomicInteger parsersRemaining = new AtomicInteger(parserThreads);
+
+		ExecutorService pool = Executors.newFixedThreadPool(walkers + deviceGroups.size() * readerThreads + parserThreads, new ScannerThreadFactory());
+		try {
+			for (int t = 0; t < walkers; t++) {
+				pool.execute(new StageWorker(failure) {
+					@Override
+					protected void process() throws InterruptedException {
+						//A walker takes a whole device, so no two walkers list directories on the same disk
+						DeviceGroup device;
+						while ((device = devices.poll()) != null) {
+							try {
+								for (RootProgress root : device.roots) {
+									walk(root, device.readQueue);
+								}
+							} finally {
+								endStage(device.readQueue, readerThreads);
+							}
+						}
+					}
+				});
+			}
+
+			//Every device gets its own readers, so a slow share holds up its own reads and no others
+			for (final DeviceGroup device : deviceGroups) {
+				for (int t = 0; t < readerThreads; t++) {
+					pool.execute(new StageWorker(failure) {
+						@Override
+						protected void process() throws InterruptedException {
+							try {
+								ScanItem item;
+								while ((item = device.readQueue.take()) != END_OF_STAGE) {
+									read(item);
+									parseQueue.put(item);
+								}
+							} finally {
+								if (device.readersRemaining.decrementAndGet() == 0 && devicesRemaining.decrementAndGet() == 0)
+									endStage(parseQueue, parserThreads);
+							}
+						}
+					});
+				}
+			}
+
+			for (int t = 0; t < parserThreads; t++) {
+				pool.execute(new StageWorker(failure) {
+					@Override
+					protected void process() throws InterruptedException {
+						try {
+							ScanItem item;
+							while ((item = parseQueue.take()) != END_OF_STAGE) {
+								try {
+									if (item.unchanged != null) {
+										//Nothing changed since the last pass, so there is nothing to parse
+										UNCHANGED.increment();
+										if (!item.unchanged.isFailed()) {
+											TitleRecord record = new TitleRecord(item.diskFile, item.root.fileName, item.unchanged.getDisk(), item.unchanged.getMetaData());
+											results.add(new ScanResult(record, item.root.rootIndex, item.sequence));
+										}
+									} else if (item.diskContents != null) {
+										TitleRecord record = TitleRecord.parse(item.diskFile, item.root.fileName, item.diskContents);
+										PARSED.increment();
+										if (scanIndex != null)
+											scanIndex.recordParsed(item.diskFile, item.diskLength, item.diskModified, record);
+										if (record.isParsed())
+											results.add(new ScanResult(record, item.root.rootIndex, item.sequence));
+									}
+								} finally {
+									item.root.itemCompleted();
+								}
+							}
+						} finally {
+							parsersRemaining.decrementAndGet();
+						}
+					}
+				});
+			}
+
+			//With no roots no reader ends the parsers' input; the parsers are running, so this can't fill the queue
+			if (deviceGroups.isEmpty())
+				endStage(parseQueue, parserThreads);
+
+			pool.shutdown();
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+				if (failure.get() != null)
+					pool.shutdownNow();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (failure.get() != null)
+			throw new IllegalStateException("Library scan failed", failure.get());
+		if (parsersRemaining.get() != 0)
+			throw new InterruptedException("Library scan didn't complete");
+		if (scanIndex != null)
+			scanIndex.completePass();
+
+		//Add the titles in the order a single threaded walk would find them, so the same duplicate wins every time
+		List<ScanResult> sortedResults = new ArrayList<ScanResult>(results);
+		Collections.sort(sortedResults, new Comparator<ScanResult>() {
+			@Override
+			public int compare(ScanResult o1, ScanResult o2) {
+				if (o1.rootIndex != o2.rootIndex)
+					return o1.rootIndex < o2.rootIndex ? -1 : 1;
+
+				return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+			}
+		});
+
+		LibraryStore.Builder builder = new LibraryStore.Builder();
+		for (ScanResult result : sortedResults) {
+			builder.add(result.record);
+		}
+		return builder.build();
+	}
+
+	private void read(ScanItem item) {
+		item.diskLength = item.diskFile.length();
+		item.diskModified = item.diskFile.lastModified();
+		if (scanIndex != null)
+			item.unchanged = scanIndex.findUnchanged(item.diskFile, item.diskLength, item.diskModified);
+
+		if (item.unchanged == null) {
+			try {
+				item.diskContents = readFully(item.diskFile);
+			} catch (IOException e) {
+				LOGGER.error("Couldn't read " + item.diskFile, e);
+				if (scanIndex != null)
+					scanIndex.recordFailed(item.diskFile, item.diskLength, item.diskModified);
+			}
+		}
+	}
+
+	/**
+	 * Groups roots by the file store they're on, keeping the order roots were configured in. Roots whose
+	 * store can't be found, an unreachable share say, are a device of their own.
+	 */
+	private List<DeviceGroup> groupByDevice(List<RootProgress> roots) {
+		Map<Object, DeviceGroup> devices = new LinkedHashMap<Object, DeviceGroup>();
+		for (RootProgress root : roots) {
+			Object device = getDevice(root.fileName);
+			DeviceGroup group = devices.get(device);
+			if (group == null) {
+				group = new DeviceGroup(device.toString());
+				devices.put(device, group);
+			}
+			group.roots.add(root);
+		}
+
+		if (devices.size() > 1)
+			LOGGER.info("Scanning " + roots.size() + " movie folders on " + devices.size() + " devices " + devices.values());
+		return new ArrayList<DeviceGroup>(devices.values());
+	}
+
+	static Object getDevice(String fileName) {
+		try {
+			return Files.getFileStore(Paths.get(fileName));
+		} catch (IOException e) {
+			return fileName;
+		} catch (InvalidPathException e) {
+			return fileName;
+		}
+	}
+
+	private void walk(RootProgress root, BlockingQueue<ScanItem> readQueue) throws InterruptedException {
+		root.startNanos = System.nanoTime();
+		root.monitor.startMonitor();
+		try {
+			FileTreeEnumeration fileEnumeration = WindowsMediaCenterManager.buildFileTreeEnumeration(root.fileName);
+			fileEnumeration.setMonitor(root.monitor);
+			int sequence = 0;
+			while (fileEnumeration.hasMoreElements()) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+
+				root.outstanding.incrementAndGet();
+				readQueue.put(new ScanItem(fileEnumeration.nextElement(), root, sequence++));
+			}
+		} finally {
+			root.walkCompleted();
+		}
+	}
+
+	private static void endStage(BlockingQueue<ScanItem> nextQueue, int nextStageThreads) throws InterruptedException {
+		for (int t = 0; t < nextStageThreads; t++) {
+			nextQueue.put(END_OF_STAGE);
+		}
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			long length = file.length();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to be a dvdid file");
+
+			byte[] contents = new byte[(int)length];
+			int offset = 0;
+			int read;
+			while (offset < contents.length && (read = stream.read(contents, offset, contents.length - offset)) != -1) {
+				offset += read;
+			}
+
+			if (offset < contents.length) {
+				byte[] truncated = new byte[offset];
+				System.arraycopy(contents, 0, truncated, 0, offset);
+				return truncated;
+			}
+			return contents;
+		} finally {
+			try {stream.close();} catch (IOException e) {}
+		}
+	}
+
+	private static abstract class StageWorker implements Runnable {
+		private final AtomicReference<Throwable> failure;
+
+		public StageWorker(AtomicReference<Throwable> failure) {
+			this.failure = failure;
+		}
+
+		@Override
+		public void run() {
+			try {
+				process();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				LOGGER.error("Library scan stage failed", e);
+				failure.compareAndSet(null, e);
+			} catch (Error e) {
+				failure.compareAndSet(null, e);
+				throw e;
+			}
+		}
+
+		protected abstract void process() throws InterruptedException;
+	}
+
+	private static class ScannerThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "MediaCenterScanner-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
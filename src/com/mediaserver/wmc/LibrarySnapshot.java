@@ -0,0 +1,55 @@
+package com.mediaserver.wmc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One loaded library: the titles, the folders they were scanned from and the generation that tells it
+ * apart from the libraries before it. Nothing in a snapshot changes once it's built, so browsers can
+ * keep walking one while the manager swaps in the next.
+ */
+public class LibrarySnapshot {
+	private final FacetIndex index;
+	private final List<String> folders;
+	private final long createdMillis;
+
+	public LibrarySnapshot(FacetIndex index, List<String> folders) {
+		this(index, folders, System.currentTimeMillis());
+	}
+
+	LibrarySnapshot(FacetIndex index, List<String> folders, long createdMillis) {
+		this.index = index;
+		this.folders = Collections.unmodifiableList(new ArrayList<String>(folders));
+		this.createdMillis = createdMillis;
+	}
+
+	public FacetIndex getIndex() {
+		return index;
+	}
+
+	public TitleSet getTitles() {
+		return index.getAllTitles();
+	}
+
+	public long getGeneration() {
+		return index.getGeneration();
+	}
+
+	public List<String> getFolders() {
+		return folders;
+	}
+
+	public long getCreatedMillis() {
+		return createdMillis;
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public String toString() {
+		return "Library generation " + getGeneration() + " (" + size() + " titles)";
+	}
+}
@@ -0,0 +1,572 @@
+package com.mediaserver.wmc;
+
+import java.io.File;
+import java.nio.Buffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.text.CollationKey;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import com.cfs.io.IOUtilities;
+
+/**
+ * The library held column by column. Every column has its own sorted dictionary of the distinct values
+ * in it, and titles refer to values by int code, so a studio or genre that appears on thousands of titles
+ * is stored once. List properties keep each title's run of codes in one flat array located through an
+ * offsets array. Rows are kept in title order and WindowsMediaCenterInfo is only a view of one row.
+ * Columns are buffers, so a store read back from a LibraryImage works straight off the mapping.
+ * <p>
+ * Disc paths and cover keys are cold: nearly every title has its own, and they're only read one title at a
+ * time to show it. Setting com.mediaserver.wmc.coldStorage to offHeap front codes them outside the heap,
+ * which leaves the heap to the values browsing groups by.
+ */
+public class LibraryStore {
+	static final int NONE = -1;
+
+	static final int DISK_PATH = 0;
+	static final int BASE_PATH = 1;
+	static final int DISK_ID = 2;
+	static final int DISK_NAME = 3;
+	//The metadata title, or the disc name when there isn't one
+	static final int TITLE = 4;
+	static final int STUDIO = 5;
+	static final int MPAA_RATING = 6;
+	static final int RATING = 7;
+	static final int RELEASE_YEAR = 8;
+	static final int FLAT_FOLDERS = 9;
+	static final int FIRST_FOLDER = 10;
+	//CoverIndex keys, not the raw cover parameters
+	static final int LARGE_COVER = 11;
+	static final int SMALL_COVER = 12;
+	static final int LANGUAGE = 13;
+	//Everything from here on holds a list of values per title
+	static final int GENRE = 14;
+	static final int DIRECTOR = 15;
+	static final int LEAD_PERFORMER = 16;
+	private static final int FIRST_LIST_COLUMN = GENRE;
+	static final int COLUMN_COUNT = 17;
+
+	public static final String COLD_STORAGE_PROPERTY = "com.mediaserver.wmc.coldStorage";
+	private static final boolean COLD_OFF_HEAP = "offHeap".equalsIgnoreCase(System.getProperty(COLD_STORAGE_PROPERTY, "heap"));
+
+	static final String FILE_SEPARATOR_REGEX = File.separator.replaceAll("\\\\", "\\\\\\\\");
+	private static final Map<String, Integer> PROPERTY_COLUMNS = new HashMap<String, Integer>();
+
+	static {
+		PROPERTY_COLUMNS.put("title", TITLE);
+		PROPERTY_COLUMNS.put("studio", STUDIO);
+		PROPERTY_COLUMNS.put("MPAARating", MPAA_RATING);
+		PROPERTY_COLUMNS.put("rating", RATING);
+		PROPERTY_COLUMNS.put("releaseYear", RELEASE_YEAR);
+		PROPERTY_COLUMNS.put("flatFolders", FLAT_FOLDERS);
+		PROPERTY_COLUMNS.put("firstFolder", FIRST_FOLDER);
+		PROPERTY_COLUMNS.put("genre", GENRE);
+		PROPERTY_COLUMNS.put("director", DIRECTOR);
+		PROPERTY_COLUMNS.put("leadPerformer", LEAD_PERFORMER);
+	}
+
+	private final int size;
+	private final StringDictionary[] dictionaries;
+	//Per row codes for single valued columns, the flattened runs of codes for list columns
+	private final IntBuffer[] codes;
+	private final IntBuffer[] offsets;
+	//A bit per row, set when a list column holds no list at all
+	private final LongBuffer[] nullLists;
+	private final LongBuffer releaseDates;
+	private final IntBuffer durations;
+	//Made as rows are first asked for, so opening a large store costs next to nothing
+	private final WindowsMediaCenterInfo[] titles;
+	private FolderTrie folderTrie;
+
+	LibraryStore(int size, StringDictionary[] dictionaries, IntBuffer[] codes, IntBuffer[] offsets, LongBuffer[] nullLists, LongBuffer releaseDates, IntBuffer durations) {
+		this.size = size;
+		this.dictionaries = dictionaries;
+		this.codes = codes;
+		this.offsets = offsets;
+		this.nullLists = nullLists;
+		this.releaseDates = releaseDates;
+		this.durations = durations;
+		this.titles = new WindowsMediaCenterInfo[size];
+	}
+
+	/**
+	 * Builds a store holding just the one record, whether or not it could be parsed.
+	 */
+	static LibraryStore of(TitleRecord record) {
+		Builder builder = new Builder();
+		builder.add(record);
+		return builder.build();
+	}
+
+	/**
+	 * Copies the titles into a store of their own, in title order and without duplicates.
+	 */
+	public static LibraryStore copyOf(Collection<WindowsMediaCenterInfo> titles) {
+		Builder builder = new Builder();
+		for (WindowsMediaCenterInfo title : titles) {
+			builder.add(title);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the column holding the property, or NONE if it isn't one of the stored browse properties.
+	 */
+	static int columnFor(String property) {
+		Integer column = PROPERTY_COLUMNS.get(property);
+		return column == null ? NONE : column;
+	}
+
+	static boolean isListColumn(int column) {
+		return column >= FIRST_LIST_COLUMN;
+	}
+
+	static boolean isColdColumn(int column) {
+		return column == DISK_PATH || column == LARGE_COVER || column == SMALL_COVER;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public WindowsMediaCenterInfo getTitle(int row) {
+		WindowsMediaCenterInfo title = titles[row];
+		if (title == null) {
+			//A race makes two views of the same row, which is harmless
+			title = new WindowsMediaCenterInfo(this, row);
+			titles[row] = title;
+		}
+		return title;
+	}
+
+	public List<WindowsMediaCenterInfo> getTitles() {
+		return new TitleList();
+	}
+
+	/**
+	 * Returns the sorted values of a column, decoding them all if the store is mapped.
+	 */
+	String[] getDictionary(int column) {
+		return dictionaries[column].toArray();
+	}
+
+	StringDictionary getStringDictionary(int column) {
+		return dictionaries[column];
+	}
+
+	/**
+	 * Returns the raw codes of a column: one per row, or for list columns every row's run back to back.
+	 */
+	IntBuffer getCodes(int column) {
+		return codes[column].duplicate();
+	}
+
+	IntBuffer getListOffsets(int column) {
+		return offsets[column].duplicate();
+	}
+
+	LongBuffer getNullLists(int column) {
+		return nullLists[column].duplicate();
+	}
+
+	LongBuffer getReleaseDates() {
+		return releaseDates.duplicate();
+	}
+
+	IntBuffer getDurations() {
+		return durations.duplicate();
+	}
+
+	int getListStart(int column, int row) {
+		return offsets[column].get(row);
+	}
+
+	int getListEnd(int column, int row) {
+		return offsets[column].get(row + 1);
+	}
+
+	boolean isNullList(int column, int row) {
+		LongBuffer bits = nullLists[column];
+		int word = row >>> 6;
+		return word < bits.limit() && (bits.get(word) & (1L << row)) != 0;
+	}
+
+	/**
+	 * Returns the folders of the store as a tree, building it the first time it's asked for.
+	 */
+	public synchronized FolderTrie getFolderTrie() {
+		if (folderTrie == null)
+			folderTrie = FolderTrie.build(this);
+		return folderTrie;
+	}
+
+	/**
+	 * Returns whether the folder tree has been built, so estimates needn't build it.
+	 */
+	synchronized boolean hasFolderTrie() {
+		return folderTrie != null;
+	}
+
+	String getString(int column, int row) {
+		int code = codes[column].get(row);
+		return code == NONE ? null : dictionaries[column].get(code);
+	}
+
+	List<String> getList(int column, int row) {
+		if (isNullList(column, row))
+			return null;
+
+		return new ListView(column, getListStart(column, row), getListEnd(column, row));
+	}
+
+	long getReleaseDate(int row) {
+		return releaseDates.get(row);
+	}
+
+	int getDuration(int row) {
+		return durations.get(row);
+	}
+
+	public long getOffHeapBytes() {
+		long bytes = 0;
+		for (StringDictionary dictionary : dictionaries) {
+			bytes += dictionary.getOffHeapBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Rough heap footprint of the columns and dictionaries. Mapped columns take no heap, so only what's
+	 * been decoded from them counts.
+	 */
+	public long estimateBytes() {
+		long bytes = 16 + heapBytes(releaseDates, 8) + heapBytes(durations, 4) + 16 + 24L * size;
+		for (int column = 0; column < COLUMN_COUNT; column++) {
+			bytes += heapBytes(codes[column], 4);
+			if (offsets[column] != null)
+				bytes += heapBytes(offsets[column], 4) + heapBytes(nullLists[column], 8);
+			bytes += dictionaries[column].estimateBytes();
+		}
+		return bytes;
+	}
+
+	private static long heapBytes(Buffer buffer, int width) {
+		return buffer.isDirect() ? 0 : 16 + (long)width * buffer.capacity();
+	}
+
+	private class TitleList extends AbstractList<WindowsMediaCenterInfo> implements RandomAccess {
+		@Override
+		public WindowsMediaCenterInfo get(int index) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+			return getTitle(index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	private class ListView extends AbstractList<String> implements RandomAccess {
+		private final int column;
+		private final int start;
+		private final int end;
+
+		private ListView(int column, int start, int end) {
+			this.column = column;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public String get(int index) {
+			if (index < 0 || index >= end - start)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (end - start));
+
+			int code = codes[column].get(start + index);
+			return code == NONE ? null : dictionaries[column].get(code);
+		}
+
+		@Override
+		public int size() {
+			return end - start;
+		}
+	}
+
+	/**
+	 * One title's values, decoded, while a store is being built.
+	 */
+	private static class Row {
+		private final Object[] values = new Object[COLUMN_COUNT];
+		private long releaseDate = Long.MIN_VALUE;
+		private int duration = Integer.MIN_VALUE;
+		private CollationKey sortKey;
+		//The order the row was added in, which settles titles that sort the same
+		private int ordinal;
+
+		/**
+		 * Builds a row from a scanned title. The folder columns depend only on the movie folder and the
+		 * folder holding the disc, so they're worked out once per folder and kept in folders.
+		 */
+		private static Row of(TitleRecord record, Map<String, String[]> folders, Calendar calendar) {
+			Row row = new Row();
+			row.values[DISK_PATH] = record.diskFile.getPath();
+			row.values[BASE_PATH] = record.basePath;
+			String folderKey = record.basePath + File.pathSeparator + record.diskFile.getParent();
+			String[] folderValues = folders.get(folderKey);
+			if (folderValues == null) {
+				String flatFolders = flatFolders(record.diskFile, record.basePath);
+				folderValues = new String[] {flatFolders, firstFolder(flatFolders)};
+				folders.put(folderKey, folderValues);
+			}
+			row.values[FLAT_FOLDERS] = folderValues[0];
+			row.values[FIRST_FOLDER] = folderValues[1];
+			if (record.disk != null) {
+				row.values[DISK_ID] = record.disk.getId();
+				row.values[DISK_NAME] = record.disk.getName();
+				row.values[TITLE] = record.disk.getName();
+			}
+
+			WindowsMediaCenterMetaData metaData = record.metaData;
+			if (metaData != null) {
+				if (metaData.getTitle() != null)
+					row.values[TITLE] = metaData.getTitle();
+				row.values[STUDIO] = metaData.getStudio();
+				row.values[MPAA_RATING] = metaData.getMPAARating();
+				row.values[RATING] = metaData.getRating();
+				row.values[LARGE_COVER] = CoverIndex.toKey(metaData.getLargeCoverParameters());
+				row.values[SMALL_COVER] = CoverIndex.toKey(metaData.getSmallCoverParameters());
+				row.values[LANGUAGE] = metaData.getLanguage();
+				row.values[GENRE] = metaData.getGenre();
+				row.values[DIRECTOR] = metaData.getDirector();
+				row.values[LEAD_PERFORMER] = metaData.getLeadPerformer();
+				if (metaData.getReleaseDate() != null) {
+					row.releaseDate = metaData.getReleaseDate().getTime();
+					calendar.setTime(metaData.getReleaseDate());
+					row.values[RELEASE_YEAR] = calendar.get(Calendar.YEAR) + "";
+				}
+				if (metaData.getDuration() != null)
+					row.duration = metaData.getDuration();
+			}
+			return row;
+		}
+
+		private static Row of(LibraryStore store, int storeRow) {
+			Row row = new Row();
+			for (int column = 0; column < COLUMN_COUNT; column++) {
+				row.values[column] = isListColumn(column) ? store.getList(column, storeRow) : store.getString(column, storeRow);
+			}
+			row.releaseDate = store.getReleaseDate(storeRow);
+			row.duration = store.getDuration(storeRow);
+			return row;
+		}
+
+		private static String flatFolders(File diskFile, String basePath) {
+			try {
+				return IOUtilities.getRelativePath(basePath, diskFile.getParentFile().getParent()).substring(1);
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+
+		private static String firstFolder(String flatFolders) {
+			if (flatFolders == null)
+				return null;
+
+			String[] paths = flatFolders.split(FILE_SEPARATOR_REGEX);
+			return paths.length < 2 ? null : paths[1];
+		}
+
+		private String getTitle() {
+			return (String)values[TITLE];
+		}
+
+		private String getId() {
+			return (String)values[DISK_ID];
+		}
+	}
+
+	//Sort key order, then disc ID, with a missing key or ID first
+	private static final Comparator<Row> TITLE_ORDER = new Comparator<Row>() {
+		@Override
+		public int compare(Row o1, Row o2) {
+			if (o1.sortKey == null || o2.sortKey == null) {
+				if (o1.sortKey != o2.sortKey)
+					return o1.sortKey == null ? -1 : 1;
+			} else {
+				int compareValue = o1.sortKey.compareTo(o2.sortKey);
+				if (compareValue != 0)
+					return compareValue;
+			}
+
+			return compareIds(o1.getId(), o2.getId());
+		}
+	};
+
+	//The one global order of a store, load order settling whatever TITLE_ORDER can't
+	private static final Comparator<Row> ROW_ORDER = new Comparator<Row>() {
+		@Override
+		public int compare(Row o1, Row o2) {
+			int compareValue = TITLE_ORDER.compare(o1, o2);
+			if (compareValue != 0)
+				return compareValue;
+
+			return o1.ordinal < o2.ordinal ? -1 : (o1.ordinal == o2.ordinal ? 0 : 1);
+		}
+	};
+
+	static int compareIds(String id1, String id2) {
+		if (id1 == null || id2 == null)
+			return id1 == id2 ? 0 : (id1 == null ? -1 : 1);
+
+		return id1.compareTo(id2);
+	}
+
+	/**
+	 * Collects titles and encodes them into a store in TitleOrder. A title with the same sort key and disc
+	 * ID as one added before it is dropped, like adding it to a sorted set.
+	 */
+	public static class Builder {
+		private final List<Row> rows = new ArrayList<Row>();
+		private final Map<String, String[]> folders = new HashMap<String, String[]>();
+		//One calendar works out the release year of every title added
+		private final Calendar calendar = Calendar.getInstance();
+
+		void add(TitleRecord record) {
+			rows.add(Row.of(record, folders, calendar));
+		}
+
+		public void add(WindowsMediaCenterInfo info) {
+			rows.add(Row.of(info.getStore(), info.getRow()));
+		}
+
+		public int size() {
+			return rows.size();
+		}
+
+		public LibraryStore build() {
+			TitleOrder order = TitleOrder.getInstance();
+			List<Row> sorted = new ArrayList<Row>(rows);
+			for (int t = 0; t < sorted.size(); t++) {
+				Row row = sorted.get(t);
+				row.sortKey = order.getSortKey(row.getTitle());
+				row.ordinal = t;
+			}
+			Collections.sort(sorted, ROW_ORDER);
+			int count = 0;
+			for (int t = 0; t < sorted.size(); t++) {
+				if (count == 0 || TITLE_ORDER.compare(sorted.get(count - 1), sorted.get(t)) != 0)
+					sorted.set(count++, sorted.get(t));
+			}
+
+			//Values shared between columns, a director who also acts say, share one String
+			Map<String, String> canonical = new HashMap<String, String>();
+			StringDictionary[] dictionaries = new StringDictionary[COLUMN_COUNT];
+			IntBuffer[] codes = new IntBuffer[COLUMN_COUNT];
+			IntBuffer[] offsets = new IntBuffer[COLUMN_COUNT];
+			LongBuffer[] nullLists = new LongBuffer[COLUMN_COUNT];
+			for (int column = 0; column < COLUMN_COUNT; column++) {
+				Map<String, Integer> dictionary = buildDictionary(sorted, count, column, canonical);
+				String[] values = dictionary.keySet().toArray(new String[dictionary.size()]);
+				Arrays.sort(values);
+				for (int code = 0; code < values.length; code++) {
+					dictionary.put(values[code], code);
+				}
+				dictionaries[column] = COLD_OFF_HEAP && isColdColumn(column) ? StringDictionary.frontCoded(values) : StringDictionary.of(values);
+
+				if (isListColumn(column))
+					encodeList(sorted, count, column, dictionary, codes, offsets, nullLists);
+				else
+					encode(sorted, count, column, dictionary, codes);
+			}
+
+			long[] releaseDates = new long[count];
+			int[] durations = new int[count];
+			for (int row = 0; row < count; row++) {
+				releaseDates[row] = sorted.get(row).releaseDate;
+				durations[row] = sorted.get(row).duration;
+			}
+			return new LibraryStore(count, dictionaries, codes, offsets, nullLists, LongBuffer.wrap(releaseDates), IntBuffer.wrap(durations));
+		}
+
+		private static Map<String, Integer> buildDictionary(List<Row> rows, int count, int column, Map<String, String> canonical) {
+			Map<String, Integer> dictionary = new HashMap<String, Integer>();
+			for (int row = 0; row < count; row++) {
+				Object value = rows.get(row).values[column];
+				if (value instanceof List) {
+					for (Object element : (List<?>)value) {
+						if (element != null)
+							addValue(dictionary, (String)element, canonical);
+					}
+				} else if (value != null) {
+					addValue(dictionary, (String)value, canonical);
+				}
+			}
+			return dictionary;
+		}
+
+		private static void addValue(Map<String, Integer> dictionary, String value, Map<String, String> canonical) {
+			if (dictionary.containsKey(value))
+				return;
+
+			String shared = canonical.get(value);
+			if (shared == null) {
+				shared = value;
+				canonical.put(shared, shared);
+			}
+			dictionary.put(shared, NONE);
+		}
+
+		private static void encode(List<Row> rows, int count, int column, Map<String, Integer> dictionary, IntBuffer[] codes) {
+			int[] columnCodes = new int[count];
+			for (int row = 0; row < count; row++) {
+				Object value = rows.get(row).values[column];
+				columnCodes[row] = value == null ? NONE : dictionary.get(value);
+			}
+			codes[column] = IntBuffer.wrap(columnCodes);
+		}
+
+		private static void encodeList(List<Row> rows, int count, int column, Map<String, Integer> dictionary, IntBuffer[] codes, IntBuffer[] offsets, LongBuffer[] nullLists) {
+			int[] columnOffsets = new int[count + 1];
+			BitSet columnNulls = new BitSet(count);
+			int total = 0;
+			for (int row = 0; row < count; row++) {
+				List<?> value = (List<?>)rows.get(row).values[column];
+				columnOffsets[row] = total;
+				if (value == null)
+					columnNulls.set(row);
+				else
+					total += value.size();
+			}
+			columnOffsets[count] = total;
+
+			int[] columnCodes = new int[total];
+			for (int row = 0; row < count; row++) {
+				List<?> value = (List<?>)rows.get(row).values[column];
+				if (value == null)
+					continue;
+
+				int position = columnOffsets[row];
+				for (Object element : value) {
+					columnCodes[position++] = element == null ? NONE : dictionary.get(element);
+				}
+			}
+			codes[column] = IntBuffer.wrap(columnCodes);
+			offsets[column] = IntBuffer.wrap(columnOffsets);
+			nullLists[column] = LongBuffer.wrap(columnNulls.toLongArray());
+		}
+	}
+}
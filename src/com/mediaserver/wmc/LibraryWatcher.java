@@ -0,0 +1,299 @@
+package com.mediaserver.wmc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cfs.progress.ProgressableObjectMonitor;
+import com.sun.nio.file.ExtendedWatchEventModifier;
+
+/**
+ * Watches the configured movie folders and the DvdInfoCache directory, and feeds the changes to
+ * WindowsMediaCenterManager as batched deltas. DvdCoverCache changes go straight to the CoverIndex.
+ * Events are collected until the folders have been quiet for a while, so copying hundreds of discs in
+ * results in a single update.
+ */
+public class LibraryWatcher implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LibraryWatcher.class);
+	private static final WatchEvent.Kind<?>[] EVENT_KINDS = {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY};
+	//Windows watches a whole tree from one handle; elsewhere every folder takes a watch of its own
+	private static final boolean WATCH_FILE_TREE = System.getProperty("os.name", "").startsWith("Windows");
+
+	private WindowsMediaCenterManager<?> manager;
+	private List<String> configuredFolders;
+	private Path metaDataFolder;
+	private ProgressableObjectMonitor rescanMonitor;
+	private long quietMillis = 2000;
+	private long maximumDelayMillis = 30000;
+
+	private WatchService watchService;
+	private Map<WatchKey, Path> libraryDirectories = new HashMap<WatchKey, Path>();
+	private WatchKey metaDataKey;
+	private WatchKey coverKey;
+	private CoverIndex coverIndex;
+	private Set<File> pendingLibraryFiles = new LinkedHashSet<File>();
+	private Set<File> pendingMetaDataFiles = new LinkedHashSet<File>();
+	private boolean rescanNeeded;
+	private long firstPendingEvent;
+	private long lastPendingEvent;
+	private Thread watchThread;
+
+	public LibraryWatcher(WindowsMediaCenterManager<?> manager, List<String> configuredFolders, String metaDataFolder, ProgressableObjectMonitor rescanMonitor) {
+		this.manager = manager;
+		this.configuredFolders = new ArrayList<String>(configuredFolders);
+		this.metaDataFolder = Paths.get(metaDataFolder);
+		this.rescanMonitor = rescanMonitor;
+	}
+
+	public void setQuietMillis(long quietMillis) {
+		this.quietMillis = quietMillis;
+	}
+
+	public void setMaximumDelayMillis(long maximumDelayMillis) {
+		this.maximumDelayMillis = maximumDelayMillis;
+	}
+
+	public synchronized void start() throws IOException {
+		if (watchThread != null)
+			return;
+
+		watchService = FileSystems.getDefault().newWatchService();
+		boolean started = false;
+		try {
+			for (String folder : configuredFolders) {
+				registerTree(Paths.get(folder));
+			}
+
+			if (Files.isDirectory(metaDataFolder))
+				metaDataKey = register(metaDataFolder);
+			else
+				LOGGER.error("Media Center metadata folder doesn't exist, metadata changes won't be seen: " + metaDataFolder);
+
+			coverIndex = CoverIndex.getInstance();
+			if (coverIndex.getDirectory().isDirectory())
+				coverKey = register(coverIndex.getDirectory().toPath());
+
+			watchThread = new Thread(this, "MediaCenterWatcher");
+			watchThread.setDaemon(true);
+			watchThread.start();
+			started = true;
+		} finally {
+			if (!started) {
+				//Don't leave the folders registered so far watched by nothing
+				try {
+					watchService.close();
+				} catch (IOException e) {
+					LOGGER.error("Couldn't close Media Center watch service", e);
+				}
+				libraryDirectories.clear();
+				metaDataKey = null;
+				coverKey = null;
+				watchThread = null;
+			}
+		}
+	}
+
+	public synchronized void stop() {
+		if (watchThread == null)
+			return;
+
+		watchThread.interrupt();
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			LOGGER.error("Couldn't close Media Center watch service", e);
+		}
+		watchThread = null;
+	}
+
+	public boolean isRunning() {
+		return watchThread != null;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watchService.poll(hasPendingChanges() ? quietMillis : maximumDelayMillis, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					queueEvents(key);
+				}
+
+				long now = System.currentTimeMillis();
+				if (hasPendingChanges() && (now - lastPendingEvent >= quietMillis || now - firstPendingEvent >= maximumDelayMillis)) {
+					flush();
+				}
+			}
+		} catch (InterruptedException e) {
+			//We've been asked to stop
+		} catch (ClosedWatchServiceException e) {
+			//We've been asked to stop
+		}
+	}
+
+	private boolean hasPendingChanges() {
+		return rescanNeeded || !pendingLibraryFiles.isEmpty() || !pendingMetaDataFiles.isEmpty();
+	}
+
+	private void queueEvents(WatchKey key) {
+		Path directory = key == metaDataKey ? metaDataFolder : libraryDirectories.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (key == coverKey) {
+				//Covers don't change what's in the library, so there's nothing to batch
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+					coverIndex.refresh();
+				else
+					coverIndex.fileChanged(coverIndex.getDirectory().toPath().resolve((Path)event.context()).toFile());
+				continue;
+			}
+
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				//The OS dropped events on us, so the only safe thing to do is rescan
+				rescanNeeded = true;
+				markPending();
+				continue;
+			}
+
+			if (directory == null)
+				continue;
+
+			Path changedPath = directory.resolve((Path)event.context());
+			if (key == metaDataKey) {
+				TitleDetailCache.getInstance().remove(changedPath.toFile());
+				pendingMetaDataFiles.add(changedPath.toFile());
+				markPending();
+			} else if (isLibraryChange((Path)event.context(), changedPath, event.kind())) {
+				if (!WATCH_FILE_TREE && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changedPath)) {
+					try {
+						registerTree(changedPath);
+					} catch (IOException e) {
+						LOGGER.error("Couldn't watch new folder: " + changedPath, e);
+					}
+				}
+				pendingLibraryFiles.add(changedPath.toFile());
+				markPending();
+			}
+		}
+
+		if (!key.reset()) {
+			libraryDirectories.remove(key);
+		}
+	}
+
+	private static boolean isLibraryChange(Path context, Path changedPath, WatchEvent.Kind<?> kind) {
+		//A tree watch also reports what happens inside VIDEO_TS folders
+		for (Path element : context) {
+			if (element.toString().equalsIgnoreCase("VIDEO_TS"))
+				return false;
+		}
+
+		String name = changedPath.getFileName().toString();
+
+		if (name.toLowerCase().endsWith(WindowsMediaCenterManager.DVDID_SUFFIX))
+			return true;
+
+		//A deleted entry might have been a folder full of titles, a created one only matters if it's a folder
+		if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+			return true;
+
+		return kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changedPath);
+	}
+
+	private void markPending() {
+		long now = System.currentTimeMillis();
+		if (firstPendingEvent == 0)
+			firstPendingEvent = now;
+		lastPendingEvent = now;
+	}
+
+	private void flush() {
+		boolean rescan = rescanNeeded;
+		List<File> libraryFiles = new ArrayList<File>(pendingLibraryFiles);
+		List<File> metaDataFiles = new ArrayList<File>(pendingMetaDataFiles);
+		rescanNeeded = false;
+		pendingLibraryFiles.clear();
+		pendingMetaDataFiles.clear();
+		firstPendingEvent = 0;
+		lastPendingEvent = 0;
+
+		try {
+			if (rescan) {
+				LOGGER.info("Media Center watcher overflowed, rescanning the library");
+				//Runs in the background, changes seen meanwhile are applied again once it's done
+				manager.refresh(rescanMonitor);
+			} else {
+				LibraryDelta delta = manager.applyLibraryChanges(libraryFiles, metaDataFiles);
+				LOGGER.info("Media Center library changed: " + delta);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.error("Couldn't apply Media Center library changes", e);
+		}
+	}
+
+	private WatchKey register(Path directory) throws IOException {
+		return directory.register(watchService, EVENT_KINDS);
+	}
+
+	private void registerTree(Path root) throws IOException {
+		if (!Files.isDirectory(root)) {
+			LOGGER.error("Media Center movie folder doesn't exist: " + root);
+			return;
+		}
+
+		if (WATCH_FILE_TREE) {
+			try {
+				libraryDirectories.put(root.register(watchService, EVENT_KINDS, ExtendedWatchEventModifier.FILE_TREE), root);
+			} catch (IOException e) {
+				LOGGER.error("Couldn't watch " + root, e);
+			}
+			return;
+		}
+
+		final int[] failures = new int[1];
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+				if (directory.getFileName() != null && directory.getFileName().toString().equalsIgnoreCase("VIDEO_TS"))
+					return FileVisitResult.SKIP_SUBTREE;
+
+				try {
+					libraryDirectories.put(register(directory), directory);
+				} catch (IOException e) {
+					//Most likely out of watches, which every folder after this one will be too
+					if (failures[0]++ == 0)
+						LOGGER.error("Couldn't watch " + directory, e);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+				LOGGER.error("Couldn't watch " + file, e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		if (failures[0] > 0)
+			LOGGER.error("Couldn't watch " + failures[0] + " folders under " + root + ", changes in them won't be seen until the next refresh");
+	}
+}
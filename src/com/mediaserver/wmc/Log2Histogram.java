@@ -0,0 +1,134 @@
+package com.mediaserver.wmc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non negative values in power of two buckets, recorded without locks into per thread
+ * stripes like StripedCounter. Percentiles are reported as the top of the bucket they fall in, so they
+ * are at most twice the true value, which is plenty to tell a slow share from a slow parser.
+ */
+public class Log2Histogram implements Log2HistogramMBean {
+	private static final int BUCKETS = 64;
+
+	private final String unit;
+	//Every stripe's buckets back to back
+	private final AtomicLongArray buckets = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	public Log2Histogram(String unit) {
+		this.unit = unit;
+	}
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		int bucket = BUCKETS - Long.numberOfLeadingZeros(value);
+		buckets.getAndIncrement(StripedCounter.stripe() * BUCKETS + Math.min(bucket, BUCKETS - 1));
+		sum.add(value);
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Records the microseconds since startNanos, a System.nanoTime().
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	private long[] snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int t = 0; t < buckets.length(); t++) {
+			counts[t % BUCKETS] += buckets.get(t);
+		}
+		return counts;
+	}
+
+	@Override
+	public String getUnit() {
+		return unit;
+	}
+
+	@Override
+	public long getCount() {
+		long count = 0;
+		for (long bucketCount : snapshot()) {
+			count += bucketCount;
+		}
+		return count;
+	}
+
+	@Override
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : sum.getCount() / (double)count;
+	}
+
+	@Override
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the top of the bucket holding the given fraction of recorded values, no more than the max.
+	 */
+	public long getPercentile(double fraction) {
+		long[] counts = snapshot();
+		long count = 0;
+		for (long bucketCount : counts) {
+			count += bucketCount;
+		}
+		if (count == 0)
+			return 0;
+
+		long rank = (long)Math.ceil(fraction * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank && counts[bucket] > 0) {
+				long top = bucket == 0 ? 0 : (bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1);
+				return Math.min(top, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	@Override
+	public long getP50() {
+		return getPercentile(0.5);
+	}
+
+	@Override
+	public long getP90() {
+		return getPercentile(0.9);
+	}
+
+	@Override
+	public long getP99() {
+		return getPercentile(0.99);
+	}
+
+	@Override
+	public long getP999() {
+		return getPercentile(0.999);
+	}
+
+	@Override
+	public void reset() {
+		for (int t = 0; t < buckets.length(); t++) {
+			buckets.set(t, 0);
+		}
+		sum.reset();
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "count " + getCount() + ", p50 " + getP50() + unit + ", p99 " + getP99() + unit + ", max " + getMax() + unit;
+	}
+}
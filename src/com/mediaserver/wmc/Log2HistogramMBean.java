@@ -0,0 +1,13 @@
+package com.mediaserver.wmc;
+
+public interface Log2HistogramMBean {
+	public String getUnit();
+	public long getCount();
+	public double getMean();
+	public long getMax();
+	public long getP50();
+	public long getP90();
+	public long getP99();
+	public long getP999();
+	public void reset();
+}
@@ -0,0 +1,184 @@
+package com.mediaserver.wmc;
+
+import java.lang.ref.WeakReference;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters, histograms and library gauges, published as MBeans under com.mediaserver.wmc so a slow
+ * refresh or browse can be looked at with jconsole. Counters and histograms register themselves the
+ * first time they're asked for; hot paths keep them in fields so recording is a couple of atomic adds.
+ * Times are recorded in microseconds.
+ */
+public class MediaCenterMetrics implements MediaCenterMetricsMBean {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MediaCenterMetrics.class);
+	public static final String DOMAIN = "com.mediaserver.wmc";
+	public static final String MICROSECONDS = "us";
+	private static final MediaCenterMetrics INSTANCE = new MediaCenterMetrics();
+
+	private final Map<String, StripedCounter> counters = new ConcurrentHashMap<String, StripedCounter>();
+	private final Map<String, Log2Histogram> histograms = new ConcurrentHashMap<String, Log2Histogram>();
+	private volatile WeakReference<WindowsMediaCenterManager<?>> library = new WeakReference<WindowsMediaCenterManager<?>>(null);
+
+	static {
+		register("Library", null, INSTANCE);
+	}
+
+	public static MediaCenterMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	public static StripedCounter counter(String name) {
+		StripedCounter counter = INSTANCE.counters.get(name);
+		if (counter != null)
+			return counter;
+
+		synchronized (INSTANCE) {
+			counter = INSTANCE.counters.get(name);
+			if (counter == null) {
+				counter = new StripedCounter();
+				INSTANCE.counters.put(name, counter);
+				register("Counter", name, counter);
+			}
+			return counter;
+		}
+	}
+
+	public static Log2Histogram histogram(String name, String unit) {
+		Log2Histogram histogram = INSTANCE.histograms.get(name);
+		if (histogram != null)
+			return histogram;
+
+		synchronized (INSTANCE) {
+			histogram = INSTANCE.histograms.get(name);
+			if (histogram == null) {
+				histogram = new Log2Histogram(unit);
+				INSTANCE.histograms.put(name, histogram);
+				register("Histogram", name, histogram);
+			}
+			return histogram;
+		}
+	}
+
+	/**
+	 * Returns a microsecond histogram, the kind every latency is recorded in.
+	 */
+	public static Log2Histogram latency(String name) {
+		return histogram(name, MICROSECONDS);
+	}
+
+	public Map<String, StripedCounter> getCounters() {
+		return counters;
+	}
+
+	public Map<String, Log2Histogram> getHistograms() {
+		return histograms;
+	}
+
+	private static void register(String type, String name, Object mbean) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			String objectName = DOMAIN + ":type=" + type;
+			if (name != null)
+				objectName += ",name=" + (name.matches("[\\w.\\-]*") ? name : ObjectName.quote(name));
+			ObjectName mbeanName = new ObjectName(objectName);
+			if (!server.isRegistered(mbeanName))
+				server.registerMBean(mbean, mbeanName);
+		} catch (Exception e) {
+			//Metrics are still recorded, they just can't be seen through JMX
+			LOGGER.error("Couldn't register Media Center metric " + type + " " + name, e);
+		}
+	}
+
+	/**
+	 * Points the library gauges at the manager that was created last.
+	 */
+	public void setLibrary(WindowsMediaCenterManager<?> manager) {
+		library = new WeakReference<WindowsMediaCenterManager<?>>(manager);
+	}
+
+	private LibrarySnapshot getSnapshot() {
+		WindowsMediaCenterManager<?> manager = library.get();
+		return manager == null ? null : manager.getSnapshot();
+	}
+
+	@Override
+	public int getTitleCount() {
+		LibrarySnapshot snapshot = getSnapshot();
+		return snapshot == null ? 0 : snapshot.size();
+	}
+
+	@Override
+	public long getLibraryGeneration() {
+		LibrarySnapshot snapshot = getSnapshot();
+		return snapshot == null ? 0 : snapshot.getGeneration();
+	}
+
+	@Override
+	public long getLibraryBytes() {
+		LibrarySnapshot snapshot = getSnapshot();
+		return snapshot == null ? 0 : snapshot.getIndex().estimateBytes();
+	}
+
+	@Override
+	public long getLibraryOffHeapBytes() {
+		LibrarySnapshot snapshot = getSnapshot();
+		return snapshot == null ? 0 : snapshot.getIndex().getStore().getOffHeapBytes();
+	}
+
+	@Override
+	public long getSearchIndexBytes() {
+		WindowsMediaCenterManager<?> manager = library.get();
+		SearchIndex index = manager == null ? null : manager.getBuiltSearchIndex();
+		return index == null ? 0 : index.estimateBytes();
+	}
+
+	@Override
+	public long getCoverCacheBytes() {
+		return CoverIndex.getInstance().getCache().getSize();
+	}
+
+	@Override
+	public double getCoverCacheHitRatio() {
+		CoverCache cache = CoverIndex.getInstance().getCache();
+		return ratio(cache.getHits(), cache.getMisses());
+	}
+
+	@Override
+	public int getContainerCacheEntries() {
+		return ContainerCache.getInstance().size();
+	}
+
+	@Override
+	public double getContainerCacheHitRatio() {
+		return ContainerCache.getInstance().getHitRate();
+	}
+
+	@Override
+	public long getTitleDetailBytes() {
+		return TitleDetailCache.getInstance().getSize();
+	}
+
+	@Override
+	public double getTitleDetailHitRatio() {
+		TitleDetailCache cache = TitleDetailCache.getInstance();
+		return ratio(cache.getHits(), cache.getMisses());
+	}
+
+	@Override
+	public boolean isRefreshing() {
+		WindowsMediaCenterManager<?> manager = library.get();
+		return manager != null && manager.isRefreshing();
+	}
+
+	private static double ratio(long hits, long misses) {
+		return hits + misses == 0 ? 0 : hits / (double)(hits + misses);
+	}
+}
@@ -0,0 +1,16 @@
+package com.mediaserver.wmc;
+
+public interface MediaCenterMetricsMBean {
+	public int getTitleCount();
+	public long getLibraryGeneration();
+	public long getLibraryBytes();
+	public long getLibraryOffHeapBytes();
+	public long getSearchIndexBytes();
+	public long getCoverCacheBytes();
+	public double getCoverCacheHitRatio();
+	public int getContainerCacheEntries();
+	public double getContainerCacheHitRatio();
+	public long getTitleDetailBytes();
+	public double getTitleDetailHitRatio();
+	public boolean isRefreshing();
+}
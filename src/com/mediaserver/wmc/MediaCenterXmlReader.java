@@ -0,0 +1,357 @@
+package com.mediaserver.wmc;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.cfs.xml.CommaSpaceListAdapter;
+import com.cfs.xml.SemiColonSpaceListAdapter;
+import com.cfs.xml.XMLListAdapter;
+import com.cfs.xml.YYYY_MM_DD_WhitespaceSeparatedDateAdapter;
+
+/**
+ * Streaming readers for the .dvdid.xml Disc documents and the DvdInfoCache METADATA documents. They read
+ * exactly what the JAXB mappings on DVDIdDisk and WindowsMediaCenterMetaData describe, through the same
+ * list and date adapters, without building a JAXB context or an unmarshaller per title.
+ */
+public final class MediaCenterXmlReader {
+	//StAX factories are only documented as thread safe once configured, so each thread gets its own
+	private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+			return factory;
+		}
+	};
+	static final XMLListAdapter SEMICOLON_LIST = new SemiColonSpaceListAdapter();
+	static final XMLListAdapter COMMA_LIST = new CommaSpaceListAdapter();
+	static final YYYY_MM_DD_WhitespaceSeparatedDateAdapter DATE = new YYYY_MM_DD_WhitespaceSeparatedDateAdapter() {};
+
+	private MediaCenterXmlReader() {
+	}
+
+	public static DVDIdDisk readDisk(InputStream stream) throws XMLStreamException {
+		XMLStreamReader reader = INPUT_FACTORY.get().createXMLStreamReader(stream);
+		try {
+			return readDisk(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	public static DVDIdDisk readDisk(Reader stream) throws XMLStreamException {
+		XMLStreamReader reader = INPUT_FACTORY.get().createXMLStreamReader(stream);
+		try {
+			return readDisk(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads a METADATA document. When includeTitles is false the per title synopses and chapter lists are
+	 * skipped without being parsed into objects.
+	 */
+	public static WindowsMediaCenterMetaData readMetaData(Reader stream, boolean includeTitles) throws XMLStreamException {
+		XMLStreamReader reader = INPUT_FACTORY.get().createXMLStreamReader(stream);
+		try {
+			return readMetaData(reader, includeTitles);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads only the titles and chapters of a METADATA document.
+	 */
+	public static List<WindowsMediaCenterMetaData.Title> readTitles(Reader stream) throws XMLStreamException {
+		XMLStreamReader reader = INPUT_FACTORY.get().createXMLStreamReader(stream);
+		try {
+			List<WindowsMediaCenterMetaData.Title> titles = new ArrayList<WindowsMediaCenterMetaData.Title>();
+			requireRoot(reader, "METADATA");
+			while (nextChild(reader)) {
+				if (reader.getLocalName().equals("MDR-DVD")) {
+					while (nextChild(reader)) {
+						if (reader.getLocalName().equals("title"))
+							titles.add(readTitle(reader));
+						else
+							skipElement(reader);
+					}
+				} else {
+					skipElement(reader);
+				}
+			}
+			return titles;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static DVDIdDisk readDisk(XMLStreamReader reader) throws XMLStreamException {
+		DVDIdDisk disk = new DVDIdDisk();
+		requireRoot(reader, "Disc");
+		while (nextChild(reader)) {
+			switch (reader.getLocalName()) {
+			case "ID":
+				disk.setId(reader.getElementText());
+				break;
+			case "Name":
+				disk.setName(reader.getElementText());
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+		return disk;
+	}
+
+	private static WindowsMediaCenterMetaData readMetaData(XMLStreamReader reader, boolean includeTitles) throws XMLStreamException {
+		WindowsMediaCenterMetaData metaData = new WindowsMediaCenterMetaData();
+		requireRoot(reader, "METADATA");
+		while (nextChild(reader)) {
+			switch (reader.getLocalName()) {
+			case "MDR-DVD":
+				readRippedDVD(reader, metaData, includeTitles);
+				break;
+			case "DvdId":
+				metaData.setDvdId(reader.getElementText());
+				break;
+			case "NeedsAttribution":
+				metaData.setNeedsAttribution(reader.getElementText());
+				break;
+			case "IMDBCode":
+				metaData.setImdbCode(reader.getElementText());
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+		return metaData;
+	}
+
+	private static void readRippedDVD(XMLStreamReader reader, WindowsMediaCenterMetaData metaData, boolean includeTitles) throws XMLStreamException {
+		List<WindowsMediaCenterMetaData.Title> titles = null;
+		while (nextChild(reader)) {
+			switch (reader.getLocalName()) {
+			case "MetadataExpires":
+				metaData.setMetadataExpires(parseDateTime(reader.getElementText()));
+				break;
+			case "largeCoverParams":
+				metaData.setLargeCoverParameters(reader.getElementText());
+				break;
+			case "smallCoverParams":
+				metaData.setSmallCoverParameters(reader.getElementText());
+				break;
+			case "dvdTitle":
+				metaData.setTitle(reader.getElementText());
+				break;
+			case "leadPerformer":
+				metaData.setLeadPerformer(parseList(SEMICOLON_LIST, reader.getElementText()));
+				break;
+			case "director":
+				metaData.setDirector(parseList(SEMICOLON_LIST, reader.getElementText()));
+				break;
+			case "MPAARating":
+				metaData.setMPAARating(reader.getElementText());
+				break;
+			case "genre":
+				metaData.setGenre(parseList(COMMA_LIST, reader.getElementText()));
+				break;
+			case "studio":
+				metaData.setStudio(reader.getElementText());
+				break;
+			case "releaseDate":
+				metaData.setReleaseDate(parseDate(reader.getElementText()));
+				break;
+			case "language":
+				metaData.setLanguage(reader.getElementText());
+				break;
+			case "duration":
+				metaData.setDuration(parseInteger(reader.getElementText()));
+				break;
+			case "dataProvider":
+				metaData.setDataProvider(reader.getElementText());
+				break;
+			case "version":
+				metaData.setVersion(parseDecimal(reader.getElementText()));
+				break;
+			case "rating":
+				metaData.setRating(reader.getElementText());
+				break;
+			case "title":
+				if (includeTitles) {
+					if (titles == null)
+						titles = new ArrayList<WindowsMediaCenterMetaData.Title>();
+					titles.add(readTitle(reader));
+				} else {
+					skipElement(reader);
+				}
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+
+		if (titles != null)
+			metaData.setTitles(titles);
+	}
+
+	private static WindowsMediaCenterMetaData.Title readTitle(XMLStreamReader reader) throws XMLStreamException {
+		Integer index = null;
+		String title = null;
+		String studio = null;
+		String director = null;
+		String leadPerformer = null;
+		String mpaaRating = null;
+		String genre = null;
+		String synopsis = null;
+		List<WindowsMediaCenterMetaData.Chapter> chapters = null;
+		while (nextChild(reader)) {
+			switch (reader.getLocalName()) {
+			case "titleNum":
+				index = parseInteger(reader.getElementText());
+				break;
+			case "titleTitle":
+				title = reader.getElementText();
+				break;
+			case "studio":
+				studio = reader.getElementText();
+				break;
+			case "director":
+				director = reader.getElementText();
+				break;
+			case "leadPerformer":
+				leadPerformer = reader.getElementText();
+				break;
+			case "MPAARating":
+				mpaaRating = reader.getElementText();
+				break;
+			case "genre":
+				genre = reader.getElementText();
+				break;
+			case "synopsis":
+				synopsis = reader.getElementText();
+				break;
+			case "chapter":
+				if (chapters == null)
+					chapters = new ArrayList<WindowsMediaCenterMetaData.Chapter>();
+				chapters.add(readChapter(reader));
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+		return new WindowsMediaCenterMetaData.Title(index, title, studio, director, leadPerformer, mpaaRating, genre, synopsis, chapters);
+	}
+
+	private static WindowsMediaCenterMetaData.Chapter readChapter(XMLStreamReader reader) throws XMLStreamException {
+		Integer index = null;
+		String chapterTitle = null;
+		while (nextChild(reader)) {
+			switch (reader.getLocalName()) {
+			case "chapterNum":
+				index = parseInteger(reader.getElementText());
+				break;
+			case "chapterTitle":
+				chapterTitle = reader.getElementText();
+				break;
+			default:
+				skipElement(reader);
+			}
+		}
+		return new WindowsMediaCenterMetaData.Chapter(index, chapterTitle);
+	}
+
+	private static void requireRoot(XMLStreamReader reader, String rootName) throws XMLStreamException {
+		while (reader.hasNext()) {
+			if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+				if (!reader.getLocalName().equals(rootName))
+					throw new XMLStreamException("Expected a " + rootName + " document but found " + reader.getLocalName(), reader.getLocation());
+				return;
+			}
+		}
+		throw new XMLStreamException("Expected a " + rootName + " document but it was empty");
+	}
+
+	/**
+	 * Moves to the next child element of the current element, returning false once the current element ends.
+	 */
+	private static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				return true;
+			case XMLStreamConstants.END_ELEMENT:
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			}
+		}
+	}
+
+	private static List<String> parseList(XMLListAdapter adapter, String text) {
+		try {
+			return adapter.unmarshal(text);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static Date parseDate(String text) {
+		try {
+			return DATE.unmarshal(text);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static Date parseDateTime(String text) {
+		try {
+			return DatatypeConverter.parseDateTime(text.trim()).getTime();
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static Integer parseInteger(String text) {
+		try {
+			return Integer.valueOf(text.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static BigDecimal parseDecimal(String text) {
+		try {
+			return new BigDecimal(text.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.mediaserver.wmc;
+
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.cfs.xml.XMLListAdapter;
+
+/**
+ * Writes METADATA documents in the layout MediaCenterXmlReader and the JAXB mapping expect. Metadata files
+ * are read as ISO-8859-1, so that is what gets written; anything outside it is escaped.
+ */
+public final class MediaCenterXmlWriter {
+	public static final String METADATA_ENCODING = "ISO-8859-1";
+	private static final String INDENT = "    ";
+	private static final ThreadLocal<XMLOutputFactory> OUTPUT_FACTORY = new ThreadLocal<XMLOutputFactory>() {
+		@Override
+		protected XMLOutputFactory initialValue() {
+			return XMLOutputFactory.newInstance();
+		}
+	};
+
+	private MediaCenterXmlWriter() {
+	}
+
+	public static void writeMetaData(WindowsMediaCenterMetaData metaData, OutputStream stream) throws XMLStreamException {
+		XMLStreamWriter writer = OUTPUT_FACTORY.get().createXMLStreamWriter(stream, METADATA_ENCODING);
+		try {
+			writer.writeStartDocument(METADATA_ENCODING, "1.0");
+			writer.writeCharacters("\n");
+			writer.writeStartElement("METADATA");
+			writer.writeCharacters("\n");
+
+			writer.writeCharacters(INDENT);
+			writer.writeStartElement("MDR-DVD");
+			writer.writeCharacters("\n");
+			writeElement(writer, 2, "MetadataExpires", formatDateTime(metaData.getMetadataExpires()));
+			writeElement(writer, 2, "largeCoverParams", metaData.getLargeCoverParameters());
+			writeElement(writer, 2, "smallCoverParams", metaData.getSmallCoverParameters());
+			writeElement(writer, 2, "dvdTitle", metaData.getTitle());
+			writeElement(writer, 2, "leadPerformer", formatList(MediaCenterXmlReader.SEMICOLON_LIST, metaData.getLeadPerformer()));
+			writeElement(writer, 2, "director", formatList(MediaCenterXmlReader.SEMICOLON_LIST, metaData.getDirector()));
+			writeElement(writer, 2, "MPAARating", metaData.getMPAARating());
+			writeElement(writer, 2, "genre", formatList(MediaCenterXmlReader.COMMA_LIST, metaData.getGenre()));
+			writeElement(writer, 2, "studio", metaData.getStudio());
+			writeElement(writer, 2, "releaseDate", formatDate(metaData.getReleaseDate()));
+			writeElement(writer, 2, "language", metaData.getLanguage());
+			writeElement(writer, 2, "duration", metaData.getDuration());
+			writeElement(writer, 2, "dataProvider", metaData.getDataProvider());
+			writeElement(writer, 2, "version", metaData.getVersion() == null ? null : metaData.getVersion().toPlainString());
+			writeElement(writer, 2, "rating", metaData.getRating());
+			if (metaData.getTitles() != null) {
+				for (WindowsMediaCenterMetaData.Title title : metaData.getTitles()) {
+					writeTitle(writer, title);
+				}
+			}
+			writer.writeCharacters(INDENT);
+			writer.writeEndElement();
+			writer.writeCharacters("\n");
+
+			writeElement(writer, 1, "DvdId", metaData.getDvdId());
+			writeElement(writer, 1, "NeedsAttribution", metaData.getNeedsAttribution());
+			writeElement(writer, 1, "IMDBCode", metaData.getImdbCode());
+			writer.writeEndElement();
+			writer.writeCharacters("\n");
+			writer.writeEndDocument();
+			writer.flush();
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void writeTitle(XMLStreamWriter writer, WindowsMediaCenterMetaData.Title title) throws XMLStreamException {
+		indent(writer, 2);
+		writer.writeStartElement("title");
+		writer.writeCharacters("\n");
+		writeElement(writer, 3, "titleNum", title.getIndex());
+		writeElement(writer, 3, "titleTitle", title.getTitle());
+		writeElement(writer, 3, "studio", title.getStudio());
+		writeElement(writer, 3, "director", title.getDirector());
+		writeElement(writer, 3, "leadPerformer", title.getLeadPerformer());
+		writeElement(writer, 3, "MPAARating", title.getMPAARating());
+		writeElement(writer, 3, "genre", title.getGenre());
+		writeElement(writer, 3, "synopsis", title.getSynopsis());
+		if (title.getChapters() != null) {
+			for (WindowsMediaCenterMetaData.Chapter chapter : title.getChapters()) {
+				indent(writer, 3);
+				writer.writeStartElement("chapter");
+				writer.writeCharacters("\n");
+				writeElement(writer, 4, "chapterNum", chapter.getIndex());
+				writeElement(writer, 4, "chapterTitle", chapter.getChapterTitle());
+				indent(writer, 3);
+				writer.writeEndElement();
+				writer.writeCharacters("\n");
+			}
+		}
+		indent(writer, 2);
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+	}
+
+	private static void writeElement(XMLStreamWriter writer, int depth, String name, Object value) throws XMLStreamException {
+		if (value == null)
+			return;
+
+		indent(writer, depth);
+		writer.writeStartElement(name);
+		writer.writeCharacters(value.toString());
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+	}
+
+	private static void indent(XMLStreamWriter writer, int depth) throws XMLStreamException {
+		for (int t = 0; t < depth; t++) {
+			writer.writeCharacters(INDENT);
+		}
+	}
+
+	private static String formatList(XMLListAdapter adapter, List<String> values) {
+		if (values == null)
+			return null;
+
+		try {
+			return adapter.marshal(values);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static String formatDate(Date date) {
+		if (date == null)
+			return null;
+
+		try {
+			return MediaCenterXmlReader.DATE.marshal(date);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static String formatDateTime(Date date) {
+		if (date == null)
+			return null;
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		return DatatypeConverter.printDateTime(calendar);
+	}
+}
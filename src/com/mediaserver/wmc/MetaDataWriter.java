@@ -0,0 +1,320 @@
+package com.mediaserver.wmc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves edited metadata to DvdInfoCache behind the caller's back. A save only encodes the metadata as it
+ * is now and queues it; a background thread writes the queue out in batches. Saving a disc again before
+ * its last save was written replaces that save, so a disc edited many times in a row is written once.
+ * <p>
+ * A batch writes every file beside its destination first, syncs them all, then moves each over its
+ * destination, so a crash leaves either the old XML or the new. Until a save is written the file still
+ * holds the old metadata, so readers ask getPendingContents first; flush waits for everything saved so
+ * far and reports the files that couldn't be written.
+ */
+public class MetaDataWriter {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetaDataWriter.class);
+	//How long a batch waits for more edits after the first, in milliseconds
+	public static final String DELAY_PROPERTY = "com.mediaserver.wmc.metaDataWriteDelay";
+	public static final long DEFAULT_DELAY = 50;
+	private static final int MAXIMUM_BATCH = 256;
+	private static final MetaDataWriter INSTANCE = new MetaDataWriter(Long.getLong(DELAY_PROPERTY, DEFAULT_DELAY));
+	private static final StripedCounter COALESCED = MediaCenterMetrics.counter("metaData.coalesced");
+	private static final StripedCounter WRITTEN = MediaCenterMetrics.counter("metaData.written");
+	private static final StripedCounter WRITE_ERRORS = MediaCenterMetrics.counter("metaData.writeErrors");
+	private static final Log2Histogram BATCH_WRITE = MediaCenterMetrics.latency("metaData.batch");
+
+	private final long delayMillis;
+	//Saves not yet written, oldest first; a save again moves the disc to the back
+	private final LinkedHashMap<File, PendingSave> pending = new LinkedHashMap<File, PendingSave>();
+	//The batch being written
+	private final Map<File, PendingSave> writing = new LinkedHashMap<File, PendingSave>();
+	//Files whose last save written couldn't be, with the sequence of that save
+	private final Map<File, Long> failedSaves = new LinkedHashMap<File, Long>();
+	private long lastSequence;
+	private long writtenSequence;
+	private boolean flushRequested;
+	private Thread thread;
+
+	private static class PendingSave {
+		private final File file;
+		private final byte[] contents;
+		private final long sequence;
+		private File tempFile;
+		private FileOutputStream stream;
+		private boolean failed;
+
+		private PendingSave(File file, byte[] contents, long sequence) {
+			this.file = file;
+			this.contents = contents;
+			this.sequence = sequence;
+		}
+	}
+
+	public MetaDataWriter(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	public static MetaDataWriter getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Queues the metadata to be written to the file. Later changes to metaData aren't written unless it's
+	 * saved again. Metadata that can't be encoded is logged and dropped.
+	 */
+	public void save(File metaDataFile, WindowsMediaCenterMetaData metaData) {
+		ByteArrayOutputStream contents = new ByteArrayOutputStream(4096);
+		try {
+			MediaCenterXmlWriter.writeMetaData(metaData, contents);
+		} catch (Exception e) {
+			WRITE_ERRORS.increment();
+			LOGGER.error("Couldn't save Media Center metadata to " + metaDataFile, e);
+			return;
+		}
+
+		synchronized (this) {
+			if (pending.remove(metaDataFile) != null)
+				COALESCED.increment();
+			pending.put(metaDataFile, new PendingSave(metaDataFile, contents.toByteArray(), ++lastSequence));
+			ensureStarted();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns what the file will hold once the save queued for it is written, null if none is. A save
+	 * being written right now counts until it's on disk.
+	 */
+	public synchronized byte[] getPendingContents(File metaDataFile) {
+		PendingSave save = pending.get(metaDataFile);
+		if (save == null)
+			save = writing.get(metaDataFile);
+		return save == null ? null : save.contents.clone();
+	}
+
+	/**
+	 * Waits until everything saved before the call has been written. Throws an IOException naming the
+	 * files that couldn't be, which stay unsaved until they're saved again.
+	 */
+	public void flush() throws InterruptedException, IOException {
+		synchronized (this) {
+			long target = lastSequence;
+			while (writtenSequence < target) {
+				flushRequested = true;
+				notifyAll();
+				wait();
+			}
+			checkFailures(target);
+		}
+	}
+
+	/**
+	 * Waits up to the timeout for everything saved before the call to be written, returning whether it
+	 * was. Throws an IOException naming the files that couldn't be.
+	 */
+	public boolean flush(long timeout, TimeUnit unit) throws InterruptedException, IOException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (this) {
+			long target = lastSequence;
+			while (writtenSequence < target) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+
+				flushRequested = true;
+				notifyAll();
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			checkFailures(target);
+			return true;
+		}
+	}
+
+	private void checkFailures(long target) throws IOException {
+		List<File> failed = new ArrayList<File>();
+		for (Map.Entry<File, Long> failure : failedSaves.entrySet()) {
+			if (failure.getValue() <= target)
+				failed.add(failure.getKey());
+		}
+		if (!failed.isEmpty())
+			throw new IOException("Couldn't save Media Center metadata to " + failed);
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	private void ensureStarted() {
+		if (thread != null)
+			return;
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeBatches();
+			}
+		}, "MediaCenterMetaDataWriter");
+		thread.setDaemon(true);
+		thread.start();
+
+		//Saves still queued when the server stops get a last chance to be written
+		Runtime.getRuntime().addShutdownHook(new Thread("MediaCenterMetaDataFlush") {
+			@Override
+			public void run() {
+				try {
+					if (!flush(10, TimeUnit.SECONDS))
+						LOGGER.error("Media Center metadata for " + getPendingCount() + " discs wasn't saved");
+				} catch (InterruptedException e) {
+				} catch (IOException e) {
+					LOGGER.error(e.getMessage());
+				}
+			}
+		});
+	}
+
+	private void writeBatches() {
+		while (true) {
+			List<PendingSave> batch;
+			try {
+				batch = nextBatch();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long start = System.nanoTime();
+			write(batch);
+			BATCH_WRITE.recordSince(start);
+			synchronized (this) {
+				for (PendingSave save : batch) {
+					if (save.failed)
+						failedSaves.put(save.file, save.sequence);
+					else
+						failedSaves.remove(save.file);
+					if (writing.get(save.file) == save)
+						writing.remove(save.file);
+				}
+				//Batches are taken oldest first, so everything before the last of this one has been tried
+				writtenSequence = batch.get(batch.size() - 1).sequence;
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized List<PendingSave> nextBatch() throws InterruptedException {
+		while (pending.isEmpty()) {
+			wait();
+		}
+
+		//Give edits coming in quick succession the chance to join the batch, or replace one in it
+		long deadline = System.currentTimeMillis() + delayMillis;
+		long remaining;
+		while (!flushRequested && pending.size() < MAXIMUM_BATCH && (remaining = deadline - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+		flushRequested = false;
+
+		List<PendingSave> batch = new ArrayList<PendingSave>(Math.min(pending.size(), MAXIMUM_BATCH));
+		Iterator<PendingSave> saves = pending.values().iterator();
+		while (saves.hasNext() && batch.size() < MAXIMUM_BATCH) {
+			PendingSave save = saves.next();
+			batch.add(save);
+			writing.put(save.file, save);
+			saves.remove();
+		}
+		return batch;
+	}
+
+	private static void write(List<PendingSave> batch) {
+		for (PendingSave save : batch) {
+			save.tempFile = new File(save.file.getPath() + ".tmp");
+			try {
+				save.stream = new FileOutputStream(save.tempFile);
+				save.stream.write(save.contents);
+			} catch (IOException e) {
+				failed(save, e);
+			}
+		}
+
+		//One pass of syncs after all the writes, so the disk sees them together
+		for (PendingSave save : batch) {
+			if (save.stream == null)
+				continue;
+
+			try {
+				save.stream.getFD().sync();
+				save.stream.close();
+			} catch (IOException e) {
+				failed(save, e);
+			}
+		}
+
+		Set<File> directories = new LinkedHashSet<File>();
+		for (PendingSave save : batch) {
+			if (save.stream == null)
+				continue;
+
+			try {
+				try {
+					Files.move(save.tempFile.toPath(), save.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(save.tempFile.toPath(), save.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				directories.add(save.file.getAbsoluteFile().getParentFile());
+				WRITTEN.increment();
+			} catch (IOException e) {
+				failed(save, e);
+			}
+		}
+
+		for (File directory : directories) {
+			syncDirectory(directory);
+		}
+	}
+
+	private static void failed(PendingSave save, IOException e) {
+		WRITE_ERRORS.increment();
+		LOGGER.error("Couldn't save Media Center metadata to " + save.file, e);
+		save.failed = true;
+		if (save.stream != null)
+			try {save.stream.close();} catch (IOException ex) {}
+		save.stream = null;
+		if (save.tempFile.exists() && !save.tempFile.delete())
+			LOGGER.error("Couldn't delete " + save.tempFile);
+	}
+
+	/**
+	 * Makes the renames themselves durable where the platform allows it; Windows can't open a directory
+	 * to sync it, and doesn't need to.
+	 */
+	private static void syncDirectory(File directory) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			channel.force(true);
+		} catch (IOException e) {
+		} finally {
+			if (channel != null)
+				try {channel.close();} catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package com.mediaserver.wmc;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of title ordinals. Sets are kept in whichever of three forms is smallest: a
+ * contiguous range, a sorted array of ordinals for sparse sets, or a bitmap for dense ones.
+ */
+public final class OrdinalSet {
+	private static final int RANGE = 0;
+	private static final int SPARSE = 1;
+	private static final int DENSE = 2;
+	private static final int WORDS_PER_BLOCK = 8;
+	public static final OrdinalSet EMPTY = new OrdinalSet(RANGE, 0, 0, null, null, null);
+
+	private final int kind;
+	//For ranges this is the first ordinal, for everything else it's unused
+	private final int start;
+	private final int cardinality;
+	private final int[] ordinals;
+	private final long[] words;
+	//Number of bits set before each block of WORDS_PER_BLOCK words, so select doesn't have to scan the bitmap
+	private final int[] blockRanks;
+	private int hashCode;
+
+	private OrdinalSet(int kind, int start, int cardinality, int[] ordinals, long[] words, int[] blockRanks) {
+		this.kind = kind;
+		this.start = start;
+		this.cardinality = cardinality;
+		this.ordinals = ordinals;
+		this.words = words;
+		this.blockRanks = blockRanks;
+	}
+
+	public static OrdinalSet range(int fromOrdinal, int toOrdinal) {
+		if (toOrdinal <= fromOrdinal)
+			return EMPTY;
+
+		return new OrdinalSet(RANGE, fromOrdinal, toOrdinal - fromOrdinal, null, null, null);
+	}
+
+	/**
+	 * Builds a set from ordinals that are already in ascending order.
+	 */
+	public static OrdinalSet ofSorted(int[] sortedOrdinals, int count) {
+		if (count == 0)
+			return EMPTY;
+
+		int first = sortedOrdinals[0];
+		int last = sortedOrdinals[count - 1];
+		if (last - first + 1 == count)
+			return range(first, last + 1);
+
+		//An ordinal costs 32 bits in an array and (last + 1) / count bits in a bitmap
+		if ((long)count * 32 <= last + 1)
+			return new OrdinalSet(SPARSE, 0, count, Arrays.copyOf(sortedOrdinals, count), null, null);
+
+		long[] words = new long[(last >> 6) + 1];
+		for (int t = 0; t < count; t++) {
+			words[sortedOrdinals[t] >> 6] |= 1L << sortedOrdinals[t];
+		}
+		return dense(words, count);
+	}
+
+	private static OrdinalSet dense(long[] words, int cardinality) {
+		int[] blockRanks = new int[(words.length + WORDS_PER_BLOCK - 1) / WORDS_PER_BLOCK];
+		int rank = 0;
+		for (int t = 0; t < words.length; t++) {
+			if (t % WORDS_PER_BLOCK == 0)
+				blockRanks[t / WORDS_PER_BLOCK] = rank;
+			rank += Long.bitCount(words[t]);
+		}
+		return new OrdinalSet(DENSE, 0, cardinality, null, words, blockRanks);
+	}
+
+	private static OrdinalSet compact(long[] words, int cardinality) {
+		if (cardinality == 0)
+			return EMPTY;
+
+		int[] sorted = new int[cardinality];
+		int count = 0;
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			while (word != 0) {
+				sorted[count++] = (w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+		return ofSorted(sorted, count);
+	}
+
+	public int size() {
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		return cardinality == 0;
+	}
+
+	public boolean contains(int ordinal) {
+		switch (kind) {
+		case RANGE:
+			return ordinal >= start && ordinal < start + cardinality;
+		case SPARSE:
+			return Arrays.binarySearch(ordinals, ordinal) >= 0;
+		default:
+			int word = ordinal >> 6;
+			return ordinal >= 0 && word < words.length && (words[word] & (1L << ordinal)) != 0;
+		}
+	}
+
+	/**
+	 * Returns the ordinal at the given position in ascending order.
+	 */
+	public int select(int index) {
+		if (index < 0 || index >= cardinality)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + cardinality);
+
+		switch (kind) {
+		case RANGE:
+			return start + index;
+		case SPARSE:
+			return ordinals[index];
+		default:
+			int low = 0;
+			int high = blockRanks.length - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (blockRanks[middle] <= index)
+					low = middle;
+				else
+					high = middle - 1;
+			}
+
+			int remaining = index - blockRanks[low];
+			for (int w = low * WORDS_PER_BLOCK; w < words.length; w++) {
+				int bits = Long.bitCount(words[w]);
+				if (remaining < bits) {
+					long word = words[w];
+					for (int t = 0; t < remaining; t++) {
+						word &= word - 1;
+					}
+					return (w << 6) + Long.numberOfTrailingZeros(word);
+				}
+				remaining -= bits;
+			}
+			throw new IllegalStateException("Bitmap rank directory is out of date");
+		}
+	}
+
+	/**
+	 * Returns the first ordinal that is at least fromOrdinal, or -1 if there isn't one.
+	 */
+	public int nextOrdinal(int fromOrdinal) {
+		switch (kind) {
+		case RANGE:
+			if (fromOrdinal < start)
+				return cardinality > 0 ? start : -1;
+			return fromOrdinal < start + cardinality ? fromOrdinal : -1;
+		case SPARSE:
+			int position = Arrays.binarySearch(ordinals, fromOrdinal);
+			if (position < 0)
+				position = -position - 1;
+			return position < ordinals.length ? ordinals[position] : -1;
+		default:
+			if (fromOrdinal < 0)
+				fromOrdinal = 0;
+			int w = fromOrdinal >> 6;
+			if (w >= words.length)
+				return -1;
+
+			long word = words[w] & (-1L << fromOrdinal);
+			while (true) {
+				if (word != 0)
+					return (w << 6) + Long.numberOfTrailingZeros(word);
+				if (++w == words.length)
+					return -1;
+				word = words[w];
+			}
+		}
+	}
+
+	public OrdinalSet and(OrdinalSet other) {
+		if (isEmpty() || other.isEmpty())
+			return EMPTY;
+
+		if (kind == RANGE && other.kind == RANGE)
+			return range(Math.max(start, other.start), Math.min(start + cardinality, other.start + other.cardinality));
+
+		//Walk the smaller set and probe the larger one
+		OrdinalSet smaller = cardinality <= other.cardinality ? this : other;
+		OrdinalSet larger = smaller == this ? other : this;
+		if (smaller.kind == DENSE && larger.kind == DENSE) {
+			long[] result = new long[Math.min(words.length, other.words.length)];
+			int resultCardinality = 0;
+			for (int t = 0; t < result.length; t++) {
+				result[t] = words[t] & other.words[t];
+				resultCardinality += Long.bitCount(result[t]);
+			}
+			return compact(result, resultCardinality);
+		}
+
+		int[] result = new int[smaller.cardinality];
+		int count = 0;
+		for (int ordinal = smaller.nextOrdinal(0); ordinal != -1; ordinal = smaller.nextOrdinal(ordinal + 1)) {
+			if (larger.contains(ordinal))
+				result[count++] = ordinal;
+		}
+		return ofSorted(result, count);
+	}
+
+	public OrdinalSet or(OrdinalSet other) {
+		if (isEmpty())
+			return other;
+		if (other.isEmpty())
+			return this;
+
+		long[] result = new long[(Math.max(last(), other.last()) >> 6) + 1];
+		addTo(result);
+		other.addTo(result);
+		int resultCardinality = 0;
+		for (long word : result) {
+			resultCardinality += Long.bitCount(word);
+		}
+		return compact(result, resultCardinality);
+	}
+
+	private int last() {
+		return select(cardinality - 1);
+	}
+
+	private void addTo(long[] result) {
+		if (kind == DENSE) {
+			for (int t = 0; t < words.length; t++) {
+				result[t] |= words[t];
+			}
+			return;
+		}
+
+		for (int ordinal = nextOrdinal(0); ordinal != -1; ordinal = nextOrdinal(ordinal + 1)) {
+			result[ordinal >> 6] |= 1L << ordinal;
+		}
+	}
+
+	public OrdinalIterator iterator() {
+		return new OrdinalIterator();
+	}
+
+	public class OrdinalIterator {
+		private int next = nextOrdinal(0);
+
+		public boolean hasNext() {
+			return next != -1;
+		}
+
+		public int next() {
+			if (next == -1)
+				throw new NoSuchElementException();
+
+			int current = next;
+			next = nextOrdinal(current + 1);
+			return current;
+		}
+	}
+
+	/**
+	 * Rough heap footprint, used to see what the index costs.
+	 */
+	public long estimateBytes() {
+		long bytes = 40;
+		if (ordinals != null)
+			bytes += 16 + 4L * ordinals.length;
+		if (words != null)
+			bytes += 16 + 8L * words.length + 16 + 4L * blockRanks.length;
+		return bytes;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = hashCode;
+		if (result == 0) {
+			result = 1;
+			for (int ordinal = nextOrdinal(0); ordinal != -1; ordinal = nextOrdinal(ordinal + 1)) {
+				result = 31 * result + ordinal;
+			}
+			hashCode = result;
+		}
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof OrdinalSet))
+			return false;
+
+		OrdinalSet other = (OrdinalSet)obj;
+		if (cardinality != other.cardinality || hashCode() != other.hashCode())
+			return false;
+
+		OrdinalIterator mine = iterator();
+		OrdinalIterator theirs = other.iterator();
+		while (mine.hasNext()) {
+			if (mine.next() != theirs.next())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "OrdinalSet[" + cardinality + "]";
+	}
+}
@@ -0,0 +1,11 @@
+package com.mediaserver.wmc;
+
+/**
+ * A UPNPObject that is filled one Browse page at a time. Before the children of a page are added the
+ * node is told where the page starts and how many children the container has in total, which is all a
+ * renderer needs for StartingIndex/RequestedCount paging. Container members are handed over as lazy
+ * views (TitleSet), so they cost nothing until a renderer opens them.
+ */
+public interface PagedUPNPObject<T> extends UPNPObject<T> {
+	public void startChildPage(int startingIndex, int totalChildCount);
+}
@@ -0,0 +1,109 @@
+package com.mediaserver.wmc;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Movie folders given without the registry, so the library can be served and tested away from Windows.
+ * They come from a fixed list, the com.mediaserver.wmc.libraryRoots system property (separated by the
+ * platform's path separator) or a properties file laid out like the registry key, with Folder0, Folder1
+ * and so on. The file is read again on every call.
+ */
+public class PropertiesLibraryRootSource implements LibraryRootSource {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PropertiesLibraryRootSource.class);
+	public static final String ROOTS_PROPERTY = "com.mediaserver.wmc.libraryRoots";
+	public static final String ROOTS_FILE_PROPERTY = "com.mediaserver.wmc.libraryRootsFile";
+	public static final String DEFAULT_ROOTS_FILE = "MediaCenterFolders.properties";
+
+	private final List<String> roots;
+	private final File file;
+
+	public PropertiesLibraryRootSource(List<String> roots) {
+		this.roots = Collections.unmodifiableList(new ArrayList<String>(roots));
+		this.file = null;
+	}
+
+	public PropertiesLibraryRootSource(File file) {
+		this.roots = null;
+		this.file = file;
+	}
+
+	/**
+	 * Returns the folders of the system property, or null when it isn't set.
+	 */
+	public static PropertiesLibraryRootSource fromSystemProperty() {
+		String value = System.getProperty(ROOTS_PROPERTY);
+		if (value == null)
+			return null;
+
+		List<String> roots = new ArrayList<String>();
+		for (String root : value.split(File.pathSeparator)) {
+			if (root.trim().length() > 0)
+				roots.add(root.trim());
+		}
+		return new PropertiesLibraryRootSource(roots);
+	}
+
+	/**
+	 * Returns the source this platform uses when none is set: the system property when it's given, the
+	 * registry on Windows, and otherwise the properties file named by com.mediaserver.wmc.libraryRootsFile
+	 * or MediaCenterFolders.properties in the working directory.
+	 */
+	public static LibraryRootSource getDefault() {
+		LibraryRootSource source = fromSystemProperty();
+		if (source != null)
+			return source;
+		if (System.getProperty("os.name", "").startsWith("Windows"))
+			return new RegistryLibraryRootSource();
+		return new PropertiesLibraryRootSource(new File(System.getProperty(ROOTS_FILE_PROPERTY, DEFAULT_ROOTS_FILE)));
+	}
+
+	@Override
+	public List<String> getRoots() {
+		if (roots != null)
+			return roots;
+
+		List<String> configuredFolders = new ArrayList<String>();
+		if (!file.isFile()) {
+			LOGGER.warn("No movie folders, " + file.getAbsolutePath() + " doesn't exist");
+			return configuredFolders;
+		}
+
+		Properties properties = new Properties();
+		InputStream stream = null;
+		try {
+			stream = new BufferedInputStream(new FileInputStream(file));
+			properties.load(stream);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't read movie folders from " + file, e);
+			return configuredFolders;
+		} finally {
+			if (stream != null)
+				try {stream.close();} catch (IOException e) {}
+		}
+
+		for (int t = 0; ; t++) {
+			String fileName = properties.getProperty("Folder" + t);
+			if (fileName == null)
+				break;
+
+			configuredFolders.add(fileName.trim());
+		}
+		return configuredFolders;
+	}
+
+	@Override
+	public String toString() {
+		return roots != null ? roots.toString() : file.getAbsolutePath();
+	}
+}
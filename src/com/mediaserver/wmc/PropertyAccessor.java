@@ -0,0 +1,225 @@
+package com.mediaserver.wmc;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a browse property off a WindowsMediaCenterInfo without going through reflection. The accessors
+ * are built once when the class loads; properties without a hand written accessor fall back to a
+ * MethodHandle bound to the bean's read method.
+ */
+public abstract class PropertyAccessor {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PropertyAccessor.class);
+	public static final String UNKNOWN_VALUE = "(Unknown)";
+	private static final Map<String, PropertyAccessor> ACCESSORS;
+
+	private String property;
+	private boolean multiValued;
+
+	static {
+		Map<String, PropertyAccessor> accessors = new HashMap<String, PropertyAccessor>();
+		register(accessors, new PropertyAccessor("title", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getTitle();
+			}
+		});
+		register(accessors, new PropertyAccessor("MPAARating", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getMPAARating();
+			}
+		});
+		register(accessors, new PropertyAccessor("rating", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getRating();
+			}
+		});
+		register(accessors, new PropertyAccessor("studio", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getStudio();
+			}
+		});
+		register(accessors, new PropertyAccessor("releaseYear", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getReleaseYear();
+			}
+		});
+		register(accessors, new PropertyAccessor("releaseDecade", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getReleaseDecade();
+			}
+		});
+		register(accessors, new PropertyAccessor("duration", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getDuration();
+			}
+		});
+		register(accessors, new PropertyAccessor("durationRange", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getDurationRange();
+			}
+		});
+		register(accessors, new PropertyAccessor("flatFolders", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getFlatFolders();
+			}
+		});
+		register(accessors, new PropertyAccessor("firstFolder", false) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getFirstFolder();
+			}
+		});
+		register(accessors, new PropertyAccessor("genre", true) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getGenre();
+			}
+		});
+		register(accessors, new PropertyAccessor("director", true) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getDirector();
+			}
+		});
+		register(accessors, new PropertyAccessor("leadPerformer", true) {
+			@Override
+			protected Object readValue(WindowsMediaCenterInfo info) {
+				return info.getLeadPerformer();
+			}
+		});
+
+		//Anything WindowsMediaCenterInfo grows later still gets an accessor, just a slightly slower one
+		for (String property : WindowsMediaCenterManager.getMediaCenterInfoProperties()) {
+			if (!accessors.containsKey(property))
+				registerMethodHandle(accessors, property);
+		}
+		ACCESSORS = Collections.unmodifiableMap(accessors);
+	}
+
+	private static void register(Map<String, PropertyAccessor> accessors, PropertyAccessor accessor) {
+		accessors.put(accessor.property, accessor);
+	}
+
+	private static void registerMethodHandle(Map<String, PropertyAccessor> accessors, String property) {
+		try {
+			BeanInfo beanInfo = Introspector.getBeanInfo(WindowsMediaCenterInfo.class);
+			for (PropertyDescriptor descriptor : beanInfo.getPropertyDescriptors()) {
+				if (!descriptor.getName().equals(property) || descriptor.getReadMethod() == null)
+					continue;
+
+				final MethodHandle handle = MethodHandles.publicLookup().unreflect(descriptor.getReadMethod()).asType(MethodType.methodType(Object.class, WindowsMediaCenterInfo.class));
+				register(accessors, new PropertyAccessor(property, List.class.isAssignableFrom(descriptor.getPropertyType())) {
+					@Override
+					protected Object readValue(WindowsMediaCenterInfo info) {
+						try {
+							return (Object)handle.invokeExact(info);
+						} catch (RuntimeException e) {
+							throw e;
+						} catch (Throwable e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				});
+			}
+		} catch (IntrospectionException e) {
+			LOGGER.error("Couldn't create bean info", e);
+		} catch (IllegalAccessException e) {
+			LOGGER.error("Couldn't create property accessor for " + property, e);
+		}
+	}
+
+	public static PropertyAccessor forProperty(String property) {
+		PropertyAccessor accessor = ACCESSORS.get(property);
+		if (accessor == null)
+			throw new IllegalArgumentException("No browsable property named: " + property);
+
+		return accessor;
+	}
+
+	public static boolean isBrowsable(String property) {
+		return ACCESSORS.containsKey(property);
+	}
+
+	protected PropertyAccessor(String property, boolean multiValued) {
+		this.property = property;
+		this.multiValued = multiValued;
+	}
+
+	protected abstract Object readValue(WindowsMediaCenterInfo info);
+
+	public String getProperty() {
+		return property;
+	}
+
+	public boolean isMultiValued() {
+		return multiValued;
+	}
+
+	/**
+	 * Returns the order values are browsed in, null for their natural order. Numeric properties and their
+	 * buckets are ordered by number.
+	 */
+	public Comparator<String> getValueOrder() {
+		return RangeIndex.isNumeric(property) || RangeIndex.isBucketed(property) ? RangeIndex.NUMERIC_ORDER : null;
+	}
+
+	public Object read(WindowsMediaCenterInfo info) {
+		try {
+			return readValue(info);
+		} catch (RuntimeException e) {
+			LOGGER.error("Error executing property accessor for " + property, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the values this title is grouped under, one per list element for list properties. Missing and
+	 * empty values are grouped under (Unknown).
+	 */
+	public void appendValues(WindowsMediaCenterInfo info, Collection<String> values) {
+		Object value = read(info);
+		if (value instanceof List) {
+			List<?> valueList = (List<?>)value;
+			for (int t = 0; t < valueList.size(); t++) {
+				values.add(toValue(valueList.get(t)));
+			}
+		} else {
+			values.add(toValue(value));
+		}
+	}
+
+	private static String toValue(Object value) {
+		if (value == null || value.equals(""))
+			return UNKNOWN_VALUE;
+
+		return value instanceof String ? (String)value : value + "";
+	}
+
+	@Override
+	public String toString() {
+		return property;
+	}
+}
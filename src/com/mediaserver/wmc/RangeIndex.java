@@ -0,0 +1,264 @@
+package com.mediaserver.wmc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The titles of a LibraryStore sorted by a numeric property: release date, release year, duration or
+ * rating. Values sit in one sorted primitive array beside the ordinals of their titles, so a range like
+ * 1990 to 1999 or under 100 minutes is two binary searches, and counting one costs nothing more. Titles
+ * without a value aren't in the index.
+ * <p>
+ * Release decades and duration ranges are bucketed properties: each bucket's titles are a range query
+ * over the property the bucket is taken from, so the bucket facets are built without reading a title.
+ */
+public class RangeIndex {
+	public static final String RELEASE_DATE = "releaseDate";
+	public static final String RELEASE_YEAR = "releaseYear";
+	public static final String DURATION = "duration";
+	public static final String RATING = "rating";
+	public static final String RELEASE_DECADE = "releaseDecade";
+	public static final String DURATION_RANGE = "durationRange";
+	private static final int DECADE = 10;
+	//Minutes
+	private static final int DURATION_BUCKET = 30;
+
+	/**
+	 * Orders values by the number they start with, then as strings; values without a number come last.
+	 */
+	public static final Comparator<String> NUMERIC_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String o1, String o2) {
+			double number1 = leadingNumber(o1);
+			double number2 = leadingNumber(o2);
+			if (Double.isNaN(number1) != Double.isNaN(number2))
+				return Double.isNaN(number1) ? 1 : -1;
+
+			int compareValue = Double.isNaN(number1) ? 0 : Double.compare(number1, number2);
+			return compareValue != 0 ? compareValue : o1.compareTo(o2);
+		}
+	};
+
+	private final String property;
+	//Ascending, titles of equal value in ordinal order
+	private final double[] values;
+	private final int[] ordinals;
+
+	private RangeIndex(String property, double[] values, int[] ordinals) {
+		this.property = property;
+		this.values = values;
+		this.ordinals = ordinals;
+	}
+
+	public static boolean isNumeric(String property) {
+		return RELEASE_DATE.equals(property) || RELEASE_YEAR.equals(property) || DURATION.equals(property) || RATING.equals(property);
+	}
+
+	public static boolean isBucketed(String property) {
+		return RELEASE_DECADE.equals(property) || DURATION_RANGE.equals(property);
+	}
+
+	/**
+	 * Returns the numeric property a bucketed property is taken from.
+	 */
+	static String sourceOf(String bucketedProperty) {
+		return RELEASE_DECADE.equals(bucketedProperty) ? RELEASE_YEAR : DURATION;
+	}
+
+	/**
+	 * Returns the bucket a value of the bucketed property's source falls in, like 1990s or 90-119 min.
+	 */
+	static String bucketOf(String bucketedProperty, double value) {
+		if (RELEASE_DECADE.equals(bucketedProperty))
+			return (long)Math.floor(value / DECADE) * DECADE + "s";
+
+		long start = (long)Math.floor(value / DURATION_BUCKET) * DURATION_BUCKET;
+		return start + "-" + (start + DURATION_BUCKET - 1) + " min";
+	}
+
+	private static double widthOf(String bucketedProperty) {
+		return RELEASE_DECADE.equals(bucketedProperty) ? DECADE : DURATION_BUCKET;
+	}
+
+	/**
+	 * Sorts the titles of the store by the numeric property.
+	 */
+	static RangeIndex build(LibraryStore store, String property) {
+		long start = System.nanoTime();
+		double[] rowValues = new double[store.size()];
+		int count = 0;
+		if (RELEASE_DATE.equals(property) || DURATION.equals(property)) {
+			for (int row = 0; row < store.size(); row++) {
+				rowValues[row] = RELEASE_DATE.equals(property) ? toValue(store.getReleaseDate(row)) : toValue(store.getDuration(row));
+				if (!Double.isNaN(rowValues[row]))
+					count++;
+			}
+		} else {
+			//Parse each distinct value once rather than once a title
+			int column = RELEASE_YEAR.equals(property) ? LibraryStore.RELEASE_YEAR : LibraryStore.RATING;
+			String[] dictionary = store.getDictionary(column);
+			double[] parsed = new double[dictionary.length];
+			for (int code = 0; code < dictionary.length; code++) {
+				parsed[code] = parse(dictionary[code]);
+			}
+			for (int row = 0; row < store.size(); row++) {
+				int code = store.getCodes(column).get(row);
+				rowValues[row] = code == LibraryStore.NONE ? Double.NaN : parsed[code];
+				if (!Double.isNaN(rowValues[row]))
+					count++;
+			}
+		}
+
+		//Rank the distinct values, then sort (rank, ordinal) pairs packed into longs, like grouping a column
+		double[] distinct = new double[count];
+		int position = 0;
+		for (double value : rowValues) {
+			if (!Double.isNaN(value))
+				distinct[position++] = value;
+		}
+		Arrays.sort(distinct);
+		int distinctCount = 0;
+		for (int t = 0; t < count; t++) {
+			if (distinctCount == 0 || distinct[distinctCount - 1] != distinct[t])
+				distinct[distinctCount++] = distinct[t];
+		}
+
+		long[] pairs = new long[count];
+		position = 0;
+		for (int row = 0; row < rowValues.length; row++) {
+			if (!Double.isNaN(rowValues[row]))
+				pairs[position++] = ((long)Arrays.binarySearch(distinct, 0, distinctCount, rowValues[row]) << 32) | row;
+		}
+		Arrays.sort(pairs);
+		double[] values = new double[count];
+		int[] ordinals = new int[count];
+		for (int t = 0; t < count; t++) {
+			values[t] = distinct[(int)(pairs[t] >>> 32)];
+			ordinals[t] = (int)pairs[t];
+		}
+		MediaCenterMetrics.latency("browse.rangeIndex." + property).recordSince(start);
+		return new RangeIndex(property, values, ordinals);
+	}
+
+	private static double toValue(long releaseDate) {
+		return releaseDate == Long.MIN_VALUE ? Double.NaN : releaseDate;
+	}
+
+	private static double toValue(int duration) {
+		return duration == Integer.MIN_VALUE ? Double.NaN : duration;
+	}
+
+	static double parse(String value) {
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static double leadingNumber(String value) {
+		int end = 0;
+		while (end < value.length() && (Character.isDigit(value.charAt(end)) || (value.charAt(end) == '.' && end > 0))) {
+			end++;
+		}
+		return end == 0 ? Double.NaN : parse(value.substring(0, end));
+	}
+
+	public String getProperty() {
+		return property;
+	}
+
+	/**
+	 * Returns how many titles have a value.
+	 */
+	public int size() {
+		return values.length;
+	}
+
+	public double getMinimum() {
+		return values.length == 0 ? Double.NaN : values[0];
+	}
+
+	public double getMaximum() {
+		return values.length == 0 ? Double.NaN : values[values.length - 1];
+	}
+
+	/**
+	 * Returns the titles valued from from, inclusive, to to, exclusive.
+	 */
+	public OrdinalSet range(double from, double to) {
+		int start = lowerBound(from);
+		int end = Math.max(start, lowerBound(to));
+		int[] rangeOrdinals = Arrays.copyOfRange(ordinals, start, end);
+		Arrays.sort(rangeOrdinals);
+		return OrdinalSet.ofSorted(rangeOrdinals, rangeOrdinals.length);
+	}
+
+	public OrdinalSet atLeast(double from) {
+		return range(from, Double.POSITIVE_INFINITY);
+	}
+
+	public OrdinalSet below(double to) {
+		return range(Double.NEGATIVE_INFINITY, to);
+	}
+
+	/**
+	 * Counts the titles valued from from, inclusive, to to, exclusive, without collecting them.
+	 */
+	public int count(double from, double to) {
+		return Math.max(0, lowerBound(to) - lowerBound(from));
+	}
+
+	/**
+	 * Returns the position of the first value not below value.
+	 */
+	private int lowerBound(double value) {
+		int low = 0;
+		int high = values.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (values[middle] < value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Groups every title into the buckets of a bucketed property taken from this one, a range query a
+	 * bucket, with the titles that have no value under (Unknown).
+	 */
+	SortedMap<String, OrdinalSet> buckets(String bucketedProperty, int titleCount) {
+		SortedMap<String, OrdinalSet> facet = new TreeMap<String, OrdinalSet>(NUMERIC_ORDER);
+		double width = widthOf(bucketedProperty);
+		int position = 0;
+		while (position < values.length) {
+			double from = Math.floor(values[position] / width) * width;
+			OrdinalSet bucket = range(from, from + width);
+			facet.put(bucketOf(bucketedProperty, from), bucket);
+			position = lowerBound(from + width);
+		}
+
+		if (values.length < titleCount) {
+			boolean[] valued = new boolean[titleCount];
+			for (int ordinal : ordinals) {
+				valued[ordinal] = true;
+			}
+			int[] unknown = new int[titleCount - values.length];
+			int count = 0;
+			for (int ordinal = 0; ordinal < titleCount; ordinal++) {
+				if (!valued[ordinal])
+					unknown[count++] = ordinal;
+			}
+			facet.put(PropertyAccessor.UNKNOWN_VALUE, OrdinalSet.ofSorted(unknown, count));
+		}
+		return facet;
+	}
+
+	public long estimateBytes() {
+		return 16 + 8L * values.length + 16 + 4L * ordinals.length;
+	}
+}
@@ -0,0 +1,34 @@
+package com.mediaserver.wmc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cfs.os.WindowsRegistry;
+import com.cfs.os.WindowsRegistryRoot;
+
+/**
+ * The movie folders Media Center keeps in the current user's registry, as Folder0, Folder1 and so on.
+ */
+public class RegistryLibraryRootSource implements LibraryRootSource {
+	public static final String MOVIE_FOLDERS_KEY = "Software\\Microsoft\\Windows\\CurrentVersion\\Media Center\\MediaFolders\\Movie";
+
+	@Override
+	public List<String> getRoots() {
+		WindowsRegistryRoot registryRoot = WindowsRegistryRoot.HKEY_CURRENT_USER;
+		List<String> configuredFolders = new ArrayList<String>();
+		for (int t = 0; ; t++) {
+			String fileName = WindowsRegistry.readString(registryRoot, MOVIE_FOLDERS_KEY, "Folder" + t);
+			if (fileName == null)
+				break;
+			
+			configuredFolders.add(fileName);
+		}
+		
+		return configuredFolders;
+	}
+
+	@Override
+	public String toString() {
+		return "HKEY_CURRENT_USER\\" + MOVIE_FOLDERS_KEY;
+	}
+}
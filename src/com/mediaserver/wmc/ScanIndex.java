@@ -0,0 +1,217 @@
+package com.mediaserver.wmc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers what every dvdid.xml and its DvdInfoCache metadata looked like the last time they were
+ * parsed, so a refresh only has to parse the titles whose files were added or changed since.
+ */
+public class ScanIndex {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ScanIndex.class);
+	private static final int INDEX_VERSION = 1;
+	public static final String DEFAULT_INDEX_FILE = "MediaCenterScanIndex.ser";
+
+	private File indexFile;
+	private Map<String, Entry> previousPass = new ConcurrentHashMap<String, Entry>();
+	private Map<String, Entry> currentPass = new ConcurrentHashMap<String, Entry>();
+	private boolean loaded = false;
+
+	public static class Entry implements Serializable {
+		private static final long serialVersionUID = -4571296318092736025L;
+		private String diskPath;
+		private long diskLength;
+		private long diskModified;
+		private String metaDataPath;
+		private long metaDataLength;
+		private long metaDataModified;
+		private DVDIdDisk disk;
+		private WindowsMediaCenterMetaData metaData;
+		private boolean failed;
+
+		private Entry(File diskFile, long diskLength, long diskModified) {
+			this.diskPath = diskFile.getPath();
+			this.diskLength = diskLength;
+			this.diskModified = diskModified;
+		}
+
+		public DVDIdDisk getDisk() {
+			return disk;
+		}
+
+		public WindowsMediaCenterMetaData getMetaData() {
+			return metaData;
+		}
+
+		public boolean isFailed() {
+			return failed;
+		}
+
+		private boolean isSameDisk(long length, long modified) {
+			return diskLength == length && diskModified == modified;
+		}
+
+		private boolean isSameMetaData(File metaDataFile) {
+			if (metaDataPath == null || !metaDataPath.equals(metaDataFile.getPath()))
+				return false;
+
+			return metaDataLength == metaDataFile.length() && metaDataModified == metaDataFile.lastModified();
+		}
+	}
+
+	public ScanIndex() {
+		this(new File(DEFAULT_INDEX_FILE));
+	}
+
+	public ScanIndex(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Returns the entry from the last pass if neither the dvdid file nor its metadata file has changed.
+	 * Unchanged entries are carried into the current pass as they're found.
+	 */
+	public Entry findUnchanged(File diskFile, long diskLength, long diskModified) {
+		ensureLoaded();
+
+		Entry entry = previousPass.get(diskFile.getPath());
+		if (entry == null || !entry.isSameDisk(diskLength, diskModified))
+			return null;
+
+		if (!entry.failed) {
+			File metaDataFile = WindowsMediaCenterInfo.getMetaDataFile(entry.disk);
+			if (!entry.isSameMetaData(metaDataFile))
+				return null;
+		}
+
+		currentPass.put(entry.diskPath, entry);
+		return entry;
+	}
+
+	void recordParsed(File diskFile, long diskLength, long diskModified, TitleRecord record) {
+		Entry entry = new Entry(diskFile, diskLength, diskModified);
+		entry.disk = record.disk;
+		entry.failed = !record.isParsed();
+		if (!entry.failed) {
+			File metaDataFile = record.getMetaDataFile();
+			entry.metaDataPath = metaDataFile.getPath();
+			entry.metaDataLength = metaDataFile.length();
+			entry.metaDataModified = metaDataFile.lastModified();
+			entry.metaData = record.metaData;
+		}
+
+		currentPass.put(entry.diskPath, entry);
+	}
+
+	public void recordFailed(File diskFile, long diskLength, long diskModified) {
+		Entry entry = new Entry(diskFile, diskLength, diskModified);
+		entry.failed = true;
+		currentPass.put(entry.diskPath, entry);
+	}
+
+	public int size() {
+		ensureLoaded();
+		return previousPass.size();
+	}
+
+	/**
+	 * Makes the current pass the baseline for the next one and writes it to disk. Titles that
+	 * weren't seen during the pass are dropped. The entries hold every title's parsed metadata, which
+	 * the library store has its own copy of by now, so they're let go and read back on the next pass.
+	 */
+	public synchronized void completePass() {
+		previousPass = currentPass;
+		currentPass = new ConcurrentHashMap<String, Entry>();
+		save();
+		previousPass = new ConcurrentHashMap<String, Entry>();
+		loaded = false;
+	}
+
+	public synchronized void clear() {
+		previousPass = new ConcurrentHashMap<String, Entry>();
+		currentPass = new ConcurrentHashMap<String, Entry>();
+		loaded = true;
+		if (indexFile.exists() && !indexFile.delete())
+			LOGGER.error("Couldn't delete Media Center scan index: " + indexFile);
+	}
+
+	private synchronized void ensureLoaded() {
+		if (loaded)
+			return;
+
+		loaded = true;
+		load();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void load() {
+		if (!indexFile.exists())
+			return;
+
+		ObjectInputStream stream = null;
+		try {
+			stream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (stream.readInt() != INDEX_VERSION) {
+				LOGGER.info("Media Center scan index is from another version, rebuilding it");
+				return;
+			}
+
+			previousPass = new ConcurrentHashMap<String, Entry>((HashMap<String, Entry>)stream.readObject());
+		} catch (IOException e) {
+			LOGGER.error("Couldn't load Media Center scan index", e);
+		} catch (ClassNotFoundException e) {
+			LOGGER.error("Couldn't load Media Center scan index", e);
+		} catch (ClassCastException e) {
+			LOGGER.error("Couldn't load Media Center scan index", e);
+		} finally {
+			if (stream != null)
+				try {stream.close();} catch (IOException e) {}
+		}
+	}
+
+	private void save() {
+		//Written and synced beside the real index, then moved over it, so a crash leaves one index or the other
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		ObjectOutputStream stream = null;
+		try {
+			FileOutputStream fileStream = new FileOutputStream(tempFile);
+			stream = new ObjectOutputStream(new BufferedOutputStream(fileStream));
+			stream.writeInt(INDEX_VERSION);
+			stream.writeObject(new HashMap<String, Entry>(previousPass));
+			stream.flush();
+			fileStream.getFD().sync();
+			stream.close();
+			stream = null;
+
+			try {
+				Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (FileNotFoundException e) {
+			LOGGER.error("Couldn't save Media Center scan index", e);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't save Media Center scan index", e);
+		} finally {
+			if (stream != null)
+				try {stream.close();} catch (IOException e) {}
+		}
+	}
+}
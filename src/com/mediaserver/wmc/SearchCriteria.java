@@ -0,0 +1,199 @@
+package com.mediaserver.wmc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates ContentDirectory SearchCriteria strings, like
+ * <code>upnp:class derivedfrom "object.item.videoItem" and (dc:title contains "alien" or upnp:actor contains "weaver")</code>,
+ * against a SearchIndex. Text properties are matched word by word the way free text searches are, so
+ * <code>=</code> behaves like <code>contains</code>. Properties the library doesn't index match nothing, and
+ * every title is a video item. Malformed criteria throw IllegalArgumentException, which renderers know
+ * as error 708.
+ */
+public class SearchCriteria {
+	//Titles that match without scoring, on class say, rank below every real match
+	private static final float MATCHED = 1e-6f;
+	private static final String ITEM_CLASS = "object.item.videoItem.movie";
+	private static final Map<String, Integer> PROPERTY_FIELDS = new HashMap<String, Integer>();
+
+	static {
+		PROPERTY_FIELDS.put("dc:title", 1 << SearchIndex.TITLE);
+		PROPERTY_FIELDS.put("dc:description", 1 << SearchIndex.SYNOPSIS);
+		PROPERTY_FIELDS.put("upnp:longDescription", 1 << SearchIndex.SYNOPSIS);
+		PROPERTY_FIELDS.put("upnp:director", 1 << SearchIndex.DIRECTOR);
+		PROPERTY_FIELDS.put("upnp:actor", 1 << SearchIndex.LEAD_PERFORMER);
+		PROPERTY_FIELDS.put("upnp:artist", 1 << SearchIndex.LEAD_PERFORMER);
+		PROPERTY_FIELDS.put("dc:creator", (1 << SearchIndex.DIRECTOR) | (1 << SearchIndex.LEAD_PERFORMER));
+		PROPERTY_FIELDS.put("dc:publisher", 1 << SearchIndex.STUDIO);
+	}
+
+	private final SearchIndex index;
+	private final List<String> tokens;
+	private int position;
+
+	private SearchCriteria(SearchIndex index, List<String> tokens) {
+		this.index = index;
+		this.tokens = tokens;
+	}
+
+	/**
+	 * Scores every title of the index against the criteria; titles that don't match score 0.
+	 */
+	public static float[] evaluate(SearchIndex index, String criteria) {
+		SearchCriteria parser = new SearchCriteria(index, tokenize(criteria));
+		if (parser.tokens.isEmpty() || parser.tokens.equals(Arrays.asList("*")))
+			return parser.all();
+
+		float[] scores = parser.or();
+		if (parser.position < parser.tokens.size())
+			throw new IllegalArgumentException("Unexpected " + parser.tokens.get(parser.position) + " in search criteria " + criteria);
+		return scores;
+	}
+
+	/**
+	 * Runs the criteria and picks out one page of the matches, best first.
+	 */
+	public static SearchResults search(SearchIndex index, String criteria, int startingIndex, int requestedCount) {
+		return index.rank(evaluate(index, criteria), startingIndex, requestedCount);
+	}
+
+	private float[] or() {
+		float[] scores = and();
+		while (accept("or")) {
+			float[] other = and();
+			for (int row = 0; row < scores.length; row++) {
+				scores[row] += other[row];
+			}
+		}
+		return scores;
+	}
+
+	private float[] and() {
+		float[] scores = primary();
+		while (accept("and")) {
+			float[] other = primary();
+			for (int row = 0; row < scores.length; row++) {
+				scores[row] = scores[row] > 0 && other[row] > 0 ? scores[row] + other[row] : 0;
+			}
+		}
+		return scores;
+	}
+
+	private float[] primary() {
+		if (accept("(")) {
+			float[] scores = or();
+			expect(")");
+			return scores;
+		}
+
+		String property = next();
+		String operator = next();
+		String value = next();
+		if (value.startsWith("\""))
+			value = value.substring(1);
+		else if (!operator.equals("exists"))
+			throw new IllegalArgumentException("Expected a quoted value after " + property + " " + operator);
+
+		if (operator.equals("exists")) {
+			boolean exists = value.equalsIgnoreCase("true");
+			if (!exists && !value.equalsIgnoreCase("false"))
+				throw new IllegalArgumentException("exists takes true or false, not " + value);
+			return (property.equals("upnp:class") || PROPERTY_FIELDS.containsKey(property)) == exists ? all() : none();
+		}
+
+		if (property.equals("upnp:class")) {
+			if (operator.equalsIgnoreCase("derivedfrom"))
+				return ITEM_CLASS.startsWith(value) ? all() : none();
+			if (operator.equals("="))
+				return ITEM_CLASS.equals(value) || ITEM_CLASS.startsWith(value + ".") ? all() : none();
+			return none();
+		}
+
+		Integer fields = PROPERTY_FIELDS.get(property);
+		if (fields == null)
+			return none();
+
+		if (operator.equals("contains") || operator.equals("="))
+			return index.match(value, fields, false);
+		if (operator.equals("startsWith"))
+			return index.match(value, fields, true);
+		if (operator.equals("doesNotContain") || operator.equals("!=")) {
+			float[] scores = index.match(value, fields, false);
+			for (int row = 0; row < scores.length; row++) {
+				scores[row] = scores[row] > 0 ? 0 : MATCHED;
+			}
+			return scores;
+		}
+		//Titles aren't ordered by their text properties
+		return none();
+	}
+
+	private float[] all() {
+		float[] scores = new float[index.getFacets().size()];
+		Arrays.fill(scores, MATCHED);
+		return scores;
+	}
+
+	private float[] none() {
+		return new float[index.getFacets().size()];
+	}
+
+	private boolean accept(String token) {
+		if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(token)) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String token) {
+		if (!accept(token))
+			throw new IllegalArgumentException("Expected " + token + " in search criteria");
+	}
+
+	private String next() {
+		if (position >= tokens.size())
+			throw new IllegalArgumentException("Search criteria ends too soon");
+		return tokens.get(position++);
+	}
+
+	/**
+	 * Splits criteria into parentheses, operators, words and quoted strings. Quoted strings keep their
+	 * opening quote so they can't be mistaken for keywords, and lose their escapes.
+	 */
+	static List<String> tokenize(String criteria) {
+		List<String> tokens = new ArrayList<String>();
+		int t = 0;
+		while (t < criteria.length()) {
+			char c = criteria.charAt(t);
+			if (Character.isWhitespace(c)) {
+				t++;
+			} else if (c == '(' || c == ')') {
+				tokens.add(String.valueOf(c));
+				t++;
+			} else if (c == '"') {
+				StringBuilder value = new StringBuilder("\"");
+				for (t++; t < criteria.length() && criteria.charAt(t) != '"'; t++) {
+					if (criteria.charAt(t) == '\\' && t + 1 < criteria.length())
+						t++;
+					value.append(criteria.charAt(t));
+				}
+				if (t >= criteria.length())
+					throw new IllegalArgumentException("Unterminated string in search criteria " + criteria);
+				tokens.add(value.toString());
+				t++;
+			} else {
+				int start = t;
+				while (t < criteria.length() && !Character.isWhitespace(criteria.charAt(t)) && "()\"".indexOf(criteria.charAt(t)) < 0) {
+					t++;
+				}
+				tokens.add(criteria.substring(start, t));
+			}
+		}
+		return tokens;
+	}
+}
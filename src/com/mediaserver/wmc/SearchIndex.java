@@ -0,0 +1,634 @@
+package com.mediaserver.wmc;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An inverted index over the words in every title's name, synopses, directors, lead performers and studio.
+ * Words are matched whole, by prefix, or anywhere inside a longer word through an index of the three
+ * letter grams of every word, which also finds near misses when nothing else matches. An index belongs
+ * to one library generation. After a rescan the next one is built from it, reusing the synopsis words of
+ * every title whose metadata file hasn't changed; after a watched change it's updated with the delta, so
+ * only the titles the delta touched are indexed again.
+ */
+public class SearchIndex {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SearchIndex.class);
+
+	public static final int TITLE = 0;
+	public static final int SYNOPSIS = 1;
+	public static final int DIRECTOR = 2;
+	public static final int LEAD_PERFORMER = 3;
+	public static final int STUDIO = 4;
+	public static final int ALL_FIELDS = (1 << 5) - 1;
+	//A title word says far more about a film than a word somewhere in a synopsis
+	private static final float[] FIELD_WEIGHTS = {8f, 1f, 3f, 3f, 2f};
+	private static final int[] FIELD_COLUMNS = {LibraryStore.TITLE, LibraryStore.NONE, LibraryStore.DIRECTOR, LibraryStore.LEAD_PERFORMER, LibraryStore.STUDIO};
+
+	static final float EXACT = 1f;
+	static final float PREFIX = 0.6f;
+	static final float INFIX = 0.4f;
+	static final float FUZZY = 0.25f;
+	private static final int GRAM = 3;
+	private static final float FUZZY_SIMILARITY = 0.6f;
+	private static final String[] NO_TERMS = new String[0];
+
+	private final FacetIndex facets;
+	private final Map<String, Document> documents;
+	//Sorted, so every word with a prefix sits in one run
+	private final String[] terms;
+	//Per term the rows holding it in ascending order, and which fields of each row hold it
+	private final int[][] postingRows;
+	private final byte[][] postingFields;
+	//Per gram the ids of the terms containing it in ascending order
+	private final Map<String, int[]> grams;
+
+	/**
+	 * The synopsis words of one title and the metadata file they were read from.
+	 */
+	private static class Document {
+		private final long metaDataModified;
+		private final long metaDataLength;
+		private final String[] synopsisTerms;
+
+		private Document(long metaDataModified, long metaDataLength, String[] synopsisTerms) {
+			this.metaDataModified = metaDataModified;
+			this.metaDataLength = metaDataLength;
+			this.synopsisTerms = synopsisTerms;
+		}
+	}
+
+	/**
+	 * The rows of one term as they're collected, ascending because rows are indexed in order.
+	 */
+	private static class Postings {
+		private final String term;
+		private int[] rows = new int[4];
+		private byte[] fields = new byte[4];
+		private int size;
+
+		private Postings(String term) {
+			this.term = term;
+		}
+
+		private void add(int row, int field) {
+			if (size > 0 && rows[size - 1] == row) {
+				fields[size - 1] |= 1 << field;
+				return;
+			}
+
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, size * 2);
+				fields = Arrays.copyOf(fields, size * 2);
+			}
+			rows[size] = row;
+			fields[size] = (byte)(1 << field);
+			size++;
+		}
+	}
+
+	private SearchIndex(FacetIndex facets, Map<String, Document> documents, String[] terms, int[][] postingRows, byte[][] postingFields, Map<String, int[]> grams) {
+		this.facets = facets;
+		this.documents = documents;
+		this.terms = terms;
+		this.postingRows = postingRows;
+		this.postingFields = postingFields;
+		this.grams = grams;
+	}
+
+	/**
+	 * Indexes the titles of a library generation. Synopsis words are taken from previous, which may be
+	 * null, for every title whose metadata file is the same as when previous read it.
+	 */
+	public static SearchIndex build(FacetIndex facets, SearchIndex previous) {
+		long start = System.currentTimeMillis();
+		LibraryStore store = facets.getStore();
+		Map<String, Postings> postings = new HashMap<String, Postings>();
+		Map<String, Document> documents = new HashMap<String, Document>();
+		//Directors and studios repeat across the library, so each value is only split into words once
+		Map<String, String[]> valueTerms = new HashMap<String, String[]>();
+		Map<String, Document> previousDocuments = previous == null ? Collections.<String, Document>emptyMap() : previous.documents;
+		int reused = 0;
+		for (int row = 0; row < store.size(); row++) {
+			if (indexRow(store, row, postings, valueTerms, previousDocuments, documents))
+				reused++;
+		}
+
+		String[] terms = postings.keySet().toArray(new String[postings.size()]);
+		Arrays.sort(terms);
+		int[][] postingRows = new int[terms.length][];
+		byte[][] postingFields = new byte[terms.length][];
+		Map<String, List<Integer>> gramTerms = new HashMap<String, List<Integer>>();
+		for (int termId = 0; termId < terms.length; termId++) {
+			Postings termPostings = postings.get(terms[termId]);
+			postingRows[termId] = Arrays.copyOf(termPostings.rows, termPostings.size);
+			postingFields[termId] = Arrays.copyOf(termPostings.fields, termPostings.size);
+			for (String gram : gramsOf(terms[termId])) {
+				List<Integer> ids = gramTerms.get(gram);
+				if (ids == null) {
+					ids = new ArrayList<Integer>();
+					gramTerms.put(gram, ids);
+				}
+				//A word repeating a gram lists itself once
+				if (ids.isEmpty() || ids.get(ids.size() - 1) != termId)
+					ids.add(termId);
+			}
+		}
+
+		Map<String, int[]> grams = new HashMap<String, int[]>();
+		for (Map.Entry<String, List<Integer>> entry : gramTerms.entrySet()) {
+			int[] ids = new int[entry.getValue().size()];
+			for (int t = 0; t < ids.length; t++) {
+				ids[t] = entry.getValue().get(t);
+			}
+			grams.put(entry.getKey(), ids);
+		}
+
+		LOGGER.info("Indexed " + terms.length + " words of " + store.size() + " titles for search in " + (System.currentTimeMillis() - start) + "ms, reusing " + reused + " titles' synopses");
+		return new SearchIndex(facets, documents, terms, postingRows, postingFields, grams);
+	}
+
+	/**
+	 * Returns the index of next, made from this index's library by delta, without indexing the whole
+	 * library again. The postings of titles delta didn't touch are moved to their rows in next; only the
+	 * titles it added or updated are split into words, and only their metadata files are looked at.
+	 */
+	public SearchIndex update(FacetIndex next, LibraryDelta delta) {
+		long start = System.currentTimeMillis();
+		LibraryStore previousStore = facets.getStore();
+		LibraryStore store = next.getStore();
+		Map<String, Integer> nextRows = new HashMap<String, Integer>(store.size() * 2);
+		for (int row = 0; row < store.size(); row++) {
+			nextRows.put(store.getString(LibraryStore.DISK_PATH, row), row);
+		}
+
+		Set<String> changed = new HashSet<String>();
+		for (WindowsMediaCenterInfo info : delta.getAdded()) {
+			changed.add(info.getDiskFile().getPath());
+		}
+		for (WindowsMediaCenterInfo info : delta.getUpdatedTo()) {
+			changed.add(info.getDiskFile().getPath());
+		}
+
+		//The row of next each row of this index moved to, -1 for titles that are gone or changed
+		Map<String, Document> nextDocuments = new HashMap<String, Document>(documents);
+		int[] rows = new int[previousStore.size()];
+		boolean[] moved = new boolean[store.size()];
+		for (int row = 0; row < rows.length; row++) {
+			String diskPath = previousStore.getString(LibraryStore.DISK_PATH, row);
+			Integer nextRow = nextRows.get(diskPath);
+			if (nextRow == null || changed.contains(diskPath)) {
+				rows[row] = -1;
+				nextDocuments.remove(diskPath);
+			} else {
+				rows[row] = nextRow;
+				moved[nextRow] = true;
+			}
+		}
+
+		Map<String, Postings> postings = new HashMap<String, Postings>();
+		Map<String, String[]> valueTerms = new HashMap<String, String[]>();
+		int indexed = 0;
+		for (int row = 0; row < moved.length; row++) {
+			if (!moved[row]) {
+				indexRow(store, row, postings, valueTerms, documents, nextDocuments);
+				indexed++;
+			}
+		}
+
+		List<String> addedTerms = new ArrayList<String>();
+		for (String term : postings.keySet()) {
+			if (Arrays.binarySearch(terms, term) < 0)
+				addedTerms.add(term);
+		}
+		Collections.sort(addedTerms);
+
+		//Merged in order, so the words this index had keep their order and the grams' ids stay ascending
+		int termCount = terms.length + addedTerms.size();
+		String[] nextTerms = new String[termCount];
+		int[][] nextPostingRows = new int[termCount][];
+		byte[][] nextPostingFields = new byte[termCount][];
+		int[] termIds = new int[terms.length];
+		Map<String, List<Integer>> addedGrams = new HashMap<String, List<Integer>>();
+		int size = 0;
+		for (int termId = 0, added = 0; termId < terms.length || added < addedTerms.size();) {
+			if (termId < terms.length && (added == addedTerms.size() || terms[termId].compareTo(addedTerms.get(added)) < 0)) {
+				long[] entries = moveRows(postingRows[termId], postingFields[termId], rows, postings.get(terms[termId]));
+				if (entries.length == 0) {
+					termIds[termId++] = -1;
+					continue;
+				}
+
+				nextTerms[size] = terms[termId];
+				nextPostingRows[size] = new int[entries.length];
+				nextPostingFields[size] = new byte[entries.length];
+				for (int t = 0; t < entries.length; t++) {
+					nextPostingRows[size][t] = (int)(entries[t] >>> 8);
+					nextPostingFields[size][t] = (byte)entries[t];
+				}
+				termIds[termId++] = size++;
+			} else {
+				Postings termPostings = postings.get(addedTerms.get(added++));
+				nextTerms[size] = termPostings.term;
+				nextPostingRows[size] = Arrays.copyOf(termPostings.rows, termPostings.size);
+				nextPostingFields[size] = Arrays.copyOf(termPostings.fields, termPostings.size);
+				for (String gram : gramsOf(termPostings.term)) {
+					List<Integer> ids = addedGrams.get(gram);
+					if (ids == null) {
+						ids = new ArrayList<Integer>();
+						addedGrams.put(gram, ids);
+					}
+					if (ids.isEmpty() || ids.get(ids.size() - 1) != size)
+						ids.add(size);
+				}
+				size++;
+			}
+		}
+
+		Map<String, int[]> nextGrams = new HashMap<String, int[]>(grams.size() * 2);
+		for (Map.Entry<String, int[]> entry : grams.entrySet()) {
+			int[] ids = new int[entry.getValue().length];
+			int count = 0;
+			for (int termId : entry.getValue()) {
+				if (termIds[termId] >= 0)
+					ids[count++] = termIds[termId];
+			}
+			if (count > 0)
+				nextGrams.put(entry.getKey(), Arrays.copyOf(ids, count));
+		}
+		for (Map.Entry<String, List<Integer>> entry : addedGrams.entrySet()) {
+			int[] ids = nextGrams.get(entry.getKey());
+			int count = ids == null ? 0 : ids.length;
+			ids = ids == null ? new int[entry.getValue().size()] : Arrays.copyOf(ids, count + entry.getValue().size());
+			for (int termId : entry.getValue()) {
+				ids[count++] = termId;
+			}
+			Arrays.sort(ids);
+			nextGrams.put(entry.getKey(), ids);
+		}
+
+		LOGGER.info("Updated the search index with " + indexed + " changed titles of " + store.size() + " in " + (System.currentTimeMillis() - start) + "ms");
+		return new SearchIndex(next, nextDocuments, Arrays.copyOf(nextTerms, size), Arrays.copyOf(nextPostingRows, size), Arrays.copyOf(nextPostingFields, size), nextGrams);
+	}
+
+	/**
+	 * Returns the postings of one term moved to the rows of the next library, together with those of the
+	 * rows indexed again, as row and fields packed in ascending order.
+	 */
+	private static long[] moveRows(int[] termRows, byte[] termFields, int[] rows, Postings added) {
+		long[] entries = new long[termRows.length + (added == null ? 0 : added.size)];
+		int count = 0;
+		for (int t = 0; t < termRows.length; t++) {
+			if (rows[termRows[t]] >= 0)
+				entries[count++] = (long)rows[termRows[t]] << 8 | (termFields[t] & 0xff);
+		}
+		for (int t = 0; added != null && t < added.size; t++) {
+			entries[count++] = (long)added.rows[t] << 8 | (added.fields[t] & 0xff);
+		}
+		if (count < entries.length)
+			entries = Arrays.copyOf(entries, count);
+		Arrays.sort(entries);
+		return entries;
+	}
+
+	/**
+	 * Adds the words of one title to the postings and its synopsis words to documents, reading them again
+	 * only if its metadata file changed since previousDocuments were read. Returns whether they were reused.
+	 */
+	private static boolean indexRow(LibraryStore store, int row, Map<String, Postings> postings, Map<String, String[]> valueTerms, Map<String, Document> previousDocuments, Map<String, Document> documents) {
+		for (int field = 0; field < FIELD_COLUMNS.length; field++) {
+			int column = FIELD_COLUMNS[field];
+			if (column == LibraryStore.NONE)
+				continue;
+
+			if (LibraryStore.isListColumn(column)) {
+				if (store.isNullList(column, row))
+					continue;
+
+				for (String value : store.getList(column, row)) {
+					addTerms(postings, cachedTerms(valueTerms, value), row, field, true);
+				}
+			} else {
+				addTerms(postings, cachedTerms(valueTerms, store.getString(column, row)), row, field, true);
+			}
+		}
+
+		String diskPath = store.getString(LibraryStore.DISK_PATH, row);
+		Document previousDocument = previousDocuments.get(diskPath);
+		Document document = readSynopses(store.getTitle(row).getMetaDataFile(), previousDocument);
+		documents.put(diskPath, document);
+		//The previous index still shares a reused document's words, so only new ones are swapped
+		addTerms(postings, document.synopsisTerms, row, SYNOPSIS, document != previousDocument);
+		return document == previousDocument;
+	}
+
+	private static String[] cachedTerms(Map<String, String[]> valueTerms, String value) {
+		if (value == null)
+			return NO_TERMS;
+
+		String[] terms = valueTerms.get(value);
+		if (terms == null) {
+			terms = tokenize(value);
+			valueTerms.put(value, terms);
+		}
+		return terms;
+	}
+
+	/**
+	 * Adds the rows to the postings of every term. With share set the terms are replaced by the copies
+	 * already indexed, so a word common to thousands of synopses is held once.
+	 */
+	private static void addTerms(Map<String, Postings> postings, String[] terms, int row, int field, boolean share) {
+		for (int t = 0; t < terms.length; t++) {
+			Postings termPostings = postings.get(terms[t]);
+			if (termPostings == null) {
+				termPostings = new Postings(terms[t]);
+				postings.put(terms[t], termPostings);
+			} else if (share) {
+				terms[t] = termPostings.term;
+			}
+			termPostings.add(row, field);
+		}
+	}
+
+	private static Document readSynopses(File metaDataFile, Document previous) {
+		if (metaDataFile == null)
+			return new Document(0, -1, NO_TERMS);
+
+		//One stat for all three, this runs for every title of a rescan
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(metaDataFile.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			return new Document(0, -1, NO_TERMS);
+		}
+		if (!attributes.isRegularFile())
+			return new Document(0, -1, NO_TERMS);
+
+		long modified = attributes.lastModifiedTime().toMillis();
+		long length = attributes.size();
+		if (previous != null && previous.metaDataModified == modified && previous.metaDataLength == length)
+			return previous;
+
+		StringBuilder synopses = new StringBuilder();
+		InputStreamReader reader = null;
+		try {
+			reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(metaDataFile)), MediaCenterXmlWriter.METADATA_ENCODING);
+			for (WindowsMediaCenterMetaData.Title title : MediaCenterXmlReader.readTitles(reader)) {
+				if (title.getSynopsis() != null)
+					synopses.append(title.getSynopsis()).append(' ');
+			}
+		} catch (Exception e) {
+			LOGGER.error("Couldn't read synopses from " + metaDataFile, e);
+		} finally {
+			if (reader != null)
+				try {reader.close();} catch (Exception e) {}
+		}
+		return new Document(modified, length, tokenize(synopses.toString()));
+	}
+
+	/**
+	 * Splits text into the distinct lower case words it holds, without accents, in the order they first
+	 * appear.
+	 */
+	public static String[] tokenize(String text) {
+		if (text == null || text.length() == 0)
+			return NO_TERMS;
+
+		String folded = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ENGLISH);
+		List<String> terms = new ArrayList<String>();
+		StringBuilder term = new StringBuilder();
+		for (int t = 0; t <= folded.length(); t++) {
+			char c = t < folded.length() ? folded.charAt(t) : ' ';
+			if (Character.getType(c) == Character.NON_SPACING_MARK)
+				continue;
+
+			if (Character.isLetterOrDigit(c)) {
+				term.append(c);
+			} else if (term.length() > 0) {
+				String word = term.toString();
+				if (!terms.contains(word))
+					terms.add(word);
+				term.setLength(0);
+			}
+		}
+		return terms.toArray(new String[terms.size()]);
+	}
+
+	private static List<String> gramsOf(String term) {
+		if (term.length() < GRAM)
+			return Collections.emptyList();
+
+		List<String> termGrams = new ArrayList<String>(term.length() - GRAM + 1);
+		for (int t = 0; t + GRAM <= term.length(); t++) {
+			termGrams.add(term.substring(t, t + GRAM));
+		}
+		return termGrams;
+	}
+
+	public FacetIndex getFacets() {
+		return facets;
+	}
+
+	public long getGeneration() {
+		return facets.getGeneration();
+	}
+
+	public int getTermCount() {
+		return terms.length;
+	}
+
+	/**
+	 * Finds the titles holding every word of query in any field, best matches first.
+	 */
+	public SearchResults search(String query, int startingIndex, int requestedCount) {
+		return rank(match(query, ALL_FIELDS, false), startingIndex, requestedCount);
+	}
+
+	/**
+	 * Scores every title against the words of text in the fields of fieldMask. Every word has to match
+	 * for a title to score; with prefixOnly set words only match at the start of an indexed word.
+	 * Titles that don't match score 0.
+	 */
+	float[] match(String text, int fieldMask, boolean prefixOnly) {
+		float[] total = null;
+		for (String token : tokenize(text)) {
+			float[] scores = new float[facets.size()];
+			matchToken(token, fieldMask, prefixOnly, scores);
+			if (total == null) {
+				total = scores;
+			} else {
+				for (int row = 0; row < total.length; row++) {
+					total[row] = total[row] > 0 && scores[row] > 0 ? total[row] + scores[row] : 0;
+				}
+			}
+		}
+		return total != null ? total : new float[facets.size()];
+	}
+
+	/**
+	 * Scores one word of a query into scores, keeping the best score of every title.
+	 */
+	private void matchToken(String token, int fieldMask, boolean prefixOnly, float[] scores) {
+		boolean matched = false;
+		int first = Arrays.binarySearch(terms, token);
+		if (first >= 0) {
+			matched |= score(first, EXACT, fieldMask, scores);
+			first++;
+		} else {
+			first = -first - 1;
+		}
+
+		for (int termId = first; termId < terms.length && terms[termId].startsWith(token); termId++) {
+			matched |= score(termId, PREFIX, fieldMask, scores);
+		}
+
+		if (prefixOnly || token.length() < GRAM)
+			return;
+
+		int[] candidates = null;
+		for (String gram : gramsOf(token)) {
+			int[] ids = grams.get(gram);
+			if (ids == null) {
+				candidates = null;
+				break;
+			}
+			candidates = candidates == null ? ids : intersect(candidates, ids);
+		}
+		if (candidates != null) {
+			for (int termId : candidates) {
+				String term = terms[termId];
+				if (!term.startsWith(token) && term.contains(token))
+					matched |= score(termId, INFIX, fieldMask, scores);
+			}
+		}
+
+		if (!matched)
+			matchFuzzy(token, fieldMask, scores);
+	}
+
+	/**
+	 * Scores the words sharing most of their grams with token, for misspellings.
+	 */
+	private void matchFuzzy(String token, int fieldMask, float[] scores) {
+		List<String> tokenGrams = gramsOf(token);
+		Map<Integer, Integer> shared = new HashMap<Integer, Integer>();
+		for (String gram : tokenGrams) {
+			int[] ids = grams.get(gram);
+			if (ids == null)
+				continue;
+
+			for (int termId : ids) {
+				Integer count = shared.get(termId);
+				shared.put(termId, count == null ? 1 : count + 1);
+			}
+		}
+
+		for (Map.Entry<Integer, Integer> entry : shared.entrySet()) {
+			int termGrams = terms[entry.getKey()].length() - GRAM + 1;
+			float similarity = 2f * entry.getValue() / (tokenGrams.size() + termGrams);
+			if (similarity >= FUZZY_SIMILARITY)
+				score(entry.getKey(), FUZZY * similarity, fieldMask, scores);
+		}
+	}
+
+	private boolean score(int termId, float match, int fieldMask, float[] scores) {
+		boolean matched = false;
+		int[] rows = postingRows[termId];
+		byte[] fields = postingFields[termId];
+		for (int t = 0; t < rows.length; t++) {
+			int rowFields = fields[t] & fieldMask;
+			if (rowFields == 0)
+				continue;
+
+			float weight = 0;
+			for (int field = 0; field < FIELD_WEIGHTS.length; field++) {
+				if ((rowFields & (1 << field)) != 0)
+					weight = Math.max(weight, FIELD_WEIGHTS[field]);
+			}
+			float score = weight * match;
+			if (score > scores[rows[t]])
+				scores[rows[t]] = score;
+			matched = true;
+		}
+		return matched;
+	}
+
+	private static int[] intersect(int[] ids1, int[] ids2) {
+		int[] both = new int[Math.min(ids1.length, ids2.length)];
+		int count = 0;
+		for (int t1 = 0, t2 = 0; t1 < ids1.length && t2 < ids2.length;) {
+			if (ids1[t1] < ids2[t2]) {
+				t1++;
+			} else if (ids1[t1] > ids2[t2]) {
+				t2++;
+			} else {
+				both[count++] = ids1[t1];
+				t1++;
+				t2++;
+			}
+		}
+		return Arrays.copyOf(both, count);
+	}
+
+	/**
+	 * Orders the titles that scored, best first and in title order among equals, and picks out one page.
+	 * A requestedCount of 0 means every match from startingIndex on.
+	 */
+	SearchResults rank(final float[] scores, int startingIndex, int requestedCount) {
+		List<Integer> rows = new ArrayList<Integer>();
+		for (int row = 0; row < scores.length; row++) {
+			if (scores[row] > 0)
+				rows.add(row);
+		}
+		Collections.sort(rows, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int compareValue = Float.compare(scores[o2], scores[o1]);
+				return compareValue != 0 ? compareValue : o1.compareTo(o2);
+			}
+		});
+
+		int fromIndex = Math.min(Math.max(startingIndex, 0), rows.size());
+		int toIndex = requestedCount > 0 ? (int)Math.min((long)fromIndex + requestedCount, rows.size()) : rows.size();
+		List<WindowsMediaCenterInfo> page = new ArrayList<WindowsMediaCenterInfo>(toIndex - fromIndex);
+		float[] pageScores = new float[toIndex - fromIndex];
+		for (int t = fromIndex; t < toIndex; t++) {
+			page.add(facets.get(rows.get(t)));
+			pageScores[t - fromIndex] = scores[rows.get(t)];
+		}
+		return new SearchResults(fromIndex, rows.size(), page, pageScores);
+	}
+
+	public long estimateBytes() {
+		long bytes = 0;
+		for (int termId = 0; termId < terms.length; termId++) {
+			bytes += 40 + 2 * terms[termId].length() + 5L * postingRows[termId].length + 32;
+		}
+		for (int[] ids : grams.values()) {
+			bytes += 48 + 4L * ids.length;
+		}
+		for (Document document : documents.values()) {
+			bytes += 48 + 8L * document.synopsisTerms.length;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,45 @@
+package com.mediaserver.wmc;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of search matches, best first, and how many titles matched altogether.
+ */
+public class SearchResults {
+	private final int startingIndex;
+	private final int totalMatches;
+	private final List<WindowsMediaCenterInfo> titles;
+	private final float[] scores;
+
+	public SearchResults(int startingIndex, int totalMatches, List<WindowsMediaCenterInfo> titles, float[] scores) {
+		this.startingIndex = startingIndex;
+		this.totalMatches = totalMatches;
+		this.titles = Collections.unmodifiableList(titles);
+		this.scores = scores;
+	}
+
+	public int getStartingIndex() {
+		return startingIndex;
+	}
+
+	public int getTotalMatches() {
+		return totalMatches;
+	}
+
+	public List<WindowsMediaCenterInfo> getTitles() {
+		return titles;
+	}
+
+	/**
+	 * Returns the score of the title at index within this page.
+	 */
+	public float getScore(int index) {
+		return scores[index];
+	}
+
+	@Override
+	public String toString() {
+		return titles.size() + " of " + totalMatches + " matches from " + startingIndex;
+	}
+}
@@ -0,0 +1,286 @@
+package com.mediaserver.wmc;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The sorted distinct values of one LibraryStore column. A dictionary is built on the heap, read out of a
+ * LibraryImage, where the values stay UTF-8 in the mapping and are decoded as their codes are looked up,
+ * or front coded off the heap for cold columns, those like disc paths and cover keys that are only read
+ * one title at a time.
+ */
+abstract class StringDictionary {
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	static StringDictionary of(String[] values) {
+		return new HeapDictionary(values);
+	}
+
+	/**
+	 * A dictionary in a mapping, value code running from byte offsets[code] to offsets[code + 1] of data.
+	 * Decoded values are kept unless the column is cold.
+	 */
+	static StringDictionary mapped(ByteBuffer data, IntBuffer offsets, boolean cold) {
+		return new MappedDictionary(data, offsets, cold);
+	}
+
+	/**
+	 * Packs sorted values into a direct buffer, each stored as what it shares with the value before it
+	 * and the rest.
+	 */
+	static StringDictionary frontCoded(String[] values) {
+		return new FrontCodedDictionary(values);
+	}
+
+	abstract int size();
+
+	abstract String get(int code);
+
+	/**
+	 * Returns every value. Callers mustn't change the array, which may be the dictionary's own.
+	 */
+	String[] toArray() {
+		String[] values = new String[size()];
+		for (int code = 0; code < values.length; code++) {
+			values[code] = get(code);
+		}
+		return values;
+	}
+
+	abstract long estimateBytes();
+
+	/**
+	 * Bytes held outside the heap, not counting mappings.
+	 */
+	long getOffHeapBytes() {
+		return 0;
+	}
+
+	private static long stringBytes(String value) {
+		return value == null ? 0 : 40 + 2L * value.length();
+	}
+
+	private static class HeapDictionary extends StringDictionary {
+		private final String[] values;
+
+		private HeapDictionary(String[] values) {
+			this.values = values;
+		}
+
+		@Override
+		int size() {
+			return values.length;
+		}
+
+		@Override
+		String get(int code) {
+			return values[code];
+		}
+
+		@Override
+		String[] toArray() {
+			return values;
+		}
+
+		@Override
+		long estimateBytes() {
+			long bytes = 16 + 4L * values.length;
+			for (String value : values) {
+				bytes += stringBytes(value);
+			}
+			return bytes;
+		}
+	}
+
+	private static class MappedDictionary extends StringDictionary {
+		private final ByteBuffer data;
+		private final IntBuffer offsets;
+		//Decoded values, null for a cold column
+		private final String[] values;
+
+		private MappedDictionary(ByteBuffer data, IntBuffer offsets, boolean cold) {
+			this.data = data;
+			this.offsets = offsets;
+			this.values = cold ? null : new String[offsets.limit() - 1];
+		}
+
+		@Override
+		int size() {
+			return offsets.limit() - 1;
+		}
+
+		@Override
+		String get(int code) {
+			String value = values == null ? null : values[code];
+			if (value == null) {
+				//Two threads may both decode a value, they come up with equal strings
+				int start = offsets.get(code);
+				byte[] bytes = new byte[offsets.get(code + 1) - start];
+				ByteBuffer source = data.duplicate();
+				source.position(start);
+				source.get(bytes);
+				value = new String(bytes, UTF_8);
+				if (values != null)
+					values[code] = value;
+			}
+			return value;
+		}
+
+		@Override
+		String[] toArray() {
+			if (values == null)
+				return super.toArray();
+
+			for (int code = 0; code < values.length; code++) {
+				get(code);
+			}
+			return values;
+		}
+
+		@Override
+		long estimateBytes() {
+			if (values == null)
+				return 16;
+
+			long bytes = 16 + 4L * values.length;
+			for (String value : values) {
+				bytes += stringBytes(value);
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * Sorted values in blocks of BLOCK_SIZE. The first value of a block is stored whole and every other one
+	 * as the count of UTF-8 bytes it shares with the one before and the bytes after those, so finding a
+	 * value decodes at most one block. Paths and cover keys share long prefixes, so this takes a fraction
+	 * of the heap the strings would. A small table keeps values that were just looked up.
+	 */
+	private static class FrontCodedDictionary extends StringDictionary {
+		private static final int BLOCK_SIZE = 16;
+		private static final int HOT_ENTRIES = 256;
+
+		private final int size;
+		private final ByteBuffer data;
+		private final int[] blockOffsets;
+		private final int longestValue;
+		private final HotEntry[] hot = new HotEntry[HOT_ENTRIES];
+
+		private static class HotEntry {
+			private final int code;
+			private final String value;
+
+			private HotEntry(int code, String value) {
+				this.code = code;
+				this.value = value;
+			}
+		}
+
+		private FrontCodedDictionary(String[] values) {
+			size = values.length;
+			blockOffsets = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+			byte[][] encoded = new byte[size][];
+			int capacity = 0;
+			int longest = 0;
+			for (int code = 0; code < size; code++) {
+				encoded[code] = values[code].getBytes(UTF_8);
+				capacity += encoded[code].length + 10;
+				longest = Math.max(longest, encoded[code].length);
+			}
+			longestValue = longest;
+
+			ByteBuffer packed = ByteBuffer.allocate(capacity);
+			for (int code = 0; code < size; code++) {
+				int shared = 0;
+				if (code % BLOCK_SIZE == 0)
+					blockOffsets[code / BLOCK_SIZE] = packed.position();
+				else
+					shared = sharedPrefix(encoded[code - 1], encoded[code]);
+
+				writeVarInt(packed, shared);
+				writeVarInt(packed, encoded[code].length - shared);
+				packed.put(encoded[code], shared, encoded[code].length - shared);
+			}
+			packed.flip();
+			data = ByteBuffer.allocateDirect(packed.limit());
+			data.put(packed);
+			data.flip();
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		String get(int code) {
+			if (code < 0 || code >= size)
+				throw new IndexOutOfBoundsException("Code: " + code + ", Size: " + size);
+
+			int slot = code & (HOT_ENTRIES - 1);
+			HotEntry entry = hot[slot];
+			if (entry != null && entry.code == code)
+				return entry.value;
+
+			byte[] value = new byte[longestValue];
+			int length = 0;
+			ByteBuffer source = data.duplicate();
+			source.position(blockOffsets[code / BLOCK_SIZE]);
+			for (int t = code - code % BLOCK_SIZE; t <= code; t++) {
+				int shared = readVarInt(source);
+				int rest = readVarInt(source);
+				source.get(value, shared, rest);
+				length = shared + rest;
+			}
+
+			String decoded = new String(value, 0, length, UTF_8);
+			hot[slot] = new HotEntry(code, decoded);
+			return decoded;
+		}
+
+		@Override
+		long estimateBytes() {
+			long bytes = 16 + 4L * blockOffsets.length + 16 + 4L * HOT_ENTRIES;
+			for (HotEntry entry : hot) {
+				if (entry != null)
+					bytes += 24 + stringBytes(entry.value);
+			}
+			return bytes;
+		}
+
+		@Override
+		long getOffHeapBytes() {
+			return data.capacity();
+		}
+
+		private static int sharedPrefix(byte[] previous, byte[] value) {
+			int limit = Math.min(previous.length, value.length);
+			int shared = 0;
+			while (shared < limit && previous[shared] == value[shared]) {
+				shared++;
+			}
+			return shared;
+		}
+
+		private static void writeVarInt(ByteBuffer buffer, int value) {
+			while ((value & ~0x7f) != 0) {
+				buffer.put((byte)((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			buffer.put((byte)value);
+		}
+
+		private static int readVarInt(ByteBuffer buffer) {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get();
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+	}
+}
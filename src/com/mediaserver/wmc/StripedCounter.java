@@ -0,0 +1,60 @@
+package com.mediaserver.wmc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that threads add to without contending: each thread adds to one of several cells, a cache
+ * line apart, and reading sums them. Cheap enough to leave in hot paths for good.
+ */
+public class StripedCounter implements StripedCounterMBean {
+	static final int STRIPES = stripeCount();
+	//Longs per cell, so two cells never share a 64 byte cache line
+	static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	private static int stripeCount() {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	/**
+	 * Returns the cell the current thread adds to.
+	 */
+	static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int)(id ^ (id >>> 16)) & (STRIPES - 1);
+	}
+
+	public void increment() {
+		cells.getAndAdd(stripe() * PADDING, 1);
+	}
+
+	public void add(long value) {
+		cells.getAndAdd(stripe() * PADDING, value);
+	}
+
+	@Override
+	public long getCount() {
+		long count = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			count += cells.get(stripe * PADDING);
+		}
+		return count;
+	}
+
+	@Override
+	public void reset() {
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			cells.set(stripe * PADDING, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(getCount());
+	}
+}
@@ -0,0 +1,6 @@
+package com.mediaserver.wmc;
+
+public interface StripedCounterMBean {
+	public long getCount();
+	public void reset();
+}
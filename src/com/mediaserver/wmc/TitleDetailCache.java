@@ -0,0 +1,185 @@
+package com.mediaserver.wmc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The detail tier of Media Center metadata: the titles of a disc with their synopses and chapters. The
+ * scan only reads what browsing needs, so titles are read from a disc's DvdInfoCache file the first time
+ * something asks for them and kept, most recently used first, up to a fixed estimated size. An entry is
+ * read again when its file has changed since. Metadata MetaDataWriter hasn't written yet is read from the
+ * writer without being kept.
+ */
+public class TitleDetailCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TitleDetailCache.class);
+	public static final String CAPACITY_PROPERTY = "com.mediaserver.wmc.titleDetailBytes";
+	public static final long DEFAULT_CAPACITY = 8L * 1024 * 1024;
+	private static final TitleDetailCache INSTANCE = new TitleDetailCache(Long.getLong(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+
+	private final LinkedHashMap<File, Details> details = new LinkedHashMap<File, Details>(64, 0.75f, true);
+	private long capacity;
+	private long size;
+	private long hits;
+	private long misses;
+
+	private static class Details {
+		private final long lastModified;
+		private final long length;
+		private final List<WindowsMediaCenterMetaData.Title> titles;
+		private final long bytes;
+
+		private Details(long lastModified, long length, List<WindowsMediaCenterMetaData.Title> titles) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.titles = titles;
+			this.bytes = estimateBytes(titles);
+		}
+	}
+
+	public TitleDetailCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	public static TitleDetailCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the titles in a DvdInfoCache file, an empty list if it has none or can't be read.
+	 */
+	public List<WindowsMediaCenterMetaData.Title> getTitles(File metaDataFile) {
+		if (metaDataFile == null)
+			return Collections.emptyList();
+
+		//Until the save is written the file still holds the old titles
+		byte[] pending = MetaDataWriter.getInstance().getPendingContents(metaDataFile);
+		if (pending != null)
+			return read(new ByteArrayInputStream(pending), metaDataFile);
+
+		long lastModified = metaDataFile.lastModified();
+		long length = metaDataFile.length();
+		synchronized (this) {
+			Details cached = details.get(metaDataFile);
+			if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+				hits++;
+				return cached.titles;
+			}
+			misses++;
+		}
+
+		//Read outside the lock, a slow share shouldn't hold up titles that are already cached
+		Details read = new Details(lastModified, length, read(metaDataFile));
+		synchronized (this) {
+			Details previous = details.put(metaDataFile, read);
+			if (previous != null)
+				size -= previous.bytes;
+			size += read.bytes;
+			evict();
+		}
+		return read.titles;
+	}
+
+	private static List<WindowsMediaCenterMetaData.Title> read(File metaDataFile) {
+		if (!metaDataFile.isFile())
+			return Collections.emptyList();
+
+		try {
+			return read(new BufferedInputStream(new FileInputStream(metaDataFile)), metaDataFile);
+		} catch (Exception e) {
+			LOGGER.error("Couldn't read Media Center titles from " + metaDataFile, e);
+			return Collections.emptyList();
+		}
+	}
+
+	private static List<WindowsMediaCenterMetaData.Title> read(InputStream stream, File metaDataFile) {
+		InputStreamReader reader = null;
+		try {
+			reader = new InputStreamReader(stream, MediaCenterXmlWriter.METADATA_ENCODING);
+			return Collections.unmodifiableList(MediaCenterXmlReader.readTitles(reader));
+		} catch (Exception e) {
+			LOGGER.error("Couldn't read Media Center titles from " + metaDataFile, e);
+			return Collections.emptyList();
+		} finally {
+			if (reader != null)
+				try {reader.close();} catch (Exception e) {}
+		}
+	}
+
+	private static long estimateBytes(List<WindowsMediaCenterMetaData.Title> titles) {
+		long bytes = 64;
+		for (WindowsMediaCenterMetaData.Title title : titles) {
+			bytes += 64 + estimateBytes(title.getTitle()) + estimateBytes(title.getSynopsis()) + estimateBytes(title.getDirector())
+					+ estimateBytes(title.getLeadPerformer()) + estimateBytes(title.getStudio()) + estimateBytes(title.getGenre());
+			if (title.getChapters() != null) {
+				for (WindowsMediaCenterMetaData.Chapter chapter : title.getChapters()) {
+					bytes += 40 + estimateBytes(chapter.getChapterTitle());
+				}
+			}
+		}
+		return bytes;
+	}
+
+	private static long estimateBytes(String value) {
+		return value == null ? 0 : 40 + 2L * value.length();
+	}
+
+	/**
+	 * Forgets the titles of a file, for watchers that saw it change.
+	 */
+	public synchronized void remove(File metaDataFile) {
+		Details removed = details.remove(metaDataFile);
+		if (removed != null)
+			size -= removed.bytes;
+	}
+
+	public synchronized void clear() {
+		details.clear();
+		size = 0;
+	}
+
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntryCount() {
+		return details.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private void evict() {
+		//The entry just used is last, so it survives even when it's bigger than the whole cache
+		Iterator<Map.Entry<File, Details>> entries = details.entrySet().iterator();
+		while (size > capacity && details.size() > 1 && entries.hasNext()) {
+			size -= entries.next().getValue().bytes;
+			entries.remove();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.mediaserver.wmc;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * How titles sort: by the locale's collation of the title, optionally leaving out a leading article so
+ * "The Abyss" files under A. Stores work out every title's CollationKey once while they're built and keep
+ * their rows in this order, so browsing never compares titles again.
+ */
+public class TitleOrder {
+	public static final String LOCALE_PROPERTY = "com.mediaserver.wmc.titleLocale";
+	//Comma separated, "The,A,An" say; none are left out unless this is set
+	public static final String ARTICLES_PROPERTY = "com.mediaserver.wmc.titleArticles";
+	private static volatile TitleOrder instance;
+
+	private final Locale locale;
+	private final List<String> articles;
+	//Collators aren't thread safe, so use goes through this
+	private final Collator collator;
+
+	public TitleOrder(Locale locale, List<String> articles) {
+		this.locale = locale;
+		List<String> prefixes = new ArrayList<String>();
+		for (String article : articles) {
+			if (article.trim().length() > 0)
+				prefixes.add(article.trim().toLowerCase(locale) + " ");
+		}
+		this.articles = Collections.unmodifiableList(prefixes);
+		this.collator = Collator.getInstance(locale);
+	}
+
+	/**
+	 * Returns the order set up by the system properties, or the last one given to setInstance.
+	 */
+	public static TitleOrder getInstance() {
+		TitleOrder order = instance;
+		if (order == null) {
+			String localeName = System.getProperty(LOCALE_PROPERTY);
+			Locale locale = localeName != null ? new Locale(localeName) : Locale.getDefault();
+			String articles = System.getProperty(ARTICLES_PROPERTY, "");
+			order = new TitleOrder(locale, articles.length() == 0 ? Collections.<String>emptyList() : Arrays.asList(articles.split(",")));
+			instance = order;
+		}
+		return order;
+	}
+
+	/**
+	 * Changes the order of stores built from now on; stores already built keep theirs.
+	 */
+	public static void setInstance(TitleOrder order) {
+		instance = order;
+	}
+
+	public Locale getLocale() {
+		return locale;
+	}
+
+	/**
+	 * Returns the articles left out of titles, lower case and each with its trailing space.
+	 */
+	public List<String> getArticles() {
+		return articles;
+	}
+
+	/**
+	 * Returns the title as it's sorted, without its leading article if it has one.
+	 */
+	public String getSortTitle(String title) {
+		if (title == null || articles.isEmpty())
+			return title;
+
+		String lowerTitle = title.toLowerCase(locale);
+		for (String article : articles) {
+			//"A" on its own is a title, not an article
+			if (lowerTitle.startsWith(article) && title.length() > article.length())
+				return title.substring(article.length()).trim();
+		}
+		return title;
+	}
+
+	public CollationKey getSortKey(String title) {
+		String sortTitle = getSortTitle(title);
+		if (sortTitle == null)
+			return null;
+
+		synchronized (collator) {
+			return collator.getCollationKey(sortTitle);
+		}
+	}
+
+	/**
+	 * Compares two titles without keys, for the odd comparison between titles of different stores.
+	 * Missing titles come first.
+	 */
+	public int compare(String title1, String title2) {
+		if (title1 == null || title2 == null)
+			return title1 == title2 ? 0 : (title1 == null ? -1 : 1);
+
+		String sortTitle1 = getSortTitle(title1);
+		String sortTitle2 = getSortTitle(title2);
+		synchronized (collator) {
+			return collator.compare(sortTitle1, sortTitle2);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.mediaserver.wmc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One title as it comes off disk: the dvdid file, the folder it was found under and whatever could be
+ * parsed out of it and its DvdInfoCache metadata. Records only live long enough to be added to a
+ * LibraryStore.
+ */
+class TitleRecord {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TitleRecord.class);
+	private static final Log2Histogram DVDID_PARSE = MediaCenterMetrics.latency("parse.dvdid");
+	private static final Log2Histogram METADATA_PARSE = MediaCenterMetrics.latency("parse.metaData");
+	private static final StripedCounter PARSE_ERRORS = MediaCenterMetrics.counter("parse.errors");
+
+	final File diskFile;
+	final String basePath;
+	final DVDIdDisk disk;
+	final WindowsMediaCenterMetaData metaData;
+
+	TitleRecord(File diskFile, String basePath, DVDIdDisk disk, WindowsMediaCenterMetaData metaData) {
+		this.diskFile = diskFile;
+		this.basePath = basePath;
+		this.disk = disk;
+		this.metaData = metaData;
+	}
+
+	boolean isParsed() {
+		return disk != null;
+	}
+
+	File getMetaDataFile() {
+		return disk == null ? null : WindowsMediaCenterInfo.getMetaDataFile(disk);
+	}
+
+	/**
+	 * Parses the dvdid file, from diskContents when the caller has already read it, and then its metadata.
+	 * Failures are logged and leave the disk or metadata null.
+	 */
+	static TitleRecord parse(File diskFile, String basePath, byte[] diskContents) {
+		if (diskContents == null && !diskFile.exists())
+			LOGGER.error("DVDDisk file must exist.", new FileNotFoundException(diskFile.toString()));
+
+		DVDIdDisk disk = null;
+		WindowsMediaCenterMetaData metaData = null;
+		InputStream diskStream = null;
+		InputStreamReader reader = null;
+		long start = System.nanoTime();
+		try {
+			diskStream = diskContents != null ? new ByteArrayInputStream(diskContents) : new BufferedInputStream(new FileInputStream(diskFile));
+			DVDIdDisk parsedDisk = MediaCenterXmlReader.readDisk(diskStream);
+			if (parsedDisk.getId() == null)
+				throw new IOException("No disc ID in " + diskFile);
+			disk = parsedDisk;
+			DVDID_PARSE.recordSince(start);
+
+			File metaDataFile = WindowsMediaCenterInfo.getMetaDataFile(disk);
+			if (metaDataFile.exists()) {
+				start = System.nanoTime();
+				reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(metaDataFile)), MediaCenterXmlWriter.METADATA_ENCODING);
+				//Titles and chapters are the detail tier, TitleDetailCache reads them when they're wanted
+				metaData = MediaCenterXmlReader.readMetaData(reader, false);
+				METADATA_PARSE.recordSince(start);
+			}
+		} catch (Exception e) {
+			PARSE_ERRORS.increment();
+			LOGGER.error("Couldn't read Media Center metadata for " + diskFile, e);
+		} finally {
+			if (diskStream != null)
+				try {diskStream.close();} catch (Exception ex) {}
+			if (reader != null)
+				try {reader.close();} catch (Exception ex) {}
+		}
+
+		return new TitleRecord(diskFile, basePath, disk, metaData);
+	}
+}
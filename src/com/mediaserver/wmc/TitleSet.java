@@ -0,0 +1,164 @@
+package com.mediaserver.wmc;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A sorted, read only view of some of the titles in a FacetIndex. Nothing is copied; narrowing a
+ * TitleSet by a property value intersects ordinal sets.
+ */
+public class TitleSet extends AbstractList<WindowsMediaCenterInfo> implements RandomAccess {
+	private final FacetIndex index;
+	private final OrdinalSet ordinals;
+	//The property values picked to narrow the library down to this set, null if nobody said
+	private final String selection;
+
+	public TitleSet(FacetIndex index, OrdinalSet ordinals) {
+		this(index, ordinals, null);
+	}
+
+	private TitleSet(FacetIndex index, OrdinalSet ordinals, String selection) {
+		this.index = index;
+		this.ordinals = ordinals;
+		this.selection = selection;
+	}
+
+	/**
+	 * Returns every title in the index, which is the empty selection.
+	 */
+	static TitleSet all(FacetIndex index) {
+		return new TitleSet(index, OrdinalSet.range(0, index.size()), "");
+	}
+
+	/**
+	 * Returns the potentials as a TitleSet, indexing them on the spot if they didn't come from one.
+	 */
+	public static TitleSet of(Collection<WindowsMediaCenterInfo> potentials) {
+		if (potentials instanceof TitleSet)
+			return (TitleSet)potentials;
+
+		return new FacetIndex(potentials, -1).getAllTitles();
+	}
+
+	public FacetIndex getIndex() {
+		return index;
+	}
+
+	public OrdinalSet getOrdinals() {
+		return ordinals;
+	}
+
+	public String getSelection() {
+		return selection;
+	}
+
+	public TitleSet subset(OrdinalSet subsetOrdinals) {
+		return new TitleSet(index, ordinals.and(subsetOrdinals));
+	}
+
+	/**
+	 * Narrows these titles to the ones filed under a category value, remembering the choice so the same
+	 * path through the categories can be recognised later.
+	 */
+	public TitleSet subset(OrdinalSet subsetOrdinals, String property, String value) {
+		String subsetSelection = selection == null ? null : selection + "\n" + property + "=" + value;
+		return new TitleSet(index, ordinals.and(subsetOrdinals), subsetSelection);
+	}
+
+	/**
+	 * Returns the same titles in another index, given the row each row of this index became there, or
+	 * null if one of them isn't in it.
+	 */
+	TitleSet rebind(FacetIndex next, int[] rows) {
+		int[] nextOrdinals = new int[ordinals.size()];
+		int count = 0;
+		OrdinalSet.OrdinalIterator iterator = ordinals.iterator();
+		while (iterator.hasNext()) {
+			int row = rows[iterator.next()];
+			if (row < 0)
+				return null;
+			nextOrdinals[count++] = row;
+		}
+		Arrays.sort(nextOrdinals);
+		return new TitleSet(next, OrdinalSet.ofSorted(nextOrdinals, count), selection);
+	}
+
+	/**
+	 * Narrows these titles to the ones with a numeric property from from, inclusive, to to, exclusive.
+	 */
+	public TitleSet range(String property, double from, double to) {
+		return subset(index.getRangeIndex(property).range(from, to));
+	}
+
+	/**
+	 * Groups these titles by every value of the property, dropping values none of them have.
+	 */
+	public SortedMap<String, OrdinalSet> groupBy(String property) {
+		SortedMap<String, OrdinalSet> facet = index.getFacet(property);
+		if (ordinals.size() == index.size())
+			return facet;
+
+		//A handful of titles is cheaper to regroup than to intersect with every value in the library
+		if (ordinals.size() < facet.size())
+			return index.group(PropertyAccessor.forProperty(property), ordinals);
+
+		SortedMap<String, OrdinalSet> groups = new TreeMap<String, OrdinalSet>(facet.comparator());
+		for (Map.Entry<String, OrdinalSet> entry : facet.entrySet()) {
+			OrdinalSet group = ordinals.and(entry.getValue());
+			if (!group.isEmpty())
+				groups.put(entry.getKey(), group);
+		}
+		return groups;
+	}
+
+	@Override
+	public WindowsMediaCenterInfo get(int index) {
+		return this.index.get(ordinals.select(index));
+	}
+
+	@Override
+	public int size() {
+		return ordinals.size();
+	}
+
+	@Override
+	public Iterator<WindowsMediaCenterInfo> iterator() {
+		final OrdinalSet.OrdinalIterator iterator = ordinals.iterator();
+		return new Iterator<WindowsMediaCenterInfo>() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public WindowsMediaCenterInfo next() {
+				if (!iterator.hasNext())
+					throw new NoSuchElementException();
+
+				return index.get(iterator.next());
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("TitleSets are read only");
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj instanceof TitleSet && ((TitleSet)obj).index == index)
+			return ordinals.equals(((TitleSet)obj).ordinals);
+
+		return super.equals(obj);
+	}
+}
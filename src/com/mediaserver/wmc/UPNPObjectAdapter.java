@@ -0,0 +1,57 @@
+package com.mediaserver.wmc;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Lets a plain UPNPObject be driven through the paged browse contract. Page boundaries are simply
+ * ignored, so the wrapped node sees the same calls it always has.
+ */
+public class UPNPObjectAdapter<T> implements PagedUPNPObject<T> {
+	private UPNPObject<T> nativeNode;
+
+	@SuppressWarnings("unchecked")
+	public static <T> PagedUPNPObject<T> adapt(UPNPObject<T> nativeNode) {
+		if (nativeNode instanceof PagedUPNPObject)
+			return (PagedUPNPObject<T>)nativeNode;
+
+		return new UPNPObjectAdapter<T>(nativeNode);
+	}
+
+	public UPNPObjectAdapter(UPNPObject<T> nativeNode) {
+		this.nativeNode = nativeNode;
+	}
+
+	public UPNPObject<T> getNativeNode() {
+		return nativeNode;
+	}
+
+	@Override
+	public void startChildPage(int startingIndex, int totalChildCount) {
+	}
+
+	@Override
+	public List<T> getChildren() {
+		return nativeNode.getChildren();
+	}
+
+	@Override
+	public void setNode(CategoryTreeNode node, List<WindowsMediaCenterInfo> potentials) {
+		nativeNode.setNode(node, potentials);
+	}
+
+	@Override
+	public void addVideoItem(WindowsMediaCenterInfo info) {
+		nativeNode.addVideoItem(info);
+	}
+
+	@Override
+	public void addContainer(String thumbnailName, CategoryTreeNode node, Collection<WindowsMediaCenterInfo> potentials) {
+		nativeNode.addContainer(thumbnailName, node, potentials);
+	}
+
+	@Override
+	public void clearChildren() {
+		nativeNode.clearChildren();
+	}
+}
@@ -0,0 +1,67 @@
+package com.mediaserver.wmc;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds the children of a disc, its titles, or of one title of a disc, its chapters. Titles and chapters
+ * come from the detail tier, so nothing is read until a renderer opens the disc.
+ */
+public class WindowsMediaCenterDiscFilter<T> {
+	private DiscUPNPObject<T> nativeNode;
+	private WindowsMediaCenterInfo disc;
+	private WindowsMediaCenterMetaData.Title title;
+
+	public WindowsMediaCenterDiscFilter(DiscUPNPObject<T> nativeNode, WindowsMediaCenterInfo disc) {
+		this(nativeNode, disc, null);
+	}
+
+	/**
+	 * A filter over the chapters of title, one of the disc's titles.
+	 */
+	public WindowsMediaCenterDiscFilter(DiscUPNPObject<T> nativeNode, WindowsMediaCenterInfo disc, WindowsMediaCenterMetaData.Title title) {
+		this.nativeNode = nativeNode;
+		this.disc = disc;
+		this.title = title;
+	}
+
+	public void buildChildren() {
+		buildChildren(0, 0);
+	}
+
+	/**
+	 * Fills the native node with one page of titles or chapters. A requestedCount of 0 means every child
+	 * from startingIndex on.
+	 */
+	public void buildChildren(int startingIndex, int requestedCount) {
+		nativeNode.clearChildren();
+		if (title == null) {
+			List<WindowsMediaCenterMetaData.Title> titles = disc.getDiscTitles();
+			nativeNode.startChildPage(startingIndex, titles.size());
+			for (WindowsMediaCenterMetaData.Title discTitle : page(titles, startingIndex, requestedCount)) {
+				nativeNode.addTitleItem(disc, discTitle);
+			}
+		} else {
+			List<WindowsMediaCenterMetaData.Chapter> chapters = getChapters();
+			nativeNode.startChildPage(startingIndex, chapters.size());
+			for (WindowsMediaCenterMetaData.Chapter chapter : page(chapters, startingIndex, requestedCount)) {
+				nativeNode.addChapterItem(disc, title, chapter);
+			}
+		}
+	}
+
+	public int getChildCount() {
+		return title == null ? disc.getDiscTitles().size() : getChapters().size();
+	}
+
+	private List<WindowsMediaCenterMetaData.Chapter> getChapters() {
+		List<WindowsMediaCenterMetaData.Chapter> chapters = title.getChapters();
+		return chapters == null ? Collections.<WindowsMediaCenterMetaData.Chapter>emptyList() : chapters;
+	}
+
+	private static <E> List<E> page(List<E> elements, int startingIndex, int requestedCount) {
+		int fromIndex = Math.min(Math.max(startingIndex, 0), elements.size());
+		int toIndex = requestedCount > 0 ? (int)Math.min((long)fromIndex + requestedCount, elements.size()) : elements.size();
+		return elements.subList(fromIndex, toIndex);
+	}
+}
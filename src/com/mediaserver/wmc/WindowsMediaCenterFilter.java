@@ -1,17 +1,14 @@
 package com.mediaserver.wmc;
 
-import java.beans.BeanInfo;
-import java.beans.IntrospectionException;
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,23 +16,42 @@ import org.slf4j.LoggerFactory;
 
 public class WindowsMediaCenterFilter<T> implements Comparable<WindowsMediaCenterFilter<T>> {
 	private static final Logger logger = LoggerFactory.getLogger(WindowsMediaCenterFilter.class);
+	private static final Map<String, BrowseMetrics> METRICS = new ConcurrentHashMap<String, BrowseMetrics>();
 	private Collection<WindowsMediaCenterInfo> potentials;
 	private CategoryTreeNode filterNode;
 	private String name;
 	private String thumbnailIcon;
-	private UPNPObject<T> nativeNode;
-	
-	private static BeanInfo BEAN_INFO;
-	private static Map<String, PropertyDescriptor> PROPERTY_DESCRIPTORS = new HashMap<String, PropertyDescriptor>();
-	static {
-		try {
-			BEAN_INFO = Introspector.getBeanInfo(WindowsMediaCenterInfo.class);
-			for (PropertyDescriptor descriptor : BEAN_INFO.getPropertyDescriptors()) {
-				PROPERTY_DESCRIPTORS.put(descriptor.getName(), descriptor);
-			}
-		} catch (IntrospectionException e) {
-			logger.error("Chouldn't create bean info", e);
+	private PagedUPNPObject<T> nativeNode;
+	//Built once; a TitleSet never changes, so neither do the children of a container over one
+	private volatile List<BrowseChild> children;
+	
+	/**
+	 * The histograms a browse records into for one property, resolved once so browsing doesn't build
+	 * metric names.
+	 */
+	private static class BrowseMetrics {
+		final Log2Histogram fanOut;
+		final Log2Histogram buildChildren;
+		final Log2Histogram addNodeCategories;
+		final Log2Histogram categories;
+		
+		BrowseMetrics(String property) {
+			fanOut = MediaCenterMetrics.histogram("browse.fanOut." + property, "children");
+			buildChildren = MediaCenterMetrics.latency("browse.buildChildren." + property);
+			addNodeCategories = MediaCenterMetrics.latency("browse.addNodeCategories." + property);
+			categories = MediaCenterMetrics.histogram("browse.categories." + property, "children");
+		}
+	}
+	
+	private static BrowseMetrics metricsFor(String property) {
+		if (property == null)
+			property = "Root";
+		BrowseMetrics metrics = METRICS.get(property);
+		if (metrics == null) {
+			metrics = new BrowseMetrics(property);
+			METRICS.put(property, metrics);
 		}
+		return metrics;
 	}
 	
 	private static String buildName(CategoryTreeNode filterNode) {
@@ -49,7 +65,7 @@ public class WindowsMediaCenterFilter<T> implements Comparable<WindowsMediaCente
 	}
 	
 	public WindowsMediaCenterFilter(UPNPObject<T> nativeNode, String thumbnailIcon, CategoryTreeNode filterNode, Collection<WindowsMediaCenterInfo> potentials) {
-		this.nativeNode = nativeNode;
+		this.nativeNode = UPNPObjectAdapter.adapt(nativeNode);
 		this.name = buildName(filterNode);
 		this.thumbnailIcon = thumbnailIcon;
 		this.filterNode = filterNode;
@@ -65,108 +81,188 @@ public class WindowsMediaCenterFilter<T> implements Comparable<WindowsMediaCente
 	}
 	
 	public void buildChildren() {
-		nativeNode.clearChildren();
+		buildChildren(0, 0);
+	}
+	
+	/**
+	 * Fills the native node with one page of children. A requestedCount of 0 means every child from
+	 * startingIndex on, like a UPnP Browse request. The page is worked out first and then put in the node
+	 * in one go, so renderers browsing the same node at once each see a whole page.
+	 */
+	public void buildChildren(int startingIndex, int requestedCount) {
+		browse(startingIndex, requestedCount).applyTo(nativeNode);
+	}
+	
+	/**
+	 * Works out one page of children without touching the native node. Any number of threads can browse
+	 * a filter at once; the container's children are built once and then shared.
+	 */
+	public BrowseResult browse(int startingIndex, int requestedCount) {
+		long start = System.nanoTime();
+		BrowseMetrics metrics = metricsFor(filterNode.getProperty());
+		BrowseResult result;
 		
-		if (filterNode.isUseHeading()) {
-			//This builds a leaf
-			nativeNode.addContainer(thumbnailIcon, filterNode.getInstance(false), potentials);
-		} else if (filterNode.isLeaf() && (filterNode.getNodeName() != null ||
-				(filterNode.getNodeName() == null && filterNode.getProperty() == null))) {
+		if (isMovieLeaf()) {
 			//This builds the actual leaf movies
 			//Collection<WindowsMediaCenterInfo> potentials = filterNode.getExpectedValue() != null?filterPotentials(this.potentials, filterNode):new TreeSet<WindowsMediaCenterInfo>(this.potentials);
-			for (WindowsMediaCenterInfo info : this.potentials) {
-				nativeNode.addVideoItem(info);
-			}
+			result = BrowseResult.ofItems(startingIndex, potentials.size(), page(potentials, startingIndex, requestedCount));
 		} else {
-			//This builds category based children
-			if (filterNode.getProperty() != null && filterNode.getNodeName() == null) {
-				addNodeCategories(filterNode, potentials);
-			} else {
-				//Collection<WindowsMediaCenterInfo> potentials = filterNode.getNodeName() != null?filterPotentials(this.potentials, filterNode):this.potentials;
-				for (CategoryTreeNode node : filterNode) {
-					if (node.isUseHeading()) {
-						nativeNode.addContainer(thumbnailIcon, node.getInstance(false), this.potentials);
-					} else {
-						addNodeCategories(node, potentials);
-					}
-				}
-			}
+			List<BrowseChild> children = buildContainerChildren();
+			result = BrowseResult.ofContainers(startingIndex, children.size(), page(children, startingIndex, requestedCount));
+			metrics.fanOut.record(children.size());
 		}
+		metrics.buildChildren.recordSince(start);
+		return result;
 	}
 	
-	private Object replaceWithUnknown(Object value) {
-		if (value == null || value.equals(""))
-			return "(Unknown)";
+	/**
+	 * Returns how many children buildChildren would add without adding them, from the library's category
+	 * counts where they can tell.
+	 */
+	public int getChildCount() {
+		if (isMovieLeaf())
+			return potentials.size();
 		
-		return value;
+		if (potentials instanceof TitleSet) {
+			TitleSet titles = (TitleSet)potentials;
+			CategoryTreeNode categories = filterNode;
+			while (categories.getParent() != null) {
+				categories = (CategoryTreeNode)categories.getParent();
+			}
+			
+			CategoryCounts.Node counts = titles.getSelection() == null ? null : titles.getIndex().getCategoryCounts(categories).find(titles.getSelection());
+			if (counts != null && counts.getTitleCount() == titles.size()) {
+				int count = CategoryCounts.getChildCount(filterNode, counts);
+				if (count >= 0)
+					return count;
+			}
+		}
+		return buildContainerChildren().size();
 	}
 	
-	private void addNode(String key, WindowsMediaCenterInfo addElement, Map<String, Set<WindowsMediaCenterInfo>> addMap) {
-		Set<WindowsMediaCenterInfo> value = addMap.get(key);
-		if (value == null) {
-			value = new TreeSet<WindowsMediaCenterInfo>();
-			addMap.put(key, value);
-		}
+	private boolean isMovieLeaf() {
+		return !filterNode.isUseHeading() && filterNode.isLeaf() && (filterNode.getNodeName() != null ||
+				(filterNode.getNodeName() == null && filterNode.getProperty() == null));
+	}
+	
+	/**
+	 * Returns the container children, from the ContainerCache when this container was built from the same
+	 * library before or is being built right now.
+	 */
+	private List<BrowseChild> buildContainerChildren() {
+		List<BrowseChild> built = children;
+		if (built != null)
+			return built;
+		
+		//Any other collection may change under us, so its children are built every time
+		if (!(potentials instanceof TitleSet))
+			return buildUncachedChildren();
 		
-		value.add(addElement);
+		TitleSet titles = (TitleSet)potentials;
+		String key = ContainerCache.keyOf(thumbnailIcon, filterNode, titles);
+		if (key == null) {
+			built = Collections.unmodifiableList(buildUncachedChildren());
+		} else {
+			built = ContainerCache.getInstance().get(key, titles, filterNode, new Callable<List<BrowseChild>>() {
+				@Override
+				public List<BrowseChild> call() {
+					return buildUncachedChildren();
+				}
+			});
+		}
+		children = built;
+		return built;
 	}
 	
-	private void addNodeCategories(CategoryTreeNode targetNode, Collection<WindowsMediaCenterInfo> potentials) {
-		Map<String, Set<WindowsMediaCenterInfo>> allNodes = new TreeMap<String, Set<WindowsMediaCenterInfo>>();
-		Method readNodeValue = PROPERTY_DESCRIPTORS.get(targetNode.getProperty()).getReadMethod();
-		for (WindowsMediaCenterInfo info : potentials) {
-			Object value = null;
-			try {
-				value = readNodeValue.invoke(info, (Object[])null);
-			} catch (Exception e) {
-				logger.error("Error executing property accessor", e);
-			}
-			
-			value = replaceWithUnknown(value);
-
-			if (value instanceof List) {
-				for (Object valueInstance : (List)value) {
-					valueInstance = replaceWithUnknown(valueInstance);
-					addNode(valueInstance + "", info, allNodes);
+	private List<BrowseChild> buildUncachedChildren() {
+		List<BrowseChild> children = new ArrayList<BrowseChild>();
+		if (filterNode.isUseHeading()) {
+			//This builds a leaf
+			children.add(new BrowseChild(thumbnailIcon, filterNode.getInstance(false), potentials));
+		} else if (filterNode.getProperty() != null && filterNode.getNodeName() == null) {
+			//This builds category based children
+			addNodeCategories(filterNode, potentials, children);
+		} else {
+			//Collection<WindowsMediaCenterInfo> potentials = filterNode.getNodeName() != null?filterPotentials(this.potentials, filterNode):this.potentials;
+			for (CategoryTreeNode node : filterNode) {
+				if (node.isUseHeading()) {
+					children.add(new BrowseChild(thumbnailIcon, node.getInstance(false), this.potentials));
+				} else {
+					addNodeCategories(node, potentials, children);
 				}
-			} else {
-				addNode(value + "", info, allNodes);
 			}
 		}
+		return children;
+	}
+	
+	private static <E> Collection<E> page(Collection<E> elements, int startingIndex, int requestedCount) {
+		int size = elements.size();
+		int fromIndex = Math.min(Math.max(startingIndex, 0), size);
+		int toIndex = requestedCount > 0 ? (int)Math.min((long)fromIndex + requestedCount, size) : size;
+		if (fromIndex == 0 && toIndex == size)
+			return elements;
+		
+		if (elements instanceof List)
+			return ((List<E>)elements).subList(fromIndex, toIndex);
+		
+		List<E> page = new ArrayList<E>(toIndex - fromIndex);
+		Iterator<E> iterator = elements.iterator();
+		for (int t = 0; t < toIndex && iterator.hasNext(); t++) {
+			E element = iterator.next();
+			if (t >= fromIndex)
+				page.add(element);
+		}
+		return page;
+	}
+	
+	private void addNodeCategories(CategoryTreeNode targetNode, Collection<WindowsMediaCenterInfo> potentials, List<BrowseChild> children) {
+		long start = System.nanoTime();
+		int firstChild = children.size();
+		addCategoryChildren(targetNode, potentials, children);
+		BrowseMetrics metrics = metricsFor(targetNode.getProperty());
+		metrics.addNodeCategories.recordSince(start);
+		metrics.categories.record(children.size() - firstChild);
+	}
+	
+	private void addCategoryChildren(CategoryTreeNode targetNode, Collection<WindowsMediaCenterInfo> potentials, List<BrowseChild> children) {
+		TitleSet titles = TitleSet.of(potentials);
+		SortedMap<String, OrdinalSet> allNodes = titles.groupBy(targetNode.getProperty());
 		
 		if (targetNode.getEntriesUnderHeading() > 0) {
 			//If the targetNode is designed to have an entry count, then we need to summarize the entries now!
-			Set<WindowsMediaCenterInfo> entriesInFolder = new TreeSet<WindowsMediaCenterInfo>();
+			OrdinalSet entriesInFolder = OrdinalSet.EMPTY;
 			String currentString = null;
 			int currentFolder = 0;
 			String lastNodeName = null;
 			
-			for (Map.Entry<String, Set<WindowsMediaCenterInfo>> folder : allNodes.entrySet()) {
+			for (Map.Entry<String, OrdinalSet> folder : allNodes.entrySet()) {
 				currentFolder++;
 				
 				lastNodeName = folder.getKey();
-				entriesInFolder.addAll(folder.getValue());
+				entriesInFolder = entriesInFolder.or(folder.getValue());
 				if (currentString == null) {
 					currentString = "(" + folder.getKey() + ") to (";
 				}
 				if (currentFolder % targetNode.getEntriesUnderHeading() == 0) {
-					nativeNode.addContainer(thumbnailIcon, targetNode.getInstance(currentString + folder.getKey()), entriesInFolder);
+					String nodeName = currentString + folder.getKey();
+					children.add(new BrowseChild(thumbnailIcon, targetNode.getInstance(nodeName), titles.subset(entriesInFolder, targetNode.getProperty(), nodeName)));
 					currentString = null;
-					entriesInFolder = new TreeSet<WindowsMediaCenterInfo>();
+					entriesInFolder = OrdinalSet.EMPTY;
 				}
 			}
 			
 			if (currentString != null) {
 				if (currentFolder % targetNode.getEntriesUnderHeading() == 1) {
-					nativeNode.addContainer(thumbnailIcon, targetNode.getInstance(lastNodeName), entriesInFolder);
+					children.add(new BrowseChild(thumbnailIcon, targetNode.getInstance(lastNodeName), titles.subset(entriesInFolder, targetNode.getProperty(), lastNodeName)));
 				} else {
-					nativeNode.addContainer(thumbnailIcon, targetNode.getInstance(currentString + lastNodeName + ")"), entriesInFolder);
+					String nodeName = currentString + lastNodeName + ")";
+					children.add(new BrowseChild(thumbnailIcon, targetNode.getInstance(nodeName), titles.subset(entriesInFolder, targetNode.getProperty(), nodeName)));
 				}
 			}
 		} else {
 			//This is a normal entry...
-			for (Map.Entry<String, Set<WindowsMediaCenterInfo>> folder : allNodes.entrySet()) {
-				nativeNode.addContainer(thumbnailIcon, targetNode.getInstance(folder.getKey()), new TreeSet<WindowsMediaCenterInfo>(folder.getValue()));
+			for (Map.Entry<String, OrdinalSet> folder : allNodes.entrySet()) {
+				children.add(new BrowseChild(thumbnailIcon, targetNode.getInstance(folder.getKey()), titles.subset(folder.getValue(), targetNode.getProperty(), folder.getKey())));
 			}
 		}
 	}
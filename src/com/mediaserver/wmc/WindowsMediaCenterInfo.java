@@ -1,165 +1,225 @@
 package com.mediaserver.wmc;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.Calendar;
+import java.nio.ByteBuffer;
 import java.util.List;
 
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.cfs.io.IOUtilities;
-
+/**
+ * One title of the library, read straight out of a row of its LibraryStore. The full metadata is only
+ * read back from DvdInfoCache when someone asks for it to edit.
+ */
 public class WindowsMediaCenterInfo implements Comparable<WindowsMediaCenterInfo> {
 	private static final Logger logger = LoggerFactory.getLogger(WindowsMediaCenterInfo.class);
-	private static final String FILE_SEPARATOR_REGEX = File.separator.replaceAll("\\\\", "\\\\\\\\");
-	private DVDIdDisk disk;
-	private File diskFile;
+	private final LibraryStore store;
+	private final int row;
 	private WindowsMediaCenterMetaData metaData;
-	private File metaDataFile;
-	private File videoTSFile;
-	private transient String flatFolders;
-	private transient String firstFolder;
-	private transient String basePath;
-	private transient String releaseYear = null;
 	
 	public WindowsMediaCenterInfo(File dvdDisk, String basePath) {
-		this.diskFile = dvdDisk;
-		this.basePath = basePath;
-		
-		if (!diskFile.exists())
-			logger.error("DVDDisk file must exist.", new FileNotFoundException(dvdDisk.toString()));
-		
-		this.videoTSFile = new File(diskFile.getParentFile(), "VIDEO_TS");
-		InputStreamReader reader = null;
-		try {
-			Unmarshaller unmarshaller = WindowsMediaCenterManager.getJAXBContext().createUnmarshaller();
-			unmarshaller.setSchema(null);
-			disk = (DVDIdDisk)unmarshaller.unmarshal(diskFile);
-			
-			metaDataFile = new File(WindowsMediaCenterManager.MEDIA_CENTER_INFO_CACHE + "\\" + disk.getId().replaceAll("[|]", "-") + ".xml");
-			if (!metaDataFile.exists())
-				return;
-			
-			reader = new InputStreamReader(new FileInputStream(metaDataFile), "ISO-8859-1");
-			metaData = (WindowsMediaCenterMetaData)unmarshaller.unmarshal(reader);
-		} catch (Exception e) {
-			logger.error("JAXB Not available, are you running Java 1.5 or later?", e);
-		} finally {
-			if (reader != null)
-				try {reader.close();} catch (Exception ex) {}
-		}
+		this(LibraryStore.of(TitleRecord.parse(dvdDisk, basePath, null)), 0);
+	}
+	
+	WindowsMediaCenterInfo(LibraryStore store, int row) {
+		this.store = store;
+		this.row = row;
+	}
+	
+	static File getMetaDataFile(DVDIdDisk disk) {
+		return getMetaDataFile(disk.getId());
+	}
+	
+	static File getMetaDataFile(String diskId) {
+		return new File(WindowsMediaCenterManager.MEDIA_CENTER_INFO_CACHE, diskId.replaceAll("[|]", "-") + ".xml");
+	}
+	
+	LibraryStore getStore() {
+		return store;
+	}
+	
+	int getRow() {
+		return row;
+	}
+	
+	File getDiskFile() {
+		return new File(store.getString(LibraryStore.DISK_PATH, row));
+	}
+	
+	String getBasePath() {
+		return store.getString(LibraryStore.BASE_PATH, row);
+	}
+	
+	File getMetaDataFile() {
+		String id = store.getString(LibraryStore.DISK_ID, row);
+		return id == null ? null : getMetaDataFile(id);
 	}
 	
 	public File getVideoTSFile() {
-		return videoTSFile;
+		return new File(getDiskFile().getParentFile(), "VIDEO_TS");
 	}
 	
 	public File getThumbnailFile() {
-		if (metaData == null)
-			return null;
-		
-		return metaData.getThumbnailFile();
+		CoverIndex.Cover cover = findCover();
+		return cover == null ? null : cover.getFile();
+	}
+	
+	/**
+	 * Returns the cover image, from memory if it has been drawn recently, or null if there isn't one.
+	 */
+	public ByteBuffer readThumbnail() {
+		return CoverIndex.getInstance().read(findCover());
+	}
+	
+	private CoverIndex.Cover findCover() {
+		return CoverIndex.getInstance().findFirstAvailable(store.getString(LibraryStore.LARGE_COVER, row), store.getString(LibraryStore.SMALL_COVER, row));
 	}
 	
 	public String getTitle() {
-		return metaData != null && metaData.getTitle() != null?metaData.getTitle():disk.getName();
+		return store.getString(LibraryStore.TITLE, row);
 	}
 	
 	public List<String> getLeadPerformer() {
-		return metaData == null?null:metaData.getLeadPerformer();
+		return store.getList(LibraryStore.LEAD_PERFORMER, row);
 	}
 	
 	public List<String> getGenre() {
-		return metaData == null?null:metaData.getGenre();
+		return store.getList(LibraryStore.GENRE, row);
 	}
 	
 	public String getStudio() {
-		return metaData == null?null:metaData.getStudio();
+		return store.getString(LibraryStore.STUDIO, row);
 	}
 	
 	public List<String> getDirector() {
-		return metaData == null?null:metaData.getDirector();
+		return store.getList(LibraryStore.DIRECTOR, row);
 	}
 	
 	public String getMPAARating() {
-		return metaData == null?null:metaData.getMPAARating();
+		return store.getString(LibraryStore.MPAA_RATING, row);
 	}
 	
 	public String getRating() {
-		return metaData == null?null:metaData.getRating();
+		return store.getString(LibraryStore.RATING, row);
 	}
 	
 	public String getReleaseYear() {
-		if (releaseYear != null || metaData == null || metaData.getReleaseDate() == null)
-			return releaseYear;
-		
-		Calendar cal = Calendar.getInstance();
-		cal.setTime(metaData.getReleaseDate());
-		return cal.get(Calendar.YEAR) + "";
+		return store.getString(LibraryStore.RELEASE_YEAR, row);
+	}
+	
+	/**
+	 * Returns the decade of the release year, like 1990s.
+	 */
+	public String getReleaseDecade() {
+		String releaseYear = getReleaseYear();
+		double year = releaseYear == null ? Double.NaN : RangeIndex.parse(releaseYear);
+		return Double.isNaN(year) ? null : RangeIndex.bucketOf(RangeIndex.RELEASE_DECADE, year);
+	}
+	
+	/**
+	 * Returns the running time in minutes.
+	 */
+	public Integer getDuration() {
+		int duration = store.getDuration(row);
+		return duration == Integer.MIN_VALUE ? null : duration;
+	}
+	
+	/**
+	 * Returns the half hour the running time falls in, like 90-119 min.
+	 */
+	public String getDurationRange() {
+		Integer duration = getDuration();
+		return duration == null ? null : RangeIndex.bucketOf(RangeIndex.DURATION_RANGE, duration);
 	}
 	
 	public String getFlatFolders() {
-		if (flatFolders != null)
-			return flatFolders;
-		
-		flatFolders = IOUtilities.getRelativePath(basePath, diskFile.getParentFile().getParent()).substring(1);
-		return flatFolders;
+		return store.getString(LibraryStore.FLAT_FOLDERS, row);
 	}
 	
 	public String getFirstFolder() {
-		if (firstFolder != null)
-			return firstFolder;
+		String firstFolder = store.getString(LibraryStore.FIRST_FOLDER, row);
+		if (firstFolder == null)
+			throw new IllegalArgumentException(store.getString(LibraryStore.DISK_PATH, row) + " is busted");
 		
-		String[] paths = IOUtilities.getRelativePath(basePath, diskFile.getParentFile().getParent()).substring(1).split(FILE_SEPARATOR_REGEX);
-		if (paths.length < 2)
-			throw new IllegalArgumentException(diskFile.getAbsolutePath() + " is busted");
-		
-		firstFolder = paths[1];
 		return firstFolder;
 	}
 	
-	public WindowsMediaCenterMetaData getWindowsMediaCenterMetaData() {
-		if (metaData == null) {
-			metaData = new WindowsMediaCenterMetaData();
+	/**
+	 * Returns the titles on the disc with their synopses and chapters. They aren't part of the library,
+	 * so they're read on first use and kept in TitleDetailCache.
+	 */
+	public List<WindowsMediaCenterMetaData.Title> getDiscTitles() {
+		return TitleDetailCache.getInstance().getTitles(getMetaDataFile());
+	}
+	
+	/**
+	 * Reads this title's metadata back from DvdInfoCache for editing. Browsing keeps showing the library's
+	 * copy until the edited metadata is saved and the library picks the change up. A save that hasn't been
+	 * written yet is read instead of the file, so an edit is never lost to one made from another view.
+	 */
+	public synchronized WindowsMediaCenterMetaData getWindowsMediaCenterMetaData() {
+		if (metaData != null)
+			return metaData;
+		
+		File metaDataFile = getMetaDataFile();
+		byte[] pendingContents = metaDataFile == null ? null : MetaDataWriter.getInstance().getPendingContents(metaDataFile);
+		if (pendingContents != null || (metaDataFile != null && metaDataFile.exists())) {
+			InputStreamReader reader = null;
+			try {
+				InputStream stream = pendingContents != null ? new ByteArrayInputStream(pendingContents) : new BufferedInputStream(new FileInputStream(metaDataFile));
+				reader = new InputStreamReader(stream, MediaCenterXmlWriter.METADATA_ENCODING);
+				metaData = MediaCenterXmlReader.readMetaData(reader, true);
+			} catch (Exception e) {
+				logger.error("Couldn't read Media Center metadata from " + metaDataFile, e);
+			} finally {
+				if (reader != null)
+					try {reader.close();} catch (Exception ex) {}
+			}
 		}
 		
+		if (metaData == null)
+			metaData = new WindowsMediaCenterMetaData();
+		
 		return metaData;
 	}
 	
 	public DVDIdDisk getDVDIdDisk() {
+		String id = store.getString(LibraryStore.DISK_ID, row);
+		if (id == null)
+			return null;
+		
+		DVDIdDisk disk = new DVDIdDisk();
+		disk.setId(id);
+		disk.setName(store.getString(LibraryStore.DISK_NAME, row));
 		return disk;
 	}
 	
+	/**
+	 * Queues the metadata as it is now to be written to DvdInfoCache and returns straight away.
+	 * MetaDataWriter.flush waits for it to be on disk.
+	 */
 	public void saveWindowsMediaCenterMetaData() {
-		FileWriter writer = null;
-		try {
-			Marshaller marshaller = WindowsMediaCenterManager.getJAXBContext().createMarshaller();
-			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-			marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
-			writer = new FileWriter(metaDataFile);
-			writer.write("<?xml version=\"1.0\"?>\n");
-			marshaller.marshal(metaData, writer);
-		} catch (Exception e) {
-			logger.error("JAXB Not available, are you running Java 1.5 or later?", e);
-		} finally {
-			if (writer != null)
-				try { writer.close(); } catch (Exception e) {}
+		File metaDataFile = getMetaDataFile();
+		if (metaDataFile == null) {
+			logger.error("Can't save Media Center metadata for " + getDiskFile() + ", it has no disc ID");
+			return;
 		}
+		
+		MetaDataWriter.getInstance().save(metaDataFile, getWindowsMediaCenterMetaData());
 	}
 	
 	@Override
 	public int hashCode() {
+		//Same value as hashing the DVDIdDisk, without building one
 		final int prime = 31;
+		String id = store.getString(LibraryStore.DISK_ID, row);
 		int result = 1;
-		result = prime * result + ((disk == null) ? 0 : disk.hashCode());
+		result = prime * result + ((id == null) ? 0 : prime + id.hashCode());
 		return result;
 	}
 
@@ -172,21 +232,27 @@ public class WindowsMediaCenterInfo implements Comparable<WindowsMediaCenterInfo
 		if (getClass() != obj.getClass())
 			return false;
 		WindowsMediaCenterInfo other = (WindowsMediaCenterInfo) obj;
-		if (disk == null) {
-			if (other.disk != null)
+		String id = store.getString(LibraryStore.DISK_ID, row);
+		String otherId = other.store.getString(LibraryStore.DISK_ID, other.row);
+		if (id == null) {
+			if (otherId != null)
 				return false;
-		} else if (!disk.equals(other.disk))
+		} else if (!id.equals(otherId))
 			return false;
 		return true;
 	}
 
 	@Override
 	public int compareTo(WindowsMediaCenterInfo o) {
-		int compareValue = getTitle().compareTo(o.getTitle());
+		//Rows of one store are already in title order
+		if (store == o.store)
+			return row < o.row ? -1 : (row == o.row ? 0 : 1);
+		
+		int compareValue = TitleOrder.getInstance().compare(getTitle(), o.getTitle());
 		if (compareValue != 0)
 			return compareValue;
 		
-		return hashCode() - o.hashCode();
+		return LibraryStore.compareIds(store.getString(LibraryStore.DISK_ID, row), o.store.getString(LibraryStore.DISK_ID, o.row));
 	}
 
 	@Override
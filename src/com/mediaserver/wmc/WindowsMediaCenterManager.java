@@ -13,9 +13,23 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -24,9 +38,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cfs.io.FileTreeEnumeration;
-import com.cfs.os.WindowsRegistry;
-import com.cfs.os.WindowsRegistryRoot;
-import com.cfs.progress.HistoricalTimedProgressMonitor;
 import com.cfs.progress.ProgressableObjectMonitor;
 import com.cfs.util.RegexFileFilter;
 import com.cfs.util.RegexFileFilter.MatchType;
@@ -35,92 +46,561 @@ import com.cfs.util.WildcardFilenameFilter;
 public class WindowsMediaCenterManager<T> {
 	private static final Logger LOGGER = LoggerFactory.getLogger(WindowsMediaCenterManager.class);
 
-	public static String MEDIA_CENTER_BASE = System.getProperty("user.home") + "\\AppData\\Roaming\\Microsoft\\eHome\\";
-	public static String MEDIA_CENTER_INFO_CACHE = MEDIA_CENTER_BASE + "DvdInfoCache\\";
-	public static String MEDIA_CENTER_COVER_CACHE = MEDIA_CENTER_BASE + "DvdCoverCache\\";
+	public static final String MEDIA_CENTER_BASE_PROPERTY = "com.mediaserver.wmc.mediaCenterBase";
+	public static String MEDIA_CENTER_BASE;
+	public static String MEDIA_CENTER_INFO_CACHE;
+	public static String MEDIA_CENTER_COVER_CACHE;
+	static final String DVDID_SUFFIX = ".dvdid.xml";
 
 	private static JAXBContext jaxbContext = null;
-	private static final List<String> infoExcludedProperties = Arrays.asList(new String[]{"class", "thumbnailFile", "videoTSFile", "windowsMediaCenterMetaData", "dVDIdDisk"});
+	private static final List<String> infoExcludedProperties = Arrays.asList(new String[]{"class", "thumbnailFile", "videoTSFile", "windowsMediaCenterMetaData", "dVDIdDisk", "DVDIdDisk", "discTitles"});
 	private static final List<String> metaDataExcludedProperties = Arrays.asList(new String[]{"class"});
 
-	private List<WindowsMediaCenterInfo> potentials;
+	//Browsers read the published library without locking, writers publish under lock
+	private final AtomicReference<LibrarySnapshot> snapshot = new AtomicReference<LibrarySnapshot>();
+	private final AtomicReference<FutureTask<LibrarySnapshot>> refreshing = new AtomicReference<FutureTask<LibrarySnapshot>>();
+	private final AtomicLong generation = new AtomicLong();
+	private volatile boolean stale = false;
 	private Object lock = new Object();
-	private Boolean isRefreshing = new Boolean(false);
+	private volatile LibraryImage libraryImage = new LibraryImage(new File(LibraryImage.DEFAULT_IMAGE_FILE));
 	private CategoryTreeNode rootNode = getRootNode();
 	private UPNPObject<T> nativeRootNode = null;
+	private LibraryScanner scanner = new LibraryScanner();
+	private volatile List<String> configuredFolders;
+	private volatile LibraryRootSource rootSource = PropertiesLibraryRootSource.getDefault();
+	private LibraryWatcher watcher;
+	//Watched changes that came in while a rescan was running, applied again once it's published
+	private final List<File> changedDuringRefresh = new ArrayList<File>();
+	private final List<File> metaDataChangedDuringRefresh = new ArrayList<File>();
+	private final Object searchLock = new Object();
+	private volatile SearchIndex searchIndex;
+	
+	static {
+		setMediaCenterBase(System.getProperty(MEDIA_CENTER_BASE_PROPERTY, System.getProperty("user.home") + "\\AppData\\Roaming\\Microsoft\\eHome\\"));
+	}
+	
+	/**
+	 * Points every manager at another eHome folder, one holding a generated library say. The
+	 * com.mediaserver.wmc.mediaCenterBase system property does the same at startup.
+	 */
+	public static void setMediaCenterBase(String mediaCenterBase) {
+		if (!mediaCenterBase.endsWith(File.separator) && !mediaCenterBase.endsWith("\\"))
+			mediaCenterBase += File.separator;
+		
+		MEDIA_CENTER_BASE = mediaCenterBase;
+		MEDIA_CENTER_INFO_CACHE = mediaCenterBase + "DvdInfoCache" + File.separator;
+		MEDIA_CENTER_COVER_CACHE = mediaCenterBase + "DvdCoverCache" + File.separator;
+	}
 	
 	public WindowsMediaCenterManager(UPNPObject<T> nativeRootNode) {
 		this.nativeRootNode = nativeRootNode;
+		this.scanner.setScanIndex(new ScanIndex());
+		MediaCenterMetrics.getInstance().setLibrary(this);
+	}
+	
+	public void setLibraryScanner(LibraryScanner scanner) {
+		this.scanner = scanner;
+	}
+	
+	/**
+	 * Uses these movie folders instead of the ones Media Center has in the registry.
+	 */
+	public void setConfiguredFolders(List<String> folders) {
+		setLibraryRootSource(new PropertiesLibraryRootSource(folders));
+	}
+	
+	/**
+	 * Reads the movie folders from somewhere else from the next rescan on.
+	 */
+	public void setLibraryRootSource(LibraryRootSource rootSource) {
+		synchronized (lock) {
+			this.rootSource = rootSource;
+			configuredFolders = null;
+		}
+	}
+	
+	public LibraryRootSource getLibraryRootSource() {
+		return rootSource;
+	}
+	
+	/**
+	 * Keeps the library image somewhere else, or doesn't keep one when null.
+	 */
+	public void setLibraryImage(LibraryImage libraryImage) {
+		this.libraryImage = libraryImage;
+	}
+	
+	public LibraryImage getLibraryImage() {
+		return libraryImage;
 	}
 	
+	/**
+	 * Marks the library as out of date so the next refreshCache rescans it. The current library is still
+	 * served until the rescan replaces it.
+	 */
 	public void clearPotentials() {
-		potentials = null;
+		stale = true;
 	}
 	
 	public boolean isChildrenReady() {
-		return potentials != null;
+		return snapshot.get() != null;
+	}
+	
+	public boolean isRefreshing() {
+		return refreshing.get() != null;
+	}
+	
+	/**
+	 * Returns the library browsers are being served, null before the first scan finishes.
+	 */
+	public LibrarySnapshot getSnapshot() {
+		return snapshot.get();
 	}
 	
+	/**
+	 * Points the root node at the library, rescanning it first if it has never been loaded or
+	 * clearPotentials marked it out of date. The first time, the library image the last run left is served
+	 * while the folders are rescanned in the background; only when there's no usable image is the first
+	 * scan waited for. Later scans always run in the background while the previous library is served.
+	 */
 	public void refreshCache(ProgressableObjectMonitor passedMonitor) {
-		if (isRefreshing)
+		LibrarySnapshot current = snapshot.get();
+		if (current == null && (current = openLibraryImage()) != null) {
+			//Publishing the image pointed the root node at it, but titles may have come and gone since it was written
+			refresh(passedMonitor);
 			return;
+		}
 		
-		synchronized (lock) {
+		if (current == null) {
 			try {
-				isRefreshing = true;
-				if (potentials == null) {
-					potentials = new ArrayList<WindowsMediaCenterInfo>();
+				//Publishing the scan points the root node at it
+				refresh(passedMonitor).get();
+				return;
+			} catch (InterruptedException e) {
+				LOGGER.error("Media Center library scan was interrupted", e);
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				LOGGER.error("Media Center library scan failed", e.getCause());
+				return;
+			}
+		}
+		
+		if (stale)
+			refresh(passedMonitor);
+		
+		//Whatever was published last, not what was read above, which a change may have replaced since
+		synchronized (lock) {
+			nativeRootNode.setNode(rootNode, snapshot.get().getTitles());
+		}
+		//Somehow we need to reset the discovered maybe?
+		//PMS.get().getRootFolder(null).
+	}
+	
+	/**
+	 * Rescans the library on a background thread and publishes it when the scan finishes. If a rescan is
+	 * already running, its future is returned instead of starting another.
+	 */
+	public Future<LibrarySnapshot> refresh(final ProgressableObjectMonitor passedMonitor) {
+		FutureTask<LibrarySnapshot> task = refreshing.get();
+		if (task != null)
+			return task;
+		
+		task = new FutureTask<LibrarySnapshot>(new Callable<LibrarySnapshot>() {
+			@Override
+			public LibrarySnapshot call() throws Exception {
+				return rescan(passedMonitor);
+			}
+		});
+		if (!refreshing.compareAndSet(null, task)) {
+			FutureTask<LibrarySnapshot> running = refreshing.get();
+			if (running != null)
+				return running;
+			
+			//It finished in the meantime, so that library may already be out of date
+			return refresh(passedMonitor);
+		}
+		
+		Thread thread = new Thread(task, "MediaCenterRefresh");
+		thread.setDaemon(true);
+		thread.start();
+		return task;
+	}
+	
+	private LibrarySnapshot rescan(ProgressableObjectMonitor passedMonitor) throws InterruptedException {
+		long start = System.nanoTime();
+		LibrarySnapshot scanned;
+		List<File> libraryFiles;
+		List<File> metaDataFiles;
+		//A clearPotentials from now on asks for another rescan, one from before is answered by this one
+		boolean wasStale = stale;
+		boolean published = false;
+		try {
+			stale = false;
+			List<String> folders = rootSource.getRoots();
+			configuredFolders = folders;
+			FacetIndex index = new FacetIndex(scanner.scanLibrary(folders, passedMonitor), generation.incrementAndGet());
+			scanned = new LibrarySnapshot(index, folders);
+			
+			synchronized (lock) {
+				publish(scanned, null);
+				published = true;
+				libraryFiles = new ArrayList<File>(changedDuringRefresh);
+				metaDataFiles = new ArrayList<File>(metaDataChangedDuringRefresh);
+			}
+		} finally {
+			//A failed scan answered nothing, so the next refreshCache tries again
+			if (!published && wasStale)
+				stale = true;
+			synchronized (lock) {
+				changedDuringRefresh.clear();
+				metaDataChangedDuringRefresh.clear();
+				refreshing.set(null);
+			}
+		}
+		
+		MediaCenterMetrics.latency("refresh").recordSince(start);
+		writeLibraryImage(scanned);
+		//The scan may have read some of these before they changed
+		if (!libraryFiles.isEmpty() || !metaDataFiles.isEmpty())
+			applyLibraryChanges(libraryFiles, metaDataFiles);
+		else
+			updateSearchIndex();
+		return snapshot.get();
+	}
+	
+	/**
+	 * Returns the search index of the current library, bringing it up to date first if the library has
+	 * changed since it was built. Returns null before the first scan finishes.
+	 */
+	public SearchIndex getSearchIndex() {
+		LibrarySnapshot current = snapshot.get();
+		if (current == null)
+			return null;
+		
+		SearchIndex index = searchIndex;
+		if (index != null && index.getFacets() == current.getIndex())
+			return index;
+		
+		synchronized (searchLock) {
+			index = searchIndex;
+			if (index == null || index.getFacets() != current.getIndex()) {
+				index = SearchIndex.build(current.getIndex(), index);
+				searchIndex = index;
+			}
+			return index;
+		}
+	}
+	
+	/**
+	 * Returns the search index without building or updating it, null if there isn't one yet.
+	 */
+	SearchIndex getBuiltSearchIndex() {
+		return searchIndex;
+	}
+	
+	/**
+	 * Brings the search index up to date with a library that just changed, so the next search doesn't
+	 * wait for it. Nothing is indexed until the first search asks for it.
+	 */
+	private void updateSearchIndex() {
+		if (searchIndex != null)
+			getSearchIndex();
+	}
+	
+	/**
+	 * Moves a search index of previous on to the library delta was just published in, indexing only the
+	 * titles delta touched. Called under lock, so the indexes are moved on in the order the library changed.
+	 */
+	private void updateSearchIndex(FacetIndex previous, LibraryDelta delta) {
+		if (searchIndex == null)
+			return;
+		
+		synchronized (searchLock) {
+			SearchIndex index = searchIndex;
+			if (index.getFacets() == previous)
+				searchIndex = index.update(snapshot.get().getIndex(), delta);
+		}
+	}
+	
+	/**
+	 * Finds titles by the words in their names, synopses, directors, lead performers and studios, best
+	 * matches first. A requestedCount of 0 means every match from startingIndex on.
+	 */
+	public SearchResults search(String query, int startingIndex, int requestedCount) {
+		SearchIndex index = getSearchIndex();
+		if (index == null)
+			return new SearchResults(0, 0, Collections.<WindowsMediaCenterInfo>emptyList(), new float[0]);
+		
+		long start = System.nanoTime();
+		SearchResults results = index.search(query, startingIndex, requestedCount);
+		MediaCenterMetrics.latency("search").recordSince(start);
+		return results;
+	}
+	
+	/**
+	 * Answers a ContentDirectory Search: fills nativeNode with one page of the video items matching
+	 * searchCriteria, best matches first, and returns how many matched altogether. Criteria that can't be
+	 * parsed throw IllegalArgumentException.
+	 */
+	public int search(UPNPObject<T> nativeNode, String searchCriteria, int startingIndex, int requestedCount) {
+		PagedUPNPObject<T> pagedNode = UPNPObjectAdapter.adapt(nativeNode);
+		SearchIndex index = getSearchIndex();
+		long start = System.nanoTime();
+		SearchResults results = index == null ? null : SearchCriteria.search(index, searchCriteria, startingIndex, requestedCount);
+		MediaCenterMetrics.latency("search.criteria").recordSince(start);
+		pagedNode.clearChildren();
+		if (results == null) {
+			pagedNode.startChildPage(startingIndex, 0);
+			return 0;
+		}
+		
+		pagedNode.startChildPage(startingIndex, results.getTotalMatches());
+		for (WindowsMediaCenterInfo info : results.getTitles()) {
+			pagedNode.addVideoItem(info);
+		}
+		return results.getTotalMatches();
+	}
+	
+	/**
+	 * Publishes the library image, if there is one and it was written for the folders configured now.
+	 * Returns the library being served, which is another one if a scan got there first.
+	 */
+	private LibrarySnapshot openLibraryImage() {
+		LibraryImage image = libraryImage;
+		if (image == null)
+			return null;
+		
+		try {
+			LibrarySnapshot opened = image.read(generation.incrementAndGet());
+			if (opened == null)
+				return null;
+			if (!opened.getFolders().equals(rootSource.getRoots())) {
+				LOGGER.info("Movie folders have changed since " + image.getFile() + " was written, ignoring it");
+				return null;
+			}
+			
+			synchronized (lock) {
+				if (snapshot.get() != null)
+					return snapshot.get();
+				
+				publish(opened, null);
+			}
+			LOGGER.info("Serving " + opened + " from " + image.getFile() + " until the folders are rescanned");
+			return opened;
+		} catch (IOException e) {
+			LOGGER.error("Couldn't open Media Center library image", e);
+			return null;
+		}
+	}
+	
+	private void writeLibraryImage(LibrarySnapshot scanned) {
+		LibraryImage image = libraryImage;
+		if (image == null)
+			return;
+		
+		try {
+			image.write(scanned, rootNode);
+		} catch (IOException e) {
+			LOGGER.error("Couldn't write Media Center library image " + image.getFile(), e);
+		}
+	}
+	
+	/**
+	 * Swaps in a new library and points the root node at it, telling a LibraryChangeListener what the
+	 * delta changed if there is one. The containers cached for the library it replaces are let go, except
+	 * those an edit's delta didn't touch, which carry over. Callers hold the lock, so the root node always
+	 * ends up at the library published last.
+	 */
+	private void publish(LibrarySnapshot next, LibraryDelta delta) {
+		LibrarySnapshot previous = snapshot.getAndSet(next);
+		if (previous != null && delta != null)
+			ContainerCache.getInstance().carryOver(previous.getIndex(), next.getIndex(), delta);
+		else if (previous != null)
+			ContainerCache.getInstance().retire(previous.getIndex());
+		
+		if (delta != null && nativeRootNode instanceof LibraryChangeListener)
+			((LibraryChangeListener)nativeRootNode).libraryChanged(delta, next.getTitles());
+		else
+			nativeRootNode.setNode(rootNode, next.getTitles());
+	}
+	
+	public void startWatching(ProgressableObjectMonitor rescanMonitor) throws IOException {
+		synchronized (lock) {
+			if (watcher != null)
+				return;
+			
+			if (configuredFolders == null)
+				configuredFolders = rootSource.getRoots();
+			
+			watcher = new LibraryWatcher(this, configuredFolders, MEDIA_CENTER_INFO_CACHE, rescanMonitor);
+			watcher.start();
+		}
+	}
+	
+	public void stopWatching() {
+		synchronized (lock) {
+			if (watcher == null)
+				return;
+			
+			watcher.stop();
+			watcher = null;
+		}
+	}
+	
+	/**
+	 * Applies a batch of changed dvdid files, movie folders and DvdInfoCache files to the loaded library
+	 * without rescanning it. Paths that no longer exist remove every title at or beneath them.
+	 */
+	public LibraryDelta applyLibraryChanges(Collection<File> libraryFiles, Collection<File> metaDataFiles) {
+		LibraryDelta delta = new LibraryDelta();
+		synchronized (lock) {
+			if (refreshing.get() != null) {
+				changedDuringRefresh.addAll(libraryFiles);
+				metaDataChangedDuringRefresh.addAll(metaDataFiles);
+			}
+			
+			//Nothing is loaded yet, the next refresh will see these changes anyway
+			LibrarySnapshot current = snapshot.get();
+			if (current == null)
+				return delta;
+			
+			List<String> configuredFolders = current.getFolders();
+			Map<String, WindowsMediaCenterInfo> library = new LinkedHashMap<String, WindowsMediaCenterInfo>();
+			for (WindowsMediaCenterInfo info : current.getTitles()) {
+				library.put(info.getDiskFile().getPath(), info);
+			}
+			
+			Set<File> changedDisks = new LinkedHashSet<File>();
+			for (File file : libraryFiles) {
+				if (file.isDirectory()) {
+					String basePath = findBasePath(configuredFolders, file);
+					if (basePath == null)
+						continue;
 					
-					List<String> configuredFolders = getWindowsConfiguredFolders();
-					for (String fileName : configuredFolders) {
-						FileTreeEnumeration fileEnumeration = buildFileTreeEnumeration(fileName);
-						ProgressableObjectMonitor newMonitor = new HistoricalTimedProgressMonitor(fileName, passedMonitor);
-						newMonitor.startMonitor();
-						fileEnumeration.setMonitor(newMonitor);
-						int maxCount = 0;
-						while (fileEnumeration.hasMoreElements() && maxCount < 20) {
-							potentials.add(new WindowsMediaCenterInfo(fileEnumeration.nextElement(), fileName));
-							maxCount++;
+					FileTreeEnumeration fileEnumeration = buildFileTreeEnumeration(file.getPath());
+					while (fileEnumeration.hasMoreElements()) {
+						changedDisks.add(fileEnumeration.nextElement());
+					}
+				} else if (file.isFile()) {
+					if (file.getName().toLowerCase().endsWith(DVDID_SUFFIX))
+						changedDisks.add(file);
+				} else {
+					String removedPath = file.getPath();
+					Iterator<WindowsMediaCenterInfo> infos = library.values().iterator();
+					while (infos.hasNext()) {
+						WindowsMediaCenterInfo info = infos.next();
+						String diskPath = info.getDiskFile().getPath();
+						if (diskPath.equals(removedPath) || diskPath.startsWith(removedPath + File.separator)) {
+							infos.remove();
+							delta.remove(info);
 						}
-						newMonitor.endMonitor();
-						newMonitor.setNote("Complete for: " + fileName);
 					}
 				}
+			}
+			
+			if (!metaDataFiles.isEmpty()) {
+				Set<String> metaDataNames = new HashSet<String>();
+				for (File file : metaDataFiles) {
+					metaDataNames.add(file.getName().toLowerCase());
+				}
+				
+				for (WindowsMediaCenterInfo info : library.values()) {
+					if (info.getMetaDataFile() != null && metaDataNames.contains(info.getMetaDataFile().getName().toLowerCase()))
+						changedDisks.add(info.getDiskFile());
+				}
+			}
+			
+			Map<String, TitleRecord> parsed = new LinkedHashMap<String, TitleRecord>();
+			Map<String, WindowsMediaCenterInfo> replaced = new HashMap<String, WindowsMediaCenterInfo>();
+			for (File diskFile : changedDisks) {
+				String basePath = findBasePath(configuredFolders, diskFile);
+				if (basePath == null)
+					continue;
+				
+				WindowsMediaCenterInfo oldInfo = library.remove(diskFile.getPath());
+				TitleRecord record = TitleRecord.parse(diskFile, basePath, null);
+				if (record.isParsed()) {
+					parsed.put(diskFile.getPath(), record);
+					if (oldInfo != null)
+						replaced.put(diskFile.getPath(), oldInfo);
+				} else if (oldInfo != null) {
+					delta.remove(oldInfo);
+				}
+			}
+			
+			if (delta.isEmpty() && parsed.isEmpty())
+				return delta;
+			
+			//Browsers may still be walking the old store, so build a new one rather than editing it
+			LibraryStore.Builder builder = new LibraryStore.Builder();
+			for (WindowsMediaCenterInfo info : library.values()) {
+				builder.add(info);
+			}
+			for (TitleRecord record : parsed.values()) {
+				builder.add(record);
+			}
+			LibrarySnapshot next = new LibrarySnapshot(new FacetIndex(builder.build(), generation.incrementAndGet()), configuredFolders);
+			TitleSet potentials = next.getTitles();
+			
+			if (!parsed.isEmpty()) {
+				Map<String, WindowsMediaCenterInfo> titles = new HashMap<String, WindowsMediaCenterInfo>();
+				for (WindowsMediaCenterInfo info : potentials) {
+					titles.put(info.getDiskFile().getPath(), info);
+				}
 				
-				nativeRootNode.setNode(rootNode, potentials);
-			} finally {
-				isRefreshing = false;
+				for (String diskPath : parsed.keySet()) {
+					WindowsMediaCenterInfo oldInfo = replaced.get(diskPath);
+					WindowsMediaCenterInfo newInfo = titles.get(diskPath);
+					if (newInfo == null) {
+						//Another copy of the same disc is in the library already
+						if (oldInfo != null)
+							delta.remove(oldInfo);
+					} else if (oldInfo != null) {
+						delta.update(oldInfo, newInfo);
+					} else {
+						delta.add(newInfo);
+					}
+				}
+			}
+			
+			//Carry the category counts over rather than counting the whole library again
+			CategoryCounts counts = current.getIndex().peekCategoryCounts();
+			if (counts != null && counts.getCategories() == rootNode) {
+				counts = counts.update(next.getIndex(), delta);
+				if (counts != null)
+					next.getIndex().setCategoryCounts(counts);
 			}
+			
+			publish(next, delta);
+			updateSearchIndex(current.getIndex(), delta);
 		}
-		//Somehow we need to reset the discovered maybe?
-		//PMS.get().getRootFolder(null).
+		updateSearchIndex();
+		return delta;
+	}
+	
+	private static String findBasePath(List<String> configuredFolders, File file) {
+		String path = file.getPath();
+		for (String folder : configuredFolders) {
+			if (path.equals(folder) || path.startsWith(folder.endsWith(File.separator) ? folder : folder + File.separator))
+				return folder;
+		}
+		return null;
 	}
 	
 	public static FileTreeEnumeration buildFileTreeEnumeration(String fileName) {
 		return new FileTreeEnumeration(
 				new File(fileName), 
-				new WildcardFilenameFilter("*.dvdid.xml"), 
+				new WildcardFilenameFilter("*" + DVDID_SUFFIX), 
 				new RegexFileFilter("(?i:VIDEO_TS)", MatchType.NEGATED_MATCH_NAME),
 				true);
 	}
 
 	public static List<String> getWindowsConfiguredFolders() {
-		WindowsRegistryRoot registryRoot = WindowsRegistryRoot.HKEY_CURRENT_USER;
-		List<String> configuredFolders = new ArrayList<String>();
-		String key = "Software\\Microsoft\\Windows\\CurrentVersion\\Media Center\\MediaFolders\\Movie";
-		boolean folderFound = true;
-		for (int t = 0; folderFound; t++) {
-			String fileName = WindowsRegistry.readString(registryRoot, key, "Folder" + t);
-			if (fileName == null)
-				break;
-			
-			configuredFolders.add(fileName);
-		}
-		
-		return configuredFolders;
+		return new RegistryLibraryRootSource().getRoots();
 	}
 	
-	public static JAXBContext getJAXBContext() {
+	public static synchronized JAXBContext getJAXBContext() {
 		try {
 			if (jaxbContext == null)
 				jaxbContext = JAXBContext.newInstance(WindowsMediaCenterMetaData.class, DVDIdDisk.class);
@@ -170,6 +650,8 @@ public class WindowsMediaCenterManager<T> {
 			return rootNode;
 		
 		loadRootNode();
+		if (rootNode == null && libraryImage != null)
+			rootNode = libraryImage.readCategories();
 		if (rootNode == null) {
 			rootNode = new CategoryTreeNode(null, null, false);
 			rootNode.setChildren(Collections.singletonList(new CategoryTreeNode(rootNode, "genre", true)));
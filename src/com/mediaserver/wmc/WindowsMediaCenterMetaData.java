@@ -1,6 +1,7 @@
 package com.mediaserver.wmc;
 
 import java.io.File;
+import java.io.Serializable;
 import java.math.BigDecimal;
 import java.util.Date;
 import java.util.List;
@@ -15,7 +16,8 @@ import com.cfs.xml.SemiColonSpaceListAdapter;
 import com.cfs.xml.YYYY_MM_DD_WhitespaceSeparatedDateAdapter;
 
 @XmlRootElement(name="METADATA")
-public class WindowsMediaCenterMetaData {
+public class WindowsMediaCenterMetaData implements Serializable {
+	private static final long serialVersionUID = 3580021377604569291L;
 	@XmlElement(name="MDR-DVD")
 	private RippedDVD dvdInfo;
 	private String dvdId;
@@ -23,7 +25,8 @@ public class WindowsMediaCenterMetaData {
 	private String cover;
 	private String imdbCode;
 	
-	public static class Title {
+	public static class Title implements Serializable {
+		private static final long serialVersionUID = -6189227047395848213L;
 		@XmlElement(name="titleNum")
 		private Integer index;
 		@XmlElement(name="titleTitle")
@@ -42,17 +45,96 @@ public class WindowsMediaCenterMetaData {
 		private String synopsis;
 		@XmlElement(name="chapter")
 		List<Chapter> chapter;
+		
+		public Title() {
+		}
+		
+		Title(Integer index, String title, String studio, String director, String leadPerformer, String mpaaRating, String genre, String synopsis, List<Chapter> chapter) {
+			this.index = index;
+			this.title = title;
+			this.studio = studio;
+			this.director = director;
+			this.leadPerformer = leadPerformer;
+			this.mpaaRating = mpaaRating;
+			this.genre = genre;
+			this.synopsis = synopsis;
+			this.chapter = chapter;
+		}
+		
+		@XmlTransient
+		public Integer getIndex() {
+			return index;
+		}
+		
+		@XmlTransient
+		public String getTitle() {
+			return title;
+		}
+		
+		@XmlTransient
+		public String getStudio() {
+			return studio;
+		}
+		
+		@XmlTransient
+		public String getDirector() {
+			return director;
+		}
+		
+		@XmlTransient
+		public String getLeadPerformer() {
+			return leadPerformer;
+		}
+		
+		@XmlTransient
+		public String getMPAARating() {
+			return mpaaRating;
+		}
+		
+		@XmlTransient
+		public String getGenre() {
+			return genre;
+		}
+		
+		@XmlTransient
+		public String getSynopsis() {
+			return synopsis;
+		}
+		
+		@XmlTransient
+		public List<Chapter> getChapters() {
+			return chapter;
+		}
 	}
 	
-	public static class Chapter {
+	public static class Chapter implements Serializable {
+		private static final long serialVersionUID = 8164120373151840942L;
 		@XmlElement(name="chapterNum")
 		private Integer index;
 		@XmlElement(name="chapterTitle")
 		private String chapterTitle;
 		
+		public Chapter() {
+		}
+		
+		Chapter(Integer index, String chapterTitle) {
+			this.index = index;
+			this.chapterTitle = chapterTitle;
+		}
+		
+		@XmlTransient
+		public Integer getIndex() {
+			return index;
+		}
+		
+		@XmlTransient
+		public String getChapterTitle() {
+			return chapterTitle;
+		}
 	}
 	
-	public static class RippedDVD {
+	public static class RippedDVD implements Serializable {
+		private static final long serialVersionUID = 1924870650347154105L;
 		@XmlElement(name="MetadataExpires")
 		private Date metadataExpires;
 		@XmlElement(name="largeCoverParams")
@@ -91,20 +173,12 @@ public class WindowsMediaCenterMetaData {
 		private List<Title> titles;
 
 		public File getFirstAvailableCover() {
-			File file = null;
-			if (largeCoverParameters != null && largeCoverParameters.length() > 0) {
-				file = new File(WindowsMediaCenterManager.MEDIA_CENTER_COVER_CACHE + largeCoverParameters.replaceAll("/", "-"));
-				if (file.exists() && file.isFile())
-					return file;
-			}
-
-			if (smallCoverParameters != null && smallCoverParameters.length() > 0) {
-				file = new File(WindowsMediaCenterManager.MEDIA_CENTER_COVER_CACHE + smallCoverParameters.replaceAll("/", "-"));
-				if (file.exists() && file.isFile())
-					return file;
-			}
+			return findFirstAvailableCover(largeCoverParameters, smallCoverParameters);
+		}
 
-			return null;
+		static File findFirstAvailableCover(String largeCoverParameters, String smallCoverParameters) {
+			CoverIndex.Cover cover = CoverIndex.getInstance().findFirstAvailable(CoverIndex.toKey(largeCoverParameters), CoverIndex.toKey(smallCoverParameters));
+			return cover == null ? null : cover.getFile();
 		}
 	}
 	
@@ -282,6 +356,17 @@ public class WindowsMediaCenterMetaData {
 		this.dvdInfo.smallCoverParameters = smallCoverParameters;
 	}
 
+	@XmlTransient
+	public List<Title> getTitles() {
+		return dvdInfo != null?dvdInfo.titles:null;
+	}
+	void setTitles(List<Title> titles) {
+		if (dvdInfo == null)
+			dvdInfo = new RippedDVD();
+		
+		this.dvdInfo.titles = titles;
+	}
+
 	@XmlTransient
 	public String getCover() {
 		return cover;